@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares a JMH CSV result file ({@code -rf csv}) against a saved baseline.
+ *
+ * Usage: {@code BaselineComparison current.csv baseline.csv [threshold%]}.
+ * Every benchmark (and secondary result such as
+ * {@code gc.alloc.rate.norm} from {@code -prof gc}) present in both files is
+ * printed with its relative change. Scores in {@code ops/...} units are
+ * better when higher; all others, including time per op and bytes allocated
+ * per op, are better when lower. The exit status is 1 if any score regressed
+ * by more than the threshold, which defaults to 10%.
+ */
+public final class BaselineComparison {
+
+    /**
+     * Default regression threshold, in percent.
+     */
+    private static final double DEFAULT_THRESHOLD = 10.0;
+
+    /**
+     * Percent multiplier.
+     */
+    private static final double PERCENT = 100.0;
+
+    /**
+     * Utility class.
+     */
+    private BaselineComparison() {
+    }
+
+    /**
+     * @param args current result file, baseline file, optional threshold
+     * @throws IOException if a result file cannot be read
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison current.csv"
+                    + " baseline.csv [threshold%]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2])
+                : DEFAULT_THRESHOLD;
+        Map<String, Score> current = read(new File(args[0]));
+        Map<String, Score> baseline = read(new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> e : current.entrySet()) {
+            Score before = baseline.get(e.getKey());
+            if (before == null || before.value == 0) {
+                continue;
+            }
+            Score after = e.getValue();
+            double change = (after.value - before.value) / before.value
+                    * PERCENT;
+            double worse = after.higherIsBetter() ? -change : change;
+            boolean regressed = worse > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "%-90s %14.3f %14.3f %-10s %+8.2f%%%s", e.getKey(),
+                    before.value, after.value, after.unit, change,
+                    regressed ? "  REGRESSION" : ""));
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " score(s) regressed by more than "
+                    + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the scores of a JMH CSV result file.
+     *
+     * @param file result file
+     * @return scores keyed by benchmark name and parameters
+     * @throws IOException upon failure to read
+     */
+    static Map<String, Score> read(final File file) throws IOException {
+        final int nameColumn = 0;
+        final int scoreColumn = 4;
+        final int unitColumn = 6;
+        final int firstParamColumn = 7;
+        Map<String, Score> scores = new LinkedHashMap<String, Score>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> header = split(in.readLine());
+            String line;
+            while ((line = in.readLine()) != null) {
+                List<String> row = split(line);
+                if (row.size() <= unitColumn) {
+                    continue;
+                }
+                StringBuilder key = new StringBuilder(row.get(nameColumn));
+                for (int i = firstParamColumn; i < row.size()
+                        && i < header.size(); i++) {
+                    key.append(' ').append(header.get(i)
+                            .replace("Param: ", "")).append('=')
+                            .append(row.get(i));
+                }
+                scores.put(key.toString(), new Score(
+                        Double.parseDouble(row.get(scoreColumn)),
+                        row.get(unitColumn)));
+            }
+        } finally {
+            in.close();
+        }
+        return scores;
+    }
+
+    /**
+     * Splits a CSV line, removing quotes.
+     *
+     * @param line line to split, may be null
+     * @return the fields
+     */
+    private static List<String> split(final String line) {
+        List<String> fields = new ArrayList<String>();
+        if (line == null) {
+            return fields;
+        }
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * One score from a result file.
+     */
+    static final class Score {
+        /** The score. */
+        private final double value;
+        /** Unit of the score. */
+        private final String unit;
+
+        /**
+         * @param score the score
+         * @param scoreUnit unit of the score
+         */
+        Score(final double score, final String scoreUnit) {
+            value = score;
+            unit = scoreUnit;
+        }
+
+        /**
+         * @return true for throughput scores
+         */
+        boolean higherIsBetter() {
+            return unit.startsWith("ops/");
+        }
+    }
+}
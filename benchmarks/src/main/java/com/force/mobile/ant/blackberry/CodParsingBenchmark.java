@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of parsing a single COD: its header alone, its header and
+ * trailer through positional reads, and the whole COD through the
+ * streaming parser used for deflated siblings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodParsingBenchmark {
+
+    /**
+     * Task whose parsing methods are measured.
+     */
+    private VerifySignatures task;
+
+    /**
+     * Bytes of the sample COD.
+     */
+    private byte[] codBytes;
+
+    /**
+     * Header of the sample COD.
+     */
+    private ByteBuffer header;
+
+    /**
+     * Sample COD, opened for positional reads.
+     */
+    private RandomAccessFile codFile;
+
+    /**
+     * Channel of {@link #codFile}.
+     */
+    private FileChannel channel;
+
+    /**
+     * Loads the sample COD.
+     *
+     * @throws IOException if the sample cannot be read
+     */
+    @Setup
+    public void setUp() throws IOException {
+        task = new VerifySignatures("SFDC");
+        task.setProject(new Project());
+        codBytes = Corpus.sampleBytes(Corpus.SMALL_COD);
+        header = ByteBuffer.wrap(codBytes, 0, CodHeader.LENGTH).slice();
+        codFile = new RandomAccessFile(Corpus.sample(Corpus.SMALL_COD), "r");
+        channel = codFile.getChannel();
+    }
+
+    /**
+     * Closes the sample COD.
+     *
+     * @throws IOException if it cannot be closed
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        codFile.close();
+    }
+
+    /**
+     * @return the decoded header
+     * @throws BadCodException never, for the sample
+     */
+    @Benchmark
+    public CodHeader parseHeader() throws BadCodException {
+        return CodHeader.read(header, "sample.cod");
+    }
+
+    /**
+     * @return signers read with positional header and trailer reads
+     * @throws IOException upon failure to read
+     */
+    @Benchmark
+    public CodSigningInfo parseTrailer() throws IOException {
+        task.startRun();
+        return task.signers(channel, 0, codBytes.length, "sample.cod");
+    }
+
+    /**
+     * @return signers read by streaming through the whole COD
+     */
+    @Benchmark
+    public CodSigningInfo parseStream() {
+        return task.signers(new ByteArrayInputStream(codBytes), "sample.cod");
+    }
+}
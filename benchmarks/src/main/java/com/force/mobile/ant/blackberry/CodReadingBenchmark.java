@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@code readCod()} on a plain COD and on big CODs whose
+ * siblings are deflated or stored, both the samples and generated big CODs
+ * with many siblings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodReadingBenchmark {
+
+    /**
+     * Task whose reading methods are measured.
+     */
+    private VerifySignatures task;
+
+    /**
+     * Directory holding the generated big COD.
+     */
+    private File dir;
+
+    /**
+     * Big COD with stored siblings.
+     */
+    private File storedBigCod;
+
+    /**
+     * Number of siblings in the generated big CODs.
+     */
+    @Param({"200"})
+    private int siblings;
+
+    /**
+     * Generated big COD with deflated siblings.
+     */
+    private File generatedDeflated;
+
+    /**
+     * Generated big COD with stored siblings.
+     */
+    private File generatedStored;
+
+    /**
+     * Writes the big CODs.
+     *
+     * @throws IOException if it cannot be written
+     */
+    @Setup
+    public void setUp() throws IOException {
+        task = new VerifySignatures("SFDC");
+        task.setProject(new Project());
+        dir = Files.createTempDirectory("sigtool-bench").toFile();
+        storedBigCod = new File(dir, "stored.cod");
+        Corpus.writeStoredBigCod(storedBigCod);
+        CodGenerator generator = new CodGenerator(1);
+        generatedDeflated = new File(dir, "deflated.cod");
+        generator.writeBigCod(generatedDeflated, siblings, ZipEntry.DEFLATED);
+        generatedStored = new File(dir, "generated.cod");
+        generator.writeBigCod(generatedStored, siblings, ZipEntry.STORED);
+    }
+
+    /**
+     * Deletes the generated files.
+     */
+    @TearDown
+    public void tearDown() {
+        Corpus.delete(dir);
+    }
+
+    /**
+     * @return signers of a plain COD
+     */
+    @Benchmark
+    public List<CodSigningInfo> readSmallCod() {
+        task.startRun();
+        return task.readCod(Corpus.sample(Corpus.SMALL_COD));
+    }
+
+    /**
+     * @return signers of a big COD with deflated siblings
+     */
+    @Benchmark
+    public List<CodSigningInfo> readDeflatedBigCod() {
+        task.startRun();
+        return task.readCod(Corpus.sample(Corpus.BIG_COD));
+    }
+
+    /**
+     * @return signers of a big COD with stored siblings
+     */
+    @Benchmark
+    public List<CodSigningInfo> readStoredBigCod() {
+        task.startRun();
+        return task.readCod(storedBigCod);
+    }
+
+    /**
+     * @return signers of a generated big COD with deflated siblings
+     */
+    @Benchmark
+    public List<CodSigningInfo> readGeneratedDeflatedBigCod() {
+        task.startRun();
+        return task.readCod(generatedDeflated);
+    }
+
+    /**
+     * @return signers of a generated big COD with stored siblings
+     */
+    @Benchmark
+    public List<CodSigningInfo> readGeneratedStoredBigCod() {
+        task.startRun();
+        return task.readCod(generatedStored);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Locates the project's sample CODs. Larger corpora are generated with
+ * {@link CodGenerator}.
+ *
+ * The samples are read from the directory named by the
+ * {@code sigtool.testResources} system property, which defaults to the main
+ * project's {@code src/test/resources} when run from the benchmarks module.
+ */
+final class Corpus {
+
+    /**
+     * A plain COD signed by SFDC.
+     */
+    static final String SMALL_COD = "test_salesforce_chatter-8.cod";
+
+    /**
+     * A big COD whose siblings are deflated and signed by SFDC.
+     */
+    static final String BIG_COD = "test_salesforce_chatter-10.cod";
+
+    /**
+     * Siblings used to build a big COD with stored entries.
+     */
+    private static final String[] STORED_SIBLINGS = {
+        "test_salesforce_chatter-8.cod", "test_salesforce_chatter-7.cod"};
+
+    /**
+     * Utility class.
+     */
+    private Corpus() {
+    }
+
+    /**
+     * @param name name of a sample COD
+     * @return the sample file
+     */
+    static File sample(final String name) {
+        File dir = new File(System.getProperty("sigtool.testResources",
+                ".." + File.separator + "src" + File.separator + "test"
+                + File.separator + "resources"));
+        File file = new File(dir, name);
+        if (!file.isFile()) {
+            throw new IllegalStateException("Sample COD not found: " + file
+                    + "; set -Dsigtool.testResources");
+        }
+        return file;
+    }
+
+    /**
+     * @param name name of a sample COD
+     * @return the sample's bytes
+     * @throws IOException upon failure to read
+     */
+    static byte[] sampleBytes(final String name) throws IOException {
+        return Files.readAllBytes(sample(name).toPath());
+    }
+
+    /**
+     * Writes a big COD whose siblings are stored uncompressed.
+     *
+     * @param target file to write
+     * @throws IOException upon failure to write
+     */
+    static void writeStoredBigCod(final File target) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            for (String name : STORED_SIBLINGS) {
+                byte[] bytes = sampleBytes(name);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                ZipEntry entry = new ZipEntry(name);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(bytes.length);
+                entry.setCrc(crc.getValue());
+                zip.putNextEntry(entry);
+                zip.write(bytes);
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Deletes a directory tree.
+     *
+     * @param file file or directory to delete
+     */
+    static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for a whole {@code verifySignatures} run over a generated fileset of
+ * distinct signed CODs, including the directory scan. Every tenth file is a
+ * big COD.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSetVerificationBenchmark {
+
+    /**
+     * Number of CODs in the fileset.
+     */
+    @Param({"100", "1000"})
+    private int corpusSize;
+
+    /**
+     * Number of siblings in each big COD.
+     */
+    @Param({"10", "200"})
+    private int siblings;
+
+    /**
+     * Seed of the generated corpus.
+     */
+    @Param("1")
+    private long seed;
+
+    /**
+     * Number of verification threads.
+     */
+    @Param({"1", "4"})
+    private int threads;
+
+    /**
+     * Directory holding the corpus.
+     */
+    private File dir;
+
+    /**
+     * Project the task runs in; it has no listeners, so logging is cheap.
+     */
+    private Project project;
+
+    /**
+     * Writes the corpus.
+     *
+     * @throws IOException if it cannot be written
+     */
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("sigtool-bench").toFile();
+        new CodGenerator(seed).writeCorpus(dir, corpusSize, siblings);
+        project = new Project();
+    }
+
+    /**
+     * Deletes the corpus.
+     */
+    @TearDown
+    public void tearDown() {
+        Corpus.delete(dir);
+    }
+
+    /**
+     * Runs the task over the corpus.
+     */
+    @Benchmark
+    public void verifyFileSet() {
+        FileSet fs = new FileSet();
+        fs.setProject(project);
+        fs.setDir(dir);
+        fs.setIncludes("**/*.cod");
+
+        VerifySignatures task = new VerifySignatures();
+        task.setProject(project);
+        task.setSigners("RBB, RRT, RCR, SFDC");
+        task.setThreads(threads);
+        task.add(fs);
+        task.execute();
+    }
+}
@@ -32,16 +32,61 @@ package com.force.mobile.ant.blackberry;
  */
 public class BadCodException extends Exception {
 
+    /**
+     * What is wrong with a COD file.
+     */
+    public enum Kind {
+        /** The file does not start with the COD flash ID. */
+        NOT_A_COD,
+        /** The header version is too old to carry signatures. */
+        OLD_VERSION,
+        /** The file ends before the end of its code and data sections. */
+        TRUNCATED,
+        /** A signature record has an unknown sign type. */
+        BAD_SIGN_TYPE,
+        /** The file could not be read. */
+        READ_FAILED,
+        /** A signature does not match the COD's content. */
+        BAD_SIGNATURE,
+        /** The file ends inside a signature record. */
+        TRUNCATED_RECORD,
+        /** The signature trailer is longer than any COD's. */
+        TRAILER_TOO_LONG
+    }
+
     /**
      * Default serial number.
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * What is wrong with the COD.
+     */
+    private final Kind kind;
+
     /**
      * Exception for incorrectly formatted COD file.
      * @param message String explaining the cause of this exception
      */
     public BadCodException(final String message) {
+        this(message, Kind.NOT_A_COD);
+    }
+
+    /**
+     * Exception for a COD file with a specific problem.
+     * @param message String explaining the cause of this exception
+     * @param problem what is wrong with the COD
+     */
+    public BadCodException(final String message, final Kind problem) {
         super(message);
+        kind = problem;
+    }
+
+    /**
+     * Accessor for the kind of problem.
+     * @return what is wrong with the COD
+     */
+    public final Kind getKind() {
+        return kind;
     }
 }
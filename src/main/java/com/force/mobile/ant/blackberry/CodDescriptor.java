@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * The CODs listed by an over-the-air descriptor. A JAD names each COD in a
+ * {@code RIM-COD-URL-N} attribute and gives its length and SHA-1 in
+ * {@code RIM-COD-Size-N} and {@code RIM-COD-SHA1-N}; the first COD's
+ * attributes have no suffix. An ALX lists the CODs of each fileset in a
+ * {@code <files>} element, without lengths or digests.
+ *
+ * <p>
+ * Each listed COD is resolved against the descriptor's directory. A sibling
+ * of a big COD is listed under its own name, as it is served once the big COD
+ * is unpacked.
+ */
+final class CodDescriptor {
+
+    /**
+     * Prefix of the JAD attributes naming a COD.
+     */
+    private static final String URL = "RIM-COD-URL";
+
+    /**
+     * Prefix of the JAD attributes giving a COD's length.
+     */
+    private static final String SIZE = "RIM-COD-Size";
+
+    /**
+     * Prefix of the JAD attributes giving a COD's SHA-1.
+     */
+    private static final String SHA1 = "RIM-COD-SHA1";
+
+    /**
+     * Length of a SHA-1 digest in bytes.
+     */
+    private static final int SHA1_LENGTH = 20;
+
+    /**
+     * Radix of the digits of a SHA-1 attribute.
+     */
+    private static final int HEX = 16;
+
+    /**
+     * The descriptor file.
+     */
+    private final File file;
+
+    /**
+     * The CODs listed, in the descriptor's order.
+     */
+    private final List<Listing> listings;
+
+    /**
+     * @param descriptor the descriptor file
+     * @param listed the CODs listed
+     */
+    private CodDescriptor(final File descriptor, final List<Listing> listed) {
+        file = descriptor;
+        listings = Collections.unmodifiableList(listed);
+    }
+
+    /**
+     * Reads a descriptor, as a JAD unless its name ends in {@code .alx}.
+     *
+     * @param descriptor the JAD or ALX file
+     * @return the CODs it lists
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    static CodDescriptor read(final File descriptor) throws IOException {
+        if (descriptor.getName().toLowerCase(Locale.ROOT).endsWith(".alx")) {
+            return readAlx(descriptor);
+        }
+        return readJad(descriptor);
+    }
+
+    /**
+     * Reads the {@code RIM-COD-*} attributes of a JAD.
+     *
+     * @param jad the JAD file
+     * @return the CODs it lists, in the order of their suffixes
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    private static CodDescriptor readJad(final File jad) throws IOException {
+        Map<Integer, String> urls = new TreeMap<Integer, String>();
+        Map<Integer, String> sizes = new TreeMap<Integer, String>();
+        Map<Integer, String> digests = new TreeMap<Integer, String>();
+        for (String line : Files.readAllLines(jad.toPath(),
+                StandardCharsets.UTF_8)) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.startsWith(URL)) {
+                urls.put(suffix(jad, name, URL), value);
+            } else if (name.startsWith(SIZE)) {
+                sizes.put(suffix(jad, name, SIZE), value);
+            } else if (name.startsWith(SHA1)) {
+                digests.put(suffix(jad, name, SHA1), value);
+            }
+        }
+        List<Listing> listed = new ArrayList<Listing>(urls.size());
+        for (Map.Entry<Integer, String> url : urls.entrySet()) {
+            int n = url.getKey();
+            String size = sizes.remove(n);
+            String digest = digests.remove(n);
+            long length;
+            try {
+                length = size == null ? -1 : Long.parseLong(size);
+            } catch (NumberFormatException e) {
+                throw new IOException(jad + ": " + attribute(SIZE, n)
+                        + " is not a number: " + size);
+            }
+            listed.add(new Listing(attribute(URL, n),
+                    new File(jad.getParentFile(), codPath(url.getValue())),
+                    length, digest == null ? null
+                            : parseSha1(jad, attribute(SHA1, n), digest)));
+        }
+        if (!sizes.isEmpty()) {
+            int n = sizes.keySet().iterator().next();
+            throw new IOException(jad + ": " + attribute(SIZE, n)
+                    + " has no " + attribute(URL, n));
+        }
+        if (!digests.isEmpty()) {
+            int n = digests.keySet().iterator().next();
+            throw new IOException(jad + ": " + attribute(SHA1, n)
+                    + " has no " + attribute(URL, n));
+        }
+        return new CodDescriptor(jad, listed);
+    }
+
+    /**
+     * @param jad the JAD file, for messages
+     * @param name a JAD attribute name
+     * @param prefix the attribute's prefix
+     * @return the attribute's numeric suffix, or 0 if it has none
+     * @throws IOException if the suffix is not a number
+     */
+    private static int suffix(final File jad, final String name,
+            final String prefix) throws IOException {
+        if (name.length() == prefix.length()) {
+            return 0;
+        }
+        try {
+            if (name.charAt(prefix.length()) == '-') {
+                int n = Integer.parseInt(name.substring(prefix.length() + 1));
+                if (n > 0) {
+                    return n;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IOException(jad + ": unexpected attribute " + name);
+    }
+
+    /**
+     * @param prefix attribute prefix
+     * @param n attribute suffix, 0 for none
+     * @return the name of the attribute
+     */
+    private static String attribute(final String prefix, final int n) {
+        return n == 0 ? prefix : prefix + "-" + n;
+    }
+
+    /**
+     * Turns a COD URL into a path relative to the descriptor. Absolute URLs
+     * are served from elsewhere; only their last segment is kept.
+     *
+     * @param url the URL of a COD
+     * @return its path relative to the descriptor's directory
+     */
+    private static String codPath(final String url) {
+        if (url.contains("://")) {
+            return url.substring(url.lastIndexOf('/') + 1);
+        }
+        return url;
+    }
+
+    /**
+     * Parses a SHA-1 written as hex digits, with or without spaces between
+     * the bytes.
+     *
+     * @param jad the JAD file, for messages
+     * @param name the attribute's name, for messages
+     * @param value the attribute's value
+     * @return the digest
+     * @throws IOException if the value is not a SHA-1
+     */
+    private static byte[] parseSha1(final File jad, final String name,
+            final String value) throws IOException {
+        String hex = value.replaceAll("\\s", "");
+        if (hex.length() != SHA1_LENGTH * 2) {
+            throw new IOException(jad + ": " + name + " is not a SHA-1: "
+                    + value);
+        }
+        byte[] digest = new byte[SHA1_LENGTH];
+        for (int i = 0; i < digest.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), HEX);
+            int low = Character.digit(hex.charAt(2 * i + 1), HEX);
+            if (high < 0 || low < 0) {
+                throw new IOException(jad + ": " + name
+                        + " is not a SHA-1: " + value);
+            }
+            digest[i] = (byte) (high * HEX + low);
+        }
+        return digest;
+    }
+
+    /**
+     * Reads the {@code <files>} of each {@code <fileset>} in an ALX, found in
+     * the fileset's {@code <directory>} if it has one.
+     *
+     * @param alx the ALX file
+     * @return the CODs it lists
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    private static CodDescriptor readAlx(final File alx) throws IOException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory =
+                DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setExpandEntityReferences(false);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            document = builder.parse(alx);
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        } catch (SAXException e) {
+            throw new IOException(alx + " is not an ALX: " + e.getMessage(),
+                    e);
+        }
+        List<Listing> listed = new ArrayList<Listing>();
+        NodeList filesets = document.getElementsByTagName("fileset");
+        for (int i = 0; i < filesets.getLength(); i++) {
+            Element fileset = (Element) filesets.item(i);
+            File dir = alx.getParentFile();
+            String directory = childText(fileset, "directory");
+            if (directory != null && directory.length() > 0) {
+                dir = new File(dir, directory);
+            }
+            String files = childText(fileset, "files");
+            if (files == null) {
+                continue;
+            }
+            for (String name : files.trim().split("\\s+")) {
+                if (name.length() > 0) {
+                    listed.add(new Listing("<files>", new File(dir, name),
+                            -1, null));
+                }
+            }
+        }
+        return new CodDescriptor(alx, listed);
+    }
+
+    /**
+     * @param parent an element
+     * @param name name of a child element
+     * @return the trimmed text of the first such child, or null if there is
+     *         none
+     */
+    private static String childText(final Element parent, final String name) {
+        NodeList children = parent.getElementsByTagName(name);
+        if (children.getLength() == 0) {
+            return null;
+        }
+        return children.item(0).getTextContent().trim();
+    }
+
+    /**
+     * @return the descriptor file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the CODs listed, in the descriptor's order
+     */
+    List<Listing> getListings() {
+        return listings;
+    }
+
+    /**
+     * One COD listed by a descriptor.
+     */
+    static final class Listing {
+        /** Attribute or element that names the COD, for messages. */
+        private final String attribute;
+        /** The COD file, resolved against the descriptor's directory. */
+        private final File cod;
+        /** Expected length of the COD, or -1 if not given. */
+        private final long size;
+        /** Expected SHA-1 of the COD, or null if not given. */
+        private final byte[] sha1;
+
+        /**
+         * @param name attribute or element naming the COD
+         * @param codFile the COD file
+         * @param length expected length, or -1
+         * @param digest expected SHA-1, or null
+         */
+        Listing(final String name, final File codFile, final long length,
+                final byte[] digest) {
+            attribute = name;
+            cod = codFile;
+            size = length;
+            sha1 = digest;
+        }
+
+        /**
+         * @return the attribute or element that names the COD
+         */
+        String getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * @return the COD file, resolved against the descriptor's directory
+         */
+        File getCod() {
+            return cod;
+        }
+
+        /**
+         * @return expected length of the COD, or -1 if not given
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * @return expected SHA-1 of the COD, or null if not given
+         */
+        byte[] getSha1() {
+            return sha1;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed-size header at the start of every COD file.
+ *
+ * The header is {@link #LENGTH} bytes long and is followed by the code and
+ * data sections and then the signature trailer. All multi-byte fields other
+ * than the flash ID are little-endian.
+ */
+public final class CodHeader {
+
+    /**
+     * Length, in bytes, of the COD header.
+     */
+    public static final int LENGTH = 44;
+
+    /**
+     * Flash ID every COD file starts with, read big-endian.
+     */
+    public static final int FLASH_ID = 0xDEC0FFFF;
+
+    /**
+     * Offset of the header version number.
+     */
+    private static final int VERSION_OFFSET = 36;
+
+    /**
+     * Offset of the code section size.
+     */
+    private static final int CODE_SIZE_OFFSET = 38;
+
+    /**
+     * Offset of the data section size.
+     */
+    private static final int DATA_SIZE_OFFSET = 40;
+
+    /**
+     * Offset of the COD flags.
+     */
+    private static final int FLAGS_OFFSET = 42;
+
+    /**
+     * Header version number.
+     */
+    private final int version;
+
+    /**
+     * Size, in bytes, of the code section.
+     */
+    private final int codeSize;
+
+    /**
+     * Size, in bytes, of the data section.
+     */
+    private final int dataSize;
+
+    /**
+     * COD flags.
+     */
+    private final int flags;
+
+    /**
+     * @param headerVersion header version number
+     * @param code size of the code section
+     * @param data size of the data section
+     * @param codFlags COD flags
+     */
+    CodHeader(final int headerVersion, final int code, final int data,
+            final int codFlags) {
+        version = headerVersion;
+        codeSize = code;
+        dataSize = data;
+        flags = codFlags;
+    }
+
+    /**
+     * Reads a header starting at the buffer's current position. The buffer's
+     * position, limit and byte order are left untouched.
+     *
+     * @param buffer buffer holding at least {@link #LENGTH} bytes from its
+     *            position
+     * @param fileName name of file being read. Only for information in case of
+     *            failure
+     * @return the parsed header
+     * @throws BadCodException if the buffer is too short or the flash ID is
+     *             wrong
+     */
+    public static CodHeader read(final ByteBuffer buffer,
+            final String fileName) throws BadCodException {
+        // Pre-condition: buffer is positioned at the start of a COD
+        // Post-condition: buffer is unchanged
+        final int start = buffer.position();
+        if (buffer.remaining() < LENGTH || readFlashId(buffer, start)
+                != FLASH_ID) {
+            throw new BadCodException(fileName + " is not a COD");
+        }
+        return new CodHeader(
+                readLittleEndianShort(buffer, start + VERSION_OFFSET),
+                readLittleEndianShort(buffer, start + CODE_SIZE_OFFSET),
+                readLittleEndianShort(buffer, start + DATA_SIZE_OFFSET),
+                readLittleEndianShort(buffer, start + FLAGS_OFFSET));
+    }
+
+    /**
+     * Reads the big-endian flash ID at the given index.
+     *
+     * @param buffer buffer to read
+     * @param index absolute index of the flash ID
+     * @return the flash ID
+     */
+    private static int readFlashId(final ByteBuffer buffer, final int index) {
+        final int shiftOneByte = 8;
+        int value = 0;
+        for (int i = 0; i < Integer.SIZE / Byte.SIZE; i++) {
+            value = (value << shiftOneByte) | (buffer.get(index + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a 16-bit unsigned little-endian word at the given index.
+     *
+     * @param buffer buffer to read
+     * @param index absolute index of the low byte
+     * @return the unsigned word
+     */
+    static int readLittleEndianShort(final ByteBuffer buffer,
+            final int index) {
+        final int shiftOneByte = 8;
+        return (buffer.get(index) & 0xFF)
+                | ((buffer.get(index + 1) & 0xFF) << shiftOneByte);
+    }
+
+    /**
+     * @return header version number
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return size, in bytes, of the code section
+     */
+    public int getCodeSize() {
+        return codeSize;
+    }
+
+    /**
+     * @return size, in bytes, of the data section
+     */
+    public int getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * @return COD flags
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Offset of the signature trailer from the start of the COD: the header
+     * followed by the code and data sections.
+     *
+     * @return offset of the first signature record
+     */
+    public long getTrailerOffset() {
+        return (long) LENGTH + codeSize + dataSize;
+    }
+}
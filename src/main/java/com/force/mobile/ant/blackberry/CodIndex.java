@@ -0,0 +1,840 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact, memory-mapped index of the CODs a build verified: for each COD
+ * and sibling its path, length, digest, header fields, error and signers.
+ * Later build steps look CODs up here instead of opening them again.
+ *
+ * Paths are relative to the directory holding the index when the COD lies
+ * below it, else absolute, and always use '/'. A sibling of a big COD is
+ * named by the big COD's path, '!' and the sibling's entry name, as in
+ * {@code bin/app.cod!app-1.cod}.
+ *
+ * Each record also holds the size and modification time the COD's file had
+ * when it was verified, so that a later run can take the index as its
+ * baseline and carry the results of unchanged files forward.
+ *
+ * The file starts with a header holding a digest of the keys and policies
+ * the CODs were checked with, then a table of path hashes and a table of
+ * file path hashes, both sorted for binary search, then the records; see
+ * {@link Writer}. The mapping is released when
+ * the index is no longer referenced; see {@link #load(File)} for an index
+ * that is about to be replaced. Readers are thread-safe.
+ */
+public final class CodIndex {
+
+    /**
+     * Magic number at the start of an index file: "CODX".
+     */
+    private static final int MAGIC = 0x434F4458;
+
+    /**
+     * Version of the index file format.
+     */
+    private static final int FORMAT_VERSION = 3;
+
+    /**
+     * Length of the SHA-1 of the keys and policies the CODs were checked
+     * with.
+     */
+    private static final int CHECKS_LENGTH = 20;
+
+    /**
+     * Offset of the checks fingerprint in the header.
+     */
+    private static final int CHECKS_OFFSET = 16;
+
+    /**
+     * Length of the file header: magic, version, reserved, number of CODs,
+     * number of files and the checks fingerprint.
+     */
+    private static final int HEADER_LENGTH = CHECKS_OFFSET + CHECKS_LENGTH;
+
+    /**
+     * Length of a table slot: path hash and record offset.
+     */
+    private static final int SLOT_LENGTH = 8;
+
+    /**
+     * Encoding of paths.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Directory relative paths are resolved against.
+     */
+    private final File baseDir;
+
+    /**
+     * The mapped index file.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Number of records.
+     */
+    private final int count;
+
+    /**
+     * Number of files the records were read from.
+     */
+    private final int fileCount;
+
+    /**
+     * Offset of the table of file path hashes.
+     */
+    private final int fileTable;
+
+    /**
+     * Offset of the first record.
+     */
+    private final int recordsStart;
+
+    /**
+     * @param indexFile the index file
+     * @param mapped the index file's content
+     * @throws IOException if the content is not an index
+     */
+    private CodIndex(final File indexFile, final ByteBuffer mapped)
+        throws IOException {
+        baseDir = indexFile.getAbsoluteFile().getParentFile();
+        buffer = mapped;
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC
+                || buffer.getShort(4) != FORMAT_VERSION) {
+            throw new IOException(indexFile + " is not a COD index");
+        }
+        count = buffer.getInt(8);
+        fileCount = buffer.getInt(12);
+        fileTable = HEADER_LENGTH + count * SLOT_LENGTH;
+        recordsStart = fileTable + fileCount * SLOT_LENGTH;
+        if (count < 0 || fileCount < 0 || recordsStart > buffer.limit()) {
+            throw new IOException(indexFile + " is truncated");
+        }
+    }
+
+    /**
+     * Maps an index file.
+     *
+     * @param indexFile file written by {@link Writer}
+     * @return the index
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static CodIndex open(final File indexFile) throws IOException {
+        FileChannel channel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.READ);
+        try {
+            return new CodIndex(indexFile, channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads an index file into memory. Unlike {@link #open(File)} this
+     * leaves no mapping behind, so the file can then be replaced, which
+     * Windows refuses while the file is mapped: use it for a baseline that
+     * is also the index being written.
+     *
+     * @param indexFile file written by {@link Writer}
+     * @return the index
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static CodIndex load(final File indexFile) throws IOException {
+        return new CodIndex(indexFile,
+                ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath())));
+    }
+
+    /**
+     * Tells whether the CODs were checked as a run with the given keys and
+     * policies would check them; only then may its results be carried
+     * forward, since e.g. a signature found bad with a key is not known to
+     * be bad without it.
+     *
+     * @param checks SHA-1 of the keys and policies, as given to the writer
+     * @return true if the index was written with the same fingerprint
+     */
+    public boolean isCheckedWith(final byte[] checks) {
+        if (checks.length != CHECKS_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < CHECKS_LENGTH; i++) {
+            if (buffer.get(CHECKS_OFFSET + i) != checks[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of CODs in the index
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index record number, below {@link #size()}, in table order
+     * @return the record
+     */
+    public Entry get(final int index) {
+        return new Entry(buffer, recordsStart
+                + buffer.getInt(HEADER_LENGTH + index * SLOT_LENGTH + 4));
+    }
+
+    /**
+     * Looks a COD up by its path in the index.
+     *
+     * @param path relative or absolute path as described above
+     * @return the record, or null if the COD is not in the index
+     */
+    public Entry lookup(final String path) {
+        byte[] key = path.getBytes(UTF8);
+        int hash = hash(key);
+        for (int i = firstSlot(HEADER_LENGTH, count, hash);
+                i < count && hashAt(HEADER_LENGTH, i) == hash; i++) {
+            Entry entry = get(i);
+            if (entry.hasPath(key)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up every COD read from one file: the file itself if it is a
+     * plain COD, else each of its siblings.
+     *
+     * @param path relative or absolute path of the file as described above
+     * @return the records, in the order they were read, or null if the file
+     *         is not in the index
+     */
+    public List<Entry> lookupFile(final String path) {
+        byte[] key = path.getBytes(UTF8);
+        int hash = hash(key);
+        for (int i = firstSlot(fileTable, fileCount, hash);
+                i < fileCount && hashAt(fileTable, i) == hash; i++) {
+            Entry entry = new Entry(buffer, recordsStart
+                    + buffer.getInt(fileTable + i * SLOT_LENGTH + 4));
+            if (!entry.hasFilePath(key)) {
+                continue;
+            }
+            List<Entry> entries = new ArrayList<Entry>();
+            do {
+                entries.add(entry);
+                int next = entry.end();
+                entry = next < buffer.limit() ? new Entry(buffer, next) : null;
+            } while (entry != null && entry.hasFilePath(key));
+            return entries;
+        }
+        return null;
+    }
+
+    /**
+     * Looks up every COD read from one file.
+     *
+     * @param file a plain or big COD
+     * @return the records, in the order they were read, or null if the file
+     *         is not in the index
+     */
+    public List<Entry> lookupFile(final File file) {
+        return lookupFile(key(baseDir, file, null));
+    }
+
+    /**
+     * Looks a plain COD up by its file.
+     *
+     * @param cod the COD
+     * @return the record, or null if the COD is not in the index
+     */
+    public Entry lookup(final File cod) {
+        return lookup(key(baseDir, cod, null));
+    }
+
+    /**
+     * Looks a sibling of a big COD up.
+     *
+     * @param bigCod the big COD
+     * @param sibling entry name of the sibling
+     * @return the record, or null if the sibling is not in the index
+     */
+    public Entry lookup(final File bigCod, final String sibling) {
+        return lookup(key(baseDir, bigCod, sibling));
+    }
+
+    /**
+     * @param table offset of a table
+     * @param slot table slot
+     * @return path hash in the slot
+     */
+    private int hashAt(final int table, final int slot) {
+        return buffer.getInt(table + slot * SLOT_LENGTH);
+    }
+
+    /**
+     * Binary search for the first slot of a table that may hold a hash.
+     *
+     * @param table offset of the table
+     * @param slots number of slots in the table
+     * @param hash path hash looked for
+     * @return the first slot whose hash is not below the one looked for
+     */
+    private int firstSlot(final int table, final int slots, final int hash) {
+        int low = 0;
+        int high = slots - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (hashAt(table, mid) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Path of a COD as stored in an index.
+     *
+     * @param base directory of the index
+     * @param file the COD or big COD
+     * @param sibling entry name of a sibling, or null
+     * @return the path
+     */
+    static String key(final File base, final File file, final String sibling) {
+        Path dir = base.toPath();
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        String name = path.startsWith(dir) ? dir.relativize(path).toString()
+                : path.toString();
+        name = name.replace(File.separatorChar, '/');
+        return sibling == null ? name : name + "!" + sibling;
+    }
+
+    /**
+     * 32-bit FNV-1a hash of a path.
+     *
+     * @param bytes the path in UTF-8
+     * @return the hash
+     */
+    static int hash(final byte[] bytes) {
+        int hash = 0x811C9DC5;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * One COD of an index, read in place from the mapped file.
+     */
+    public static final class Entry {
+        /** The mapped index file. */
+        private final ByteBuffer buffer;
+        /** Offset of the record. */
+        private final int offset;
+
+        /**
+         * @param mapped the mapped index file
+         * @param recordOffset offset of the record
+         */
+        Entry(final ByteBuffer mapped, final int recordOffset) {
+            buffer = mapped;
+            offset = recordOffset;
+        }
+
+        /**
+         * @return path of the COD
+         */
+        public String getPath() {
+            byte[] path = new byte[pathLength()];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 2);
+            view.get(path);
+            return new String(path, UTF8);
+        }
+
+        /**
+         * @return path of the file the COD was read from; the path of the
+         *         COD itself unless it is a sibling
+         */
+        public String getFilePath() {
+            byte[] path = new byte[filePathLength()];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 2);
+            view.get(path);
+            return new String(path, UTF8);
+        }
+
+        /**
+         * @return entry name of the sibling, or null for a plain COD
+         */
+        public String getSiblingName() {
+            int file = filePathLength();
+            if (file == pathLength()) {
+                return null;
+            }
+            byte[] name = new byte[pathLength() - file - 1];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 2 + file + 1);
+            view.get(name);
+            return new String(name, UTF8);
+        }
+
+        /**
+         * @return size in bytes of the file the COD was read from when it
+         *         was verified, or -1 if unknown
+         */
+        public long getFileLength() {
+            return buffer.getLong(lengthOffset() - 16);
+        }
+
+        /**
+         * @return modification time of the file the COD was read from when
+         *         it was verified
+         */
+        public long getFileModified() {
+            return buffer.getLong(lengthOffset() - 8);
+        }
+
+        /**
+         * @return length of the COD in bytes, or -1 if unknown
+         */
+        public long getLength() {
+            return buffer.getLong(lengthOffset());
+        }
+
+        /**
+         * @return digest identifying the COD's header and signatures; the
+         *         same one duplicate CODs are recognised by
+         */
+        public byte[] getDigest() {
+            int at = lengthOffset() + 8;
+            byte[] digest = new byte[buffer.get(at) & 0xFF];
+            ByteBuffer view = buffer.duplicate();
+            view.position(at + 1);
+            view.get(digest);
+            return digest;
+        }
+
+        /**
+         * @return why the COD could not be read, or null
+         */
+        public BadCodException.Kind getError() {
+            int kind = buffer.get(errorOffset()) & 0xFF;
+            return kind == 0 ? null : BadCodException.Kind.values()[kind - 1];
+        }
+
+        /**
+         * @return true if the header fields are known; they are not for
+         *         CODs that failed to parse or were answered by a daemon
+         */
+        public boolean hasHeader() {
+            return buffer.get(errorOffset() + 1) != 0;
+        }
+
+        /**
+         * @return header version, or 0 if unknown
+         */
+        public int getVersion() {
+            return buffer.getChar(errorOffset() + 2);
+        }
+
+        /**
+         * @return size of the code section in bytes, or 0 if unknown
+         */
+        public int getCodeSize() {
+            return buffer.getChar(errorOffset() + 4);
+        }
+
+        /**
+         * @return size of the data section in bytes, or 0 if unknown
+         */
+        public int getDataSize() {
+            return buffer.getChar(errorOffset() + 6);
+        }
+
+        /**
+         * @return COD flags, or 0 if unknown
+         */
+        public int getFlags() {
+            return buffer.getChar(errorOffset() + 8);
+        }
+
+        /**
+         * @return number of distinct signers
+         */
+        public int getSignerCount() {
+            return buffer.get(errorOffset() + 10) & 0xFF;
+        }
+
+        /**
+         * @param index signer number, below {@link #getSignerCount()}
+         * @return packed ID of the signer
+         */
+        public int getSignerId(final int index) {
+            return buffer.getInt(errorOffset() + 11 + 4 * index);
+        }
+
+        /**
+         * @return IDs of the signers, in the order they were found
+         */
+        public List<String> getSigners() {
+            List<String> names = new ArrayList<String>(getSignerCount());
+            for (int i = 0; i < getSignerCount(); i++) {
+                names.add(SignerIndex.unpack(getSignerId(i)));
+            }
+            return Collections.unmodifiableList(names);
+        }
+
+        /**
+         * @param signer signer ID, e.g. RBB
+         * @return true if the COD carries a signature by the signer
+         */
+        public boolean isSignedBy(final String signer) {
+            int id = SignerIndex.pack(signer);
+            for (int i = 0; i < getSignerCount(); i++) {
+                if (getSignerId(i) == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param key path in UTF-8
+         * @return true if the record has this path
+         */
+        boolean hasPath(final byte[] key) {
+            if (pathLength() != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (buffer.get(offset + 2 + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param key path of a file in UTF-8
+         * @return true if the record's COD was read from this file
+         */
+        boolean hasFilePath(final byte[] key) {
+            if (filePathLength() != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (buffer.get(offset + 2 + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Rebuilds the signing information the record was written from,
+         * without signature records.
+         *
+         * @param name name to give the COD
+         * @return the signing information
+         */
+        CodSigningInfo toSigningInfo(final String name) {
+            CodSigningInfo info = new CodSigningInfo(name);
+            byte[] digest = getDigest();
+            info.setDigest(digest.length == 0 ? null : digest);
+            info.setError(getError());
+            if (hasHeader()) {
+                info.setHeader(new CodHeader(getVersion(), getCodeSize(),
+                        getDataSize(), getFlags()));
+            }
+            info.setLength(getLength());
+            for (int i = 0; i < getSignerCount(); i++) {
+                info.addSigner(getSignerId(i));
+            }
+            return info;
+        }
+
+        /**
+         * @return length of the path in bytes
+         */
+        private int pathLength() {
+            return buffer.getChar(offset);
+        }
+
+        /**
+         * @return length in bytes of the file part of the path
+         */
+        private int filePathLength() {
+            return buffer.getChar(offset + 2 + pathLength());
+        }
+
+        /**
+         * @return offset of the COD length, which follows the file path
+         *         length, file size and file modification time
+         */
+        private int lengthOffset() {
+            return offset + 2 + pathLength() + 2 + 16;
+        }
+
+        /**
+         * @return offset just past the record
+         */
+        int end() {
+            return errorOffset() + 11 + 4 * getSignerCount();
+        }
+
+        /**
+         * @return offset of the error, which the fixed fields follow
+         */
+        private int errorOffset() {
+            int at = lengthOffset() + 8;
+            return at + 1 + (buffer.get(at) & 0xFF);
+        }
+    }
+
+    /**
+     * Writes an index as CODs are verified. Records are streamed to a
+     * temporary file; only an 8-byte table slot per COD is kept in memory.
+     * The index replaces the target file atomically when finished.
+     *
+     * A record is: path length (unsigned short) and UTF-8 path, length of
+     * the file part of the path (unsigned short), size and modification time
+     * of the file (longs), length (long, -1 if unknown), digest length (byte) and digest, error (byte,
+     * 0 or kind ordinal + 1), header known (byte), version, code size, data
+     * size and flags (unsigned shorts), signer count (byte) and signer IDs
+     * (ints). Everything is big-endian. Not thread-safe.
+     */
+    static final class Writer implements Closeable {
+        /** Initial capacity of the slot array. */
+        private static final int INITIAL_SLOTS = 1024;
+        /** Index file being written. */
+        private final File target;
+        /** Directory relative paths are taken from. */
+        private final File baseDir;
+        /** Temporary file holding the records. */
+        private final File records;
+        /** Stream writing the records. */
+        private final DataOutputStream out;
+        /** Table slots: hash in the high half, record offset in the low. */
+        private long[] slots = new long[INITIAL_SLOTS];
+        /** Number of records written. */
+        private int written;
+        /** File table slots, as {@link #slots}, one per file added. */
+        private long[] fileSlots = new long[INITIAL_SLOTS];
+        /** Number of files added. */
+        private int files;
+        /** SHA-1 of the keys and policies the CODs are checked with. */
+        private final byte[] checks;
+
+        /**
+         * @param indexFile file the index is written to
+         * @param checksDigest SHA-1 of the keys and policies the CODs are
+         *            checked with; see {@link CodIndex#isCheckedWith(byte[])}
+         * @throws IOException if the temporary file cannot be created
+         */
+        Writer(final File indexFile, final byte[] checksDigest)
+            throws IOException {
+            if (checksDigest.length != CHECKS_LENGTH) {
+                throw new IllegalArgumentException("not a SHA-1");
+            }
+            checks = checksDigest.clone();
+            target = indexFile.getAbsoluteFile();
+            baseDir = target.getParentFile();
+            records = File.createTempFile(target.getName(), ".records",
+                    baseDir);
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(records)));
+            } catch (IOException e) {
+                if (!records.delete()) {
+                    records.deleteOnExit();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Adds the CODs of a verified file. A file whose later siblings
+         * were skipped is left out, so that it is read again rather than
+         * carried forward from an incomplete entry.
+         *
+         * @param result the verified file
+         * @throws IOException upon failure to write
+         */
+        void add(final VerificationResult result) throws IOException {
+            if (result.getCods().isEmpty() || !result.isComplete()) {
+                return;
+            }
+            String file = key(baseDir, result.getFile(), null);
+            byte[] fileKey = file.getBytes(UTF8);
+            if (files == fileSlots.length) {
+                fileSlots = Arrays.copyOf(fileSlots, files * 2);
+            }
+            fileSlots[files++] = slot(fileKey);
+            for (CodSigningInfo cod : result.getCods()) {
+                String sibling = result.getSiblingName(cod);
+                add(sibling == null ? file : file + "!" + sibling,
+                        fileKey.length, result, cod);
+            }
+        }
+
+        /**
+         * @param key path in UTF-8
+         * @return table slot pointing at the next record written
+         */
+        private long slot(final byte[] key) {
+            return ((long) hash(key) << 32) | (out.size() & 0xFFFFFFFFL);
+        }
+
+        /**
+         * Adds one COD.
+         *
+         * @param path path of the COD in the index
+         * @param filePathLength length of the file part of the path
+         * @param result the verified file
+         * @param cod what was read about the COD
+         * @throws IOException upon failure to write
+         */
+        private void add(final String path, final int filePathLength,
+                final VerificationResult result, final CodSigningInfo cod)
+            throws IOException {
+            byte[] key = path.getBytes(UTF8);
+            if (written == slots.length) {
+                slots = Arrays.copyOf(slots, written * 2);
+            }
+            slots[written++] = slot(key);
+            out.writeShort(key.length);
+            out.write(key);
+            out.writeShort(filePathLength);
+            out.writeLong(result.getFileLength());
+            out.writeLong(result.getFileModified());
+            out.writeLong(cod.getLength());
+            byte[] digest = cod.getDigest() == null ? new byte[0]
+                : cod.getDigest();
+            out.writeByte(digest.length);
+            out.write(digest);
+            out.writeByte(cod.getError() == null ? 0
+                    : cod.getError().ordinal() + 1);
+            CodHeader header = cod.getHeader();
+            out.writeByte(header == null ? 0 : 1);
+            out.writeShort(header == null ? 0 : header.getVersion());
+            out.writeShort(header == null ? 0 : header.getCodeSize());
+            out.writeShort(header == null ? 0 : header.getDataSize());
+            out.writeShort(header == null ? 0 : header.getFlags());
+            out.writeByte(cod.getSignerCount());
+            for (int i = 0; i < cod.getSignerCount(); i++) {
+                out.writeInt(cod.getSignerId(i));
+            }
+            if (out.size() == Integer.MAX_VALUE) {
+                // the stream's counter stops there; offsets would be wrong
+                throw new IOException(target + " is too large");
+            }
+        }
+
+        /**
+         * Writes the table and records to the index file.
+         *
+         * @throws IOException upon failure to write
+         */
+        @Override
+        public void close() throws IOException {
+            out.close();
+            File temp = File.createTempFile(target.getName(), ".tmp",
+                    baseDir);
+            try {
+                long[] sorted = Arrays.copyOf(slots, written);
+                Arrays.sort(sorted);
+                long[] sortedFiles = Arrays.copyOf(fileSlots, files);
+                Arrays.sort(sortedFiles);
+                OutputStream file = new BufferedOutputStream(
+                        new FileOutputStream(temp));
+                try {
+                    DataOutputStream index = new DataOutputStream(file);
+                    index.writeInt(MAGIC);
+                    index.writeShort(FORMAT_VERSION);
+                    index.writeShort(0);
+                    index.writeInt(written);
+                    index.writeInt(files);
+                    index.write(checks);
+                    for (long slot : sorted) {
+                        index.writeLong(slot);
+                    }
+                    for (long slot : sortedFiles) {
+                        index.writeLong(slot);
+                    }
+                    InputStream in = new FileInputStream(records);
+                    try {
+                        byte[] chunk = new byte[8192];
+                        int n;
+                        while ((n = in.read(chunk)) > 0) {
+                            index.write(chunk, 0, n);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    index.flush();
+                } finally {
+                    file.close();
+                }
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                if (temp.exists() && !temp.delete()) {
+                    temp.deleteOnExit();
+                }
+                if (!records.delete()) {
+                    records.deleteOnExit();
+                }
+            }
+        }
+    }
+}
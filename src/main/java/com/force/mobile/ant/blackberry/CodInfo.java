@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable description of a COD: its header fields and the signers of its
+ * signature trailer.
+ *
+ * @see CodInspector
+ */
+public final class CodInfo {
+
+    /**
+     * Name of the COD; for a sibling in a big COD, big.cod/sibling.cod.
+     */
+    private final String name;
+
+    /**
+     * Header of the COD.
+     */
+    private final CodHeader header;
+
+    /**
+     * Packed IDs of the distinct signers, in the order they were found.
+     *
+     * @see SignerIndex#pack(String)
+     */
+    private final int[] signerIds;
+
+    /**
+     * @param codName name of the COD
+     * @param codHeader header of the COD
+     * @param ids packed signer IDs; not copied, so must not be changed
+     */
+    CodInfo(final String codName, final CodHeader codHeader,
+            final int[] ids) {
+        name = codName;
+        header = codHeader;
+        signerIds = ids;
+    }
+
+    /**
+     * @return name of the COD
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return header version
+     */
+    public int getVersion() {
+        return header.getVersion();
+    }
+
+    /**
+     * @return size of the code section in bytes
+     */
+    public int getCodeSize() {
+        return header.getCodeSize();
+    }
+
+    /**
+     * @return size of the data section in bytes
+     */
+    public int getDataSize() {
+        return header.getDataSize();
+    }
+
+    /**
+     * @return COD flags
+     */
+    public int getFlags() {
+        return header.getFlags();
+    }
+
+    /**
+     * @return number of distinct signers
+     */
+    public int getSignerCount() {
+        return signerIds.length;
+    }
+
+    /**
+     * @param index signer number, below {@link #getSignerCount()}
+     * @return packed ID of the signer
+     */
+    public int getSignerId(final int index) {
+        return signerIds[index];
+    }
+
+    /**
+     * @return IDs of the signers, in the order they were found
+     */
+    public List<String> getSigners() {
+        List<String> names = new ArrayList<String>(signerIds.length);
+        for (int id : signerIds) {
+            names.add(SignerIndex.unpack(id));
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @param signer signer ID, e.g. RBB
+     * @return true if the COD carries a signature by the signer
+     */
+    public boolean isSignedBy(final String signer) {
+        int id = SignerIndex.pack(signer);
+        for (int signerId : signerIds) {
+            if (signerId == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name + " v" + getVersion() + " " + getSigners();
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the header and signers of CODs held in memory or in files, without
+ * depending on Ant. All methods are thread-safe.
+ *
+ * In-memory CODs are read in place: buffers are neither copied nor moved.
+ * For files only the header and the signature trailer are read.
+ */
+public final class CodInspector {
+
+    /**
+     * CODs of this header version or older carry no signatures.
+     */
+    public static final int MIN_VERSION = 74;
+
+    /**
+     * Length of a signer ID in a signature record.
+     */
+    static final int SIGNER_ID_LENGTH = 4;
+
+    /**
+     * Only sign type in use.
+     */
+    private static final int SIGN_TYPE = 1;
+
+    /**
+     * Number of leading bytes that tell a COD from a zip.
+     */
+    static final int MAGIC_LENGTH = 4;
+
+    /**
+     * First bytes of a zip file, "PK\3\4", as read big-endian.
+     */
+    private static final int ZIP_MAGIC = 0x504B0304;
+
+    /**
+     * Longest signature trailer read. A COD carries a handful of records of
+     * a few hundred bytes each, so anything near this is not a real trailer
+     * and is refused rather than allocated.
+     */
+    static final int MAX_TRAILER_LENGTH = 1 << 20;
+
+    /**
+     * Initial capacity of the buffer holding the signature trailer of a
+     * streamed COD of unknown length; enough for four 128-byte signatures.
+     */
+    private static final int TRAILER_CAPACITY = 1024;
+
+    /**
+     * Not instantiable.
+     */
+    private CodInspector() {
+    }
+
+    /**
+     * Reads a COD held in a buffer, from its position to its limit. The
+     * buffer's position and content are unchanged.
+     *
+     * @param cod the COD
+     * @param name name to give the COD
+     * @return the COD's header and signers
+     * @throws BadCodException if the buffer does not hold a signed COD
+     */
+    public static CodInfo inspect(final ByteBuffer cod, final String name)
+        throws BadCodException {
+        CodHeader header = readHeader(cod, name);
+        if (header.getTrailerOffset() > cod.remaining()) {
+            throw new BadCodException(name + " is truncated",
+                    BadCodException.Kind.TRUNCATED);
+        }
+        ByteBuffer trailer = cod.duplicate();
+        trailer.position(cod.position() + (int) header.getTrailerOffset());
+        return describe(name, header, trailer);
+    }
+
+    /**
+     * Reads a COD held in an array.
+     *
+     * @param cod the COD
+     * @param name name to give the COD
+     * @return the COD's header and signers
+     * @throws BadCodException if the array does not hold a signed COD
+     */
+    public static CodInfo inspect(final byte[] cod, final String name)
+        throws BadCodException {
+        return inspect(ByteBuffer.wrap(cod), name);
+    }
+
+    /**
+     * Reads a COD or big COD file. Siblings of a big COD are named
+     * big.cod/sibling.cod.
+     *
+     * @param file the file
+     * @return one COD for a plain COD, or each sibling of a big COD
+     * @throws IOException upon failure to read
+     * @throws BadCodException if the file, or a sibling, is not a signed COD
+     */
+    public static List<CodInfo> inspect(final Path file)
+        throws IOException, BadCodException {
+        String name = file.getFileName().toString();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC_LENGTH);
+            if (channel.size() < magic.capacity()) {
+                throw new BadCodException(name + " is not a COD");
+            }
+            ZipDirectory.readFully(channel, magic, 0);
+            if (!isZip(magic)) {
+                return Arrays.asList(inspect(channel, 0, channel.size(),
+                        name));
+            }
+            return inspectBigCod(file, channel, name);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the siblings of a big COD. Stored siblings are read in place;
+     * compressed ones are inflated from the same channel as a stream, of
+     * which only the header and signature trailer are kept. A zip
+     * whose directory cannot be read is opened as a {@link ZipFile}.
+     *
+     * @param file the big COD
+     * @param channel open channel to the big COD
+     * @param name name of the big COD
+     * @return each sibling
+     * @throws IOException upon failure to read
+     * @throws BadCodException if a sibling is not a signed COD
+     */
+    private static List<CodInfo> inspectBigCod(final Path file,
+            final FileChannel channel, final String name)
+        throws IOException, BadCodException {
+        ZipDirectory directory = ZipDirectory.read(channel);
+        if (directory == null) {
+            return inspectZipFile(file, name);
+        }
+        List<CodInfo> cods = new ArrayList<CodInfo>();
+        for (ZipDirectory.Entry entry : directory.getEntries()) {
+            String siblingName = name + File.separator + entry.getName();
+            if (entry.getMethod() == ZipEntry.STORED
+                    && entry.getCompressedSize() == entry.getSize()) {
+                cods.add(inspect(channel, entry.getDataOffset(channel),
+                        entry.getSize(), siblingName));
+            } else {
+                cods.add(inspect(entry.open(channel), entry.getSize(),
+                        siblingName));
+            }
+        }
+        return cods;
+    }
+
+    /**
+     * Reads the siblings of a big COD through {@link ZipFile}, for archives
+     * such as Zip64 ones that {@link ZipDirectory} does not understand.
+     *
+     * @param file the big COD
+     * @param name name of the big COD
+     * @return each sibling
+     * @throws IOException upon failure to read
+     * @throws BadCodException if a sibling is not a signed COD
+     */
+    private static List<CodInfo> inspectZipFile(final Path file,
+            final String name) throws IOException, BadCodException {
+        List<CodInfo> cods = new ArrayList<CodInfo>();
+        ZipFile zip = new ZipFile(file.toFile());
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                cods.add(inspect(zip.getInputStream(entry),
+                        entry.getSize(), name + File.separator
+                        + entry.getName()));
+            }
+        } finally {
+            zip.close();
+        }
+        return cods;
+    }
+
+    /**
+     * Reads a COD from a stream, such as an inflating one, and closes the
+     * stream. Only the header and the signature trailer are held; the code
+     * and data sections are skipped as they stream past.
+     *
+     * @param in the COD's content
+     * @param size length of the COD, or -1 if unknown
+     * @param name name to give the COD
+     * @return the COD's header and signers
+     * @throws IOException upon failure to read
+     * @throws BadCodException if the stream does not hold a signed COD
+     */
+    static CodInfo inspect(final InputStream in, final long size,
+            final String name) throws IOException, BadCodException {
+        try {
+            byte[] headerBytes = new byte[CodHeader.LENGTH];
+            if (readAtMost(in, headerBytes, headerBytes.length)
+                    < headerBytes.length) {
+                throw new BadCodException(name + " is not a COD");
+            }
+            CodHeader header = readHeader(ByteBuffer.wrap(headerBytes), name);
+            long body = header.getTrailerOffset() - CodHeader.LENGTH;
+            if (size >= 0 && body + CodHeader.LENGTH > size
+                    || skipAtMost(in, body) < body) {
+                throw new BadCodException(name + " is truncated",
+                        BadCodException.Kind.TRUNCATED);
+            }
+            return describe(name, header, readTrailer(in,
+                    size >= 0 ? size - header.getTrailerOffset() : -1, name));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads up to len bytes, stopping early only at the end of the stream.
+     *
+     * @param in stream to read
+     * @param b buffer receiving the bytes from its start
+     * @param len number of bytes wanted
+     * @return number of bytes read
+     * @throws IOException upon failure to read
+     */
+    static int readAtMost(final InputStream in, final byte[] b,
+            final int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int n = in.read(b, read, len - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * Skips up to n bytes, stopping early only at the end of the stream.
+     * A stream whose skip makes no progress is read a byte at a time to tell
+     * a slow stream from an ended one.
+     *
+     * @param in stream to skip through
+     * @param n number of bytes to skip
+     * @return number of bytes skipped
+     * @throws IOException upon failure to read
+     */
+    static long skipAtMost(final InputStream in, final long n)
+        throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            long done = in.skip(n - skipped);
+            if (done <= 0) {
+                if (in.read() < 0) {
+                    break;
+                }
+                done = 1;
+            }
+            skipped += done;
+        }
+        return skipped;
+    }
+
+    /**
+     * Reads the signature trailer of a streamed COD.
+     *
+     * @param in stream positioned at the start of the trailer
+     * @param length length of the trailer, or -1 to read to the end of the
+     *            stream
+     * @param fileName name to report the COD by
+     * @return the bytes read, from position 0; fewer than length if the
+     *         stream ended early
+     * @throws IOException upon failure to read
+     * @throws BadCodException the trailer is longer than
+     *             {@link #MAX_TRAILER_LENGTH}
+     */
+    static ByteBuffer readTrailer(final InputStream in,
+            final long length, final String fileName)
+        throws IOException, BadCodException {
+        if (length >= 0) {
+            byte[] trailer = new byte[trailerLength(length,
+                    fileName)];
+            return ByteBuffer.wrap(trailer, 0,
+                    readAtMost(in, trailer, trailer.length));
+        }
+        byte[] trailer = new byte[TRAILER_CAPACITY];
+        int read = 0;
+        while (true) {
+            if (read == trailer.length) {
+                if (read == MAX_TRAILER_LENGTH) {
+                    if (in.read() < 0) {
+                        return ByteBuffer.wrap(trailer, 0, read);
+                    }
+                    throw new BadCodException(fileName + " has a signature"
+                            + " trailer of more than " + read + " bytes",
+                            BadCodException.Kind.TRAILER_TOO_LONG);
+                }
+                trailer = Arrays.copyOf(trailer, Math.min(trailer.length * 2,
+                        MAX_TRAILER_LENGTH));
+            }
+            int n = in.read(trailer, read, trailer.length - read);
+            if (n < 0) {
+                return ByteBuffer.wrap(trailer, 0, read);
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Reads a COD stored at a known position in a channel, reading only its
+     * header and signature trailer.
+     *
+     * @param channel open channel
+     * @param start offset of the COD in the channel
+     * @param length length of the COD
+     * @param name name to give the COD
+     * @return the COD's header and signers
+     * @throws IOException upon failure to read
+     * @throws BadCodException if the channel does not hold a signed COD
+     */
+    static CodInfo inspect(final FileChannel channel, final long start,
+            final long length, final String name)
+        throws IOException, BadCodException {
+        if (length < CodHeader.LENGTH) {
+            throw new BadCodException(name + " is not a COD");
+        }
+        ByteBuffer headerBytes = ByteBuffer.allocate(CodHeader.LENGTH);
+        ZipDirectory.readFully(channel, headerBytes, start);
+        headerBytes.flip();
+        CodHeader header = readHeader(headerBytes, name);
+        long trailerOffset = header.getTrailerOffset();
+        if (trailerOffset > length) {
+            throw new BadCodException(name + " is truncated",
+                    BadCodException.Kind.TRUNCATED);
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(trailerLength(
+                length - trailerOffset, name));
+        ZipDirectory.readFully(channel, trailer, start + trailerOffset);
+        trailer.flip();
+        return describe(name, header, trailer);
+    }
+
+    /**
+     * Tells a zip, such as a big COD, from a COD by its leading bytes. Every
+     * reader routes files with this one check.
+     *
+     * @param magic buffer holding the leading bytes from index 0 up to its
+     *            limit; unchanged
+     * @return true if the bytes start a zip's first local file header
+     */
+    static boolean isZip(final ByteBuffer magic) {
+        return magic.limit() >= MAGIC_LENGTH && magic.getInt(0) == ZIP_MAGIC;
+    }
+
+    /**
+     * Checks that a signature trailer is short enough to read into memory.
+     *
+     * @param length length of the trailer in bytes
+     * @param name name to report the COD by
+     * @return the length, as an int
+     * @throws BadCodException the trailer is over {@link #MAX_TRAILER_LENGTH}
+     */
+    static int trailerLength(final long length, final String name)
+        throws BadCodException {
+        if (length > MAX_TRAILER_LENGTH) {
+            throw new BadCodException(name + " has a " + length
+                    + " byte signature trailer, more than "
+                    + MAX_TRAILER_LENGTH,
+                    BadCodException.Kind.TRAILER_TOO_LONG);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Reads a COD header and checks that its version carries signatures.
+     *
+     * @param buffer buffer positioned at the start of the COD; unchanged
+     * @param name name of the COD
+     * @return the header
+     * @throws BadCodException if the buffer does not hold a signed COD header
+     */
+    static CodHeader readHeader(final ByteBuffer buffer, final String name)
+        throws BadCodException {
+        CodHeader header = CodHeader.read(buffer, name);
+        if (header.getVersion() <= MIN_VERSION) {
+            throw new BadCodException("File version not above "
+                    + MIN_VERSION + ".", BadCodException.Kind.OLD_VERSION);
+        }
+        return header;
+    }
+
+    /**
+     * Reads the signature records of a COD trailer, from the buffer's
+     * position to its limit. The buffer is unchanged. Each record must end
+     * within the trailer; the loop is bounded by its length rather than by
+     * running out of bytes.
+     *
+     * @param trailer every byte after the data section
+     * @param trailerOffset offset of the trailer from the start of the COD
+     * @param name name of the COD
+     * @param info receives each record and its signer
+     * @throws BadCodException if a record has an unknown sign type or is cut
+     *             short by the end of the trailer
+     */
+    static void readRecords(final ByteBuffer trailer, final long trailerOffset,
+            final String name, final CodSigningInfo info)
+        throws BadCodException {
+        final int start = trailer.position();
+        final int limit = trailer.limit();
+        int position = start;
+        while (position < limit) {
+            long recordOffset = trailerOffset + position - start;
+            if (limit - position < SignatureRecord.HEADER_LENGTH
+                    + SIGNER_ID_LENGTH) {
+                throw truncatedRecord(name, recordOffset);
+            }
+            int signType = CodHeader.readLittleEndianShort(trailer, position);
+            if (signType != SIGN_TYPE) {
+                throw new BadCodException("Sign_type is not 1.  Sign_type = "
+                        + signType, BadCodException.Kind.BAD_SIGN_TYPE);
+            }
+            int signLength = CodHeader.readLittleEndianShort(trailer,
+                    position + 2);
+            int end = position + SignatureRecord.HEADER_LENGTH
+                    + Math.max(signLength, SIGNER_ID_LENGTH);
+            if (end > limit) {
+                throw truncatedRecord(name, recordOffset);
+            }
+            position += SignatureRecord.HEADER_LENGTH;
+            int signerId = 0;
+            int shift = Integer.SIZE - Byte.SIZE;
+            for (int i = 0; i < SIGNER_ID_LENGTH; i++) {
+                int b = trailer.get(position + i) & 0xFF;
+                if (b != 0) {
+                    signerId |= b << shift;
+                    shift -= Byte.SIZE;
+                }
+            }
+            info.addRecord(signType, signerId, (int) recordOffset,
+                    signLength);
+            position = end;
+        }
+    }
+
+    /**
+     * @param name name of the COD
+     * @param recordOffset offset of the record from the start of the COD
+     * @return the failure of a record cut short by the end of the COD
+     */
+    private static BadCodException truncatedRecord(final String name,
+            final long recordOffset) {
+        return new BadCodException(name + " ends inside the signature record"
+                + " at offset " + recordOffset,
+                BadCodException.Kind.TRUNCATED_RECORD);
+    }
+
+    /**
+     * Builds the immutable description of a COD.
+     *
+     * @param name name of the COD
+     * @param header header of the COD
+     * @param trailer signature trailer, from its position to its limit
+     * @return the COD's header and signers
+     * @throws BadCodException if a record has an unknown sign type
+     */
+    private static CodInfo describe(final String name, final CodHeader header,
+            final ByteBuffer trailer) throws BadCodException {
+        CodSigningInfo info = new CodSigningInfo(name);
+        readRecords(trailer, header.getTrailerOffset(), name, info);
+        int[] ids = new int[info.getSignerCount()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = info.getSignerId(i);
+        }
+        return new CodInfo(name, header, ids);
+    }
+}
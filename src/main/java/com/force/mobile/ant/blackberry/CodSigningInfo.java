@@ -24,8 +24,17 @@
  * POSSIBILITY OF SUCH DAMAGE.
  */
 package com.force.mobile.ant.blackberry;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Contains information about signing for a given COD file.
@@ -41,18 +50,112 @@ public class CodSigningInfo {
     private final String filename;
 
     /**
-     * A list of signers for this COD.
-     * This will NOT be null, it will empty if there are no signers.
+     * Initial capacity of {@link #signerIds}; most CODs have four signers.
      */
-    private final Set<String> signers;
+    private static final int INITIAL_SIGNERS = 4;
 
     /**
-     * Constructor that takes a filename and initializes a new Hashset.
+     * Packed IDs of the signers of this COD, in the order they were found.
+     * Only the first {@link #signerCount} elements are used.
+     *
+     * @see SignerIndex#pack(String)
+     */
+    private int[] signerIds;
+
+    /**
+     * Number of signers of this COD.
+     */
+    private int signerCount;
+
+    /**
+     * Identifies the bytes the signers were read from, or null if the COD
+     * could not be read completely: the SHA-1 of its header and signature
+     * trailer, whether it is a plain COD or a sibling in a big COD.
+     */
+    private byte[] digest;
+
+    /**
+     * SHA-1 of every byte of the COD, or null if the COD was not read whole.
+     * Only computed when descriptors are checked.
+     */
+    private byte[] contentDigest;
+
+    /**
+     * Why the COD could not be read, or null if it was read.
+     */
+    private BadCodException.Kind error;
+
+    /**
+     * Number of bytes read to find the signers; zero if they were taken from
+     * a cache or an identical COD.
+     */
+    private long bytesRead;
+
+    /**
+     * Header of the COD, or null if it was not read in this run.
+     */
+    private CodHeader header;
+
+    /**
+     * Length of the COD in bytes, or -1 if unknown.
+     */
+    private long length = -1;
+
+    /**
+     * Packed signer ID of each signature record, in trailer order. Only the
+     * first {@link #recordCount} elements are used, as in the two arrays
+     * below.
+     */
+    private int[] recordSigners;
+
+    /**
+     * Sign type of each signature record.
+     */
+    private int[] recordTypes;
+
+    /**
+     * Offset of each signature record from the start of the COD.
+     */
+    private int[] recordOffsets;
+
+    /**
+     * Length of each signature record's signer ID and signature.
+     */
+    private int[] recordLengths;
+
+    /**
+     * Number of signature records.
+     */
+    private int recordCount;
+
+    /**
+     * File the COD was read from, or null if unknown.
+     */
+    private File source;
+
+    /**
+     * Zip entry holding the COD if it is a compressed sibling, else null.
+     */
+    private String sourceEntry;
+
+    /**
+     * Offset of the COD in its source file or zip entry.
+     */
+    private long sourceOffset;
+
+    /**
+     * Whether reading the file stopped after this COD, leaving the file's
+     * later siblings unread.
+     */
+    private boolean siblingsSkipped;
+
+    /**
+     * Constructor that takes a filename and initializes an empty signer set.
      * @param file name of file whose signers are being checked
      */
     public CodSigningInfo(final String file) {
         filename = file;
-        signers = new HashSet<String>();
+        signerIds = new int[INITIAL_SIGNERS];
     }
 
     /**
@@ -61,7 +164,42 @@ public class CodSigningInfo {
      * @return true if the set of signers did not already contain this signer
      */
     public final boolean addSigner(final String signer) {
-        return signers.add(signer);
+        return addSigner(SignerIndex.pack(signer));
+    }
+
+    /**
+     * Adds a signer, given as a packed ID, to this COD's signers.
+     * @param signerId packed Signer ID that has been found in this cod file
+     * @return true if the set of signers did not already contain this signer
+     */
+    public final boolean addSigner(final int signerId) {
+        for (int i = 0; i < signerCount; i++) {
+            if (signerIds[i] == signerId) {
+                return false;
+            }
+        }
+        if (signerCount == signerIds.length) {
+            signerIds = Arrays.copyOf(signerIds, signerCount * 2);
+        }
+        signerIds[signerCount++] = signerId;
+        return true;
+    }
+
+    /**
+     * Number of distinct signers of this COD.
+     * @return number of signers
+     */
+    public final int getSignerCount() {
+        return signerCount;
+    }
+
+    /**
+     * Packed ID of one of this COD's signers.
+     * @param index index of the signer, less than {@link #getSignerCount()}
+     * @return the packed Signer ID
+     */
+    public final int getSignerId(final int index) {
+        return signerIds[index];
     }
 
     /**
@@ -74,11 +212,264 @@ public class CodSigningInfo {
     }
 
     /**
-     * Accessor for the set of signers for this file.
+     * Accessor for the content digest of this COD.
+     * @return digest of the COD, or null if it was not read completely
+     */
+    public final byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Modifier for the content digest of this COD.
+     * @param codDigest digest identifying the COD's content
+     */
+    public final void setDigest(final byte[] codDigest) {
+        digest = codDigest;
+    }
+
+    /**
+     * Accessor for the SHA-1 of this COD's bytes.
+     * @return SHA-1 of the whole COD, or null if it was not read whole
+     */
+    public final byte[] getContentDigest() {
+        return contentDigest;
+    }
+
+    /**
+     * Modifier for the SHA-1 of this COD's bytes.
+     * @param sha1 SHA-1 of the whole COD
+     */
+    public final void setContentDigest(final byte[] sha1) {
+        contentDigest = sha1;
+    }
+
+    /**
+     * Accessor for the problem found reading this COD.
+     * @return why the COD could not be read, or null if it was read
+     */
+    public final BadCodException.Kind getError() {
+        return error;
+    }
+
+    /**
+     * Records a problem found reading this COD.
+     * @param problem why the COD could not be read
+     */
+    public final void setError(final BadCodException.Kind problem) {
+        error = problem;
+    }
+
+    /**
+     * Accessor for the number of bytes read from this COD.
+     * @return bytes read to find the signers
+     */
+    public final long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Modifier for the number of bytes read from this COD.
+     * @param count bytes read to find the signers
+     */
+    public final void setBytesRead(final long count) {
+        bytesRead = count;
+    }
+
+    /**
+     * Accessor for the COD's header.
+     * @return the header, or null if the COD was not read in this run
+     */
+    public final CodHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Modifier for the COD's header.
+     * @param codHeader header that was read
+     */
+    public final void setHeader(final CodHeader codHeader) {
+        header = codHeader;
+    }
+
+    /**
+     * Accessor for the COD's length.
+     * @return length of the COD in bytes, or -1 if unknown
+     */
+    public final long getLength() {
+        return length;
+    }
+
+    /**
+     * Modifier for the COD's length.
+     * @param codLength length of the COD in bytes
+     */
+    public final void setLength(final long codLength) {
+        length = codLength;
+    }
+
+    /**
+     * Records a signature record and adds its signer.
+     * @param signType sign type read from the record
+     * @param signerId packed ID of the record's signer
+     * @param offset offset of the record from the start of the COD
+     * @param length length of the record's signer ID and signature
+     */
+    public final void addRecord(final int signType, final int signerId,
+            final int offset, final int length) {
+        if (recordSigners == null) {
+            recordTypes = new int[INITIAL_SIGNERS];
+            recordSigners = new int[INITIAL_SIGNERS];
+            recordOffsets = new int[INITIAL_SIGNERS];
+            recordLengths = new int[INITIAL_SIGNERS];
+        } else if (recordCount == recordSigners.length) {
+            recordTypes = Arrays.copyOf(recordTypes, recordCount * 2);
+            recordSigners = Arrays.copyOf(recordSigners, recordCount * 2);
+            recordOffsets = Arrays.copyOf(recordOffsets, recordCount * 2);
+            recordLengths = Arrays.copyOf(recordLengths, recordCount * 2);
+        }
+        recordTypes[recordCount] = signType;
+        recordSigners[recordCount] = signerId;
+        recordOffsets[recordCount] = offset;
+        recordLengths[recordCount] = length;
+        recordCount++;
+        addSigner(signerId);
+    }
+
+    /**
+     * Number of signature records, including repeated signers. Zero if the
+     * signers were taken from the verification cache or a daemon.
+     * @return number of records
+     */
+    public final int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Describes one signature record.
+     * @param index index of the record, less than {@link #getRecordCount()}
+     * @return where the record is and who signed it
+     */
+    public final SignatureRecord getRecord(final int index) {
+        if (index >= recordCount) {
+            throw new IndexOutOfBoundsException("record " + index + " of "
+                    + recordCount);
+        }
+        return new SignatureRecord(recordTypes[index], recordSigners[index],
+                recordOffsets[index], recordLengths[index]);
+    }
+
+    /**
+     * Records where the COD was read from, so that signatures can be read
+     * later.
+     * @param file file the COD was read from
+     * @param entry name of the zip entry holding the COD if it is a
+     *        compressed sibling, else null
+     * @param offset offset of the COD in the file or entry
+     */
+    public final void setSource(final File file, final String entry,
+            final long offset) {
+        source = file;
+        sourceEntry = entry;
+        sourceOffset = offset;
+    }
+
+    /**
+     * Records that reading the file stopped after this COD, e.g. in
+     * fail-fast mode, so the file's signing information is incomplete.
+     */
+    public final void skipLaterSiblings() {
+        siblingsSkipped = true;
+    }
+
+    /**
+     * @return true if the file's siblings after this COD were not read
+     */
+    public final boolean areLaterSiblingsSkipped() {
+        return siblingsSkipped;
+    }
+
+    /**
+     * Reads the signature bytes of one record from the COD's file. Nothing
+     * is kept in memory; each call reads the file again.
+     * @param index index of the record, less than {@link #getRecordCount()}
+     * @return the signature, without the signer ID
+     * @throws IOException if the file cannot be read or its source is unknown
+     */
+    public final byte[] readSignature(final int index) throws IOException {
+        SignatureRecord record = getRecord(index);
+        if (source == null) {
+            throw new IOException("Source of " + filename + " is unknown");
+        }
+        byte[] signature = new byte[record.getSignatureLength()];
+        long position = sourceOffset + record.getSignatureOffset();
+        if (sourceEntry == null) {
+            RandomAccessFile in = new RandomAccessFile(source, "r");
+            try {
+                in.seek(position);
+                in.readFully(signature);
+            } finally {
+                in.close();
+            }
+            return signature;
+        }
+        ZipFile zip = new ZipFile(source);
+        try {
+            ZipEntry entry = zip.getEntry(sourceEntry);
+            if (entry == null) {
+                throw new IOException(sourceEntry + " not found in "
+                        + source);
+            }
+            DataInputStream in = new DataInputStream(
+                    zip.getInputStream(entry));
+            try {
+                long skipped = 0;
+                while (skipped < position) {
+                    long n = in.skip(position - skipped);
+                    if (n <= 0) {
+                        throw new EOFException(filename + " ends early");
+                    }
+                    skipped += n;
+                }
+                in.readFully(signature);
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.close();
+        }
+        return signature;
+    }
+
+    /**
+     * Copies what was read about another COD with the same content: its
+     * signers, header, length and signature records, but not its source.
+     * @param other COD to copy
+     */
+    final void copyContent(final CodSigningInfo other) {
+        for (int i = 0; i < other.signerCount; i++) {
+            addSigner(other.signerIds[i]);
+        }
+        header = other.header;
+        length = other.length;
+        for (int i = 0; i < other.recordCount; i++) {
+            addRecord(other.recordTypes[i], other.recordSigners[i],
+                    other.recordOffsets[i], other.recordLengths[i]);
+        }
+    }
+
+    /**
+     * Accessor for the set of signers for this file. The set is a read-only
+     * snapshot built on each call: it does not change as signers are added,
+     * and signers can only be added with {@link #addSigner(String)}. Use
+     * {@link #getSignerId(int)} to avoid allocating.
      * @return all signers who have signed this cod file
      */
     public final Set<String> getSigners() {
-        return signers;
+        Set<String> signers = new HashSet<String>();
+        for (int i = 0; i < signerCount; i++) {
+            signers.add(SignerIndex.unpack(signerIds[i]));
+        }
+        return Collections.unmodifiableSet(signers);
     }
 
 }
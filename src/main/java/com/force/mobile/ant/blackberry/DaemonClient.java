@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection to a {@link VerificationDaemon} on this machine. Requests are
+ * answered one at a time; the connection may be shared by worker threads.
+ */
+final class DaemonClient implements Closeable {
+
+    /**
+     * Time allowed to connect or to wait for a reply, in milliseconds.
+     */
+    private static final int TIMEOUT = 10000;
+
+    /**
+     * Connection to the daemon.
+     */
+    private final Socket socket;
+
+    /**
+     * Replies from the daemon.
+     */
+    private final BufferedReader in;
+
+    /**
+     * Requests to the daemon.
+     */
+    private final Writer out;
+
+    /**
+     * The daemon's token, sent before every request.
+     */
+    private final String token;
+
+    /**
+     * Connects to a daemon.
+     *
+     * @param port loopback port the daemon listens on
+     * @throws IOException if no daemon answers, or its token cannot be read
+     */
+    DaemonClient(final int port) throws IOException {
+        token = new String(Files.readAllBytes(
+                VerificationDaemon.tokenFile(port).toPath()),
+                StandardCharsets.UTF_8).trim();
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), port), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+        out = new OutputStreamWriter(socket.getOutputStream(),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Asks the daemon for the signers of a file.
+     *
+     * @param file COD or big COD
+     * @return signing information of each COD in the file, or null if the
+     *         daemon does not watch the file
+     * @throws IOException if the daemon cannot be reached or replies
+     *         unexpectedly
+     */
+    synchronized List<CodSigningInfo> cods(final File file)
+        throws IOException {
+        out.write(token + " CODS " + file.getAbsolutePath() + "\n");
+        out.flush();
+        List<CodSigningInfo> cods = new ArrayList<CodSigningInfo>();
+        while (true) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("Daemon closed the connection");
+            }
+            if (line.equals("UNKNOWN")) {
+                return null;
+            }
+            if (line.equals("END")) {
+                return cods;
+            }
+            cods.add(VerificationDaemon.parse(line));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
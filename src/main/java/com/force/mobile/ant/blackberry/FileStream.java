@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * Files of a list of filesets, found by a background thread while earlier
+ * files are being verified. At most a fixed number of files wait between
+ * the scanner and the reader, so memory does not grow with the number of
+ * files. The iterator must be used from a single thread.
+ */
+final class FileStream implements Iterator<File> {
+
+    /**
+     * Marks the end of the scan in the queue.
+     */
+    private static final File END = new File("");
+
+    /**
+     * Files found and not yet read.
+     */
+    private final BlockingQueue<File> queue;
+
+    /**
+     * Thread walking the filesets.
+     */
+    private final Thread scanner;
+
+    /**
+     * Files the scan is restricted to, or null to walk the filesets.
+     */
+    private volatile Collection<Path> only;
+
+    /**
+     * Number of files returned so far.
+     */
+    private long returned;
+
+    /**
+     * Error that ended the scan, or null.
+     */
+    private volatile RuntimeException failure;
+
+    /**
+     * Next file to return, END once the scan is over, or null if unknown.
+     */
+    private File next;
+
+    /**
+     * @param fileSets filesets to scan, in order
+     * @param project project the filesets belong to
+     * @param capacity maximum number of files waiting to be read
+     */
+    FileStream(final List<FileSet> fileSets, final Project project,
+            final int capacity) {
+        queue = new ArrayBlockingQueue<File>(capacity);
+        scanner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scan(fileSets, project);
+            }
+        }, "verifySignatures-scanner");
+        scanner.setDaemon(true);
+    }
+
+    /**
+     * Restricts the scan to the given files: those included by a fileset are
+     * found without walking its directory. Must be called before
+     * {@link #start()}.
+     *
+     * @param files absolute, normalized paths of the files to consider
+     */
+    void restrictTo(final Collection<Path> files) {
+        only = files;
+    }
+
+    /**
+     * Starts scanning.
+     */
+    void start() {
+        scanner.start();
+    }
+
+    /**
+     * Stops scanning, e.g. once verification has failed in fail-fast mode.
+     */
+    void close() {
+        scanner.interrupt();
+    }
+
+    /**
+     * @return number of files found so far, whether returned or waiting
+     */
+    long getFound() {
+        long waiting = queue.size();
+        if (next != null) {
+            waiting++;
+        }
+        if (next == END || queue.contains(END)) {
+            waiting--;
+        }
+        return returned + waiting;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BuildException("Interrupted while scanning", e);
+            }
+        }
+        if (next == END && failure != null) {
+            throw failure;
+        }
+        return next != END;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        File file = next;
+        next = null;
+        returned++;
+        return file;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Walks each fileset in turn, then marks the end of the scan.
+     *
+     * @param fileSets filesets to scan
+     * @param project project the filesets belong to
+     */
+    private void scan(final List<FileSet> fileSets, final Project project) {
+        try {
+            for (FileSet fs : fileSets) {
+                StreamingScanner ds = new StreamingScanner();
+                fs.setupDirectoryScanner(ds, project);
+                if (only != null) {
+                    ds.offerInto(queue, only);
+                } else {
+                    ds.scanInto(queue);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed by the reader, which no longer waits for the end
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
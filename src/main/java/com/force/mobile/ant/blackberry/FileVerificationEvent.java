@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the verification of one file. Only loaded
+ * through {@link VerificationMetrics} when the jdk.jfr module is present.
+ */
+@Name("com.force.mobile.ant.blackberry.FileVerification")
+@Label("COD File Verification")
+@Category({"Ant", "verifySignatures"})
+@Description("Reading the signers of a COD or big COD file")
+final class FileVerificationEvent extends Event {
+
+    /** Path of the file. */
+    @Label("Path")
+    private String path;
+
+    /** Number of CODs in the file. */
+    @Label("CODs")
+    private int cods;
+
+    /** Bytes of COD content read. */
+    @Label("Bytes Read")
+    @DataAmount
+    private long bytesRead;
+
+    /** Whether the file failed verification. */
+    @Label("Broken")
+    private boolean broken;
+
+    /**
+     * Creates an event and starts timing it.
+     *
+     * @return the started event
+     */
+    static FileVerificationEvent start() {
+        FileVerificationEvent event = new FileVerificationEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops timing and commits the event, if it is enabled.
+     *
+     * @param result outcome of verifying the file
+     * @param read bytes of COD content read
+     */
+    void finish(final VerificationResult result, final long read) {
+        end();
+        if (shouldCommit()) {
+            path = result.getFile().getPath();
+            cods = result.getCods().size();
+            bytesRead = read;
+            broken = result.isBroken();
+            commit();
+        }
+    }
+}
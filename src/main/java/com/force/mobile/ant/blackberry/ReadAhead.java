@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the header and signature trailer of upcoming COD files on a pool of
+ * I/O threads, so that opening and reading the next files overlaps with
+ * parsing the current ones. This hides the per-file latency of slow file
+ * systems.
+ *
+ * The reader iterates over the files through this object, which fetches a
+ * fixed number of files ahead of it. Each file returned must be taken or
+ * discarded once. Big CODs, files that are not CODs and files
+ * that cannot be read are not fetched; the reader reads those itself and
+ * reports their errors. Instances are thread-safe.
+ */
+final class ReadAhead implements Iterator<File> {
+
+    /**
+     * Files to fetch, in order.
+     */
+    private final Iterator<File> files;
+
+    /**
+     * Number of files fetched ahead of the reader.
+     */
+    private final int depth;
+
+    /**
+     * Files fetched and not yet returned to the reader, in order; used by
+     * the reader's thread only.
+     */
+    private final Queue<File> upcoming = new ArrayDeque<File>();
+
+    /**
+     * I/O threads.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Fetches not yet taken, by file.
+     */
+    private final Map<File, Future<Fetched>> pending =
+        new ConcurrentHashMap<File, Future<Fetched>>();
+
+    /**
+     * @param toFetch files to fetch, in the order they will be read
+     * @param inFlight number of files fetched ahead of the reader
+     */
+    ReadAhead(final Iterator<File> toFetch, final int inFlight) {
+        files = toFetch;
+        depth = inFlight;
+        pool = Executors.newFixedThreadPool(inFlight, new IoThreadFactory());
+    }
+
+    @Override
+    public boolean hasNext() {
+        refill();
+        return !upcoming.isEmpty();
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        File file = upcoming.remove();
+        refill();
+        return file;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Waits for a file's header and trailer.
+     *
+     * @param file file about to be read
+     * @return the fetched bytes, or null if the file was not fetched and must
+     *         be read by the caller
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Fetched take(final File file) throws InterruptedException {
+        Future<Fetched> fetch = pending.remove(file);
+        if (fetch == null) {
+            return null;
+        }
+        try {
+            return fetch.get();
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops a file that was not taken, for example because its signers were
+     * found in a cache.
+     *
+     * @param file file that will not be taken
+     */
+    void discard(final File file) {
+        Future<Fetched> fetch = pending.remove(file);
+        if (fetch != null) {
+            fetch.cancel(false);
+        }
+    }
+
+    /**
+     * Stops fetching.
+     */
+    void close() {
+        pool.shutdownNow();
+        pending.clear();
+    }
+
+    /**
+     * Starts fetching files until {@link #depth} are ahead of the reader.
+     */
+    private void refill() {
+        while (upcoming.size() < depth && files.hasNext()) {
+            final File file = files.next();
+            upcoming.add(file);
+            if (pending.containsKey(file)) {
+                // listed twice; the second read is left to the caller
+                continue;
+            }
+            pending.put(file, pool.submit(new Callable<Fetched>() {
+                @Override
+                public Fetched call() {
+                    return fetch(file);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Reads a plain COD's header and signature trailer.
+     *
+     * @param file file to read
+     * @return the bytes read, or null if the file is left to the caller
+     */
+    static Fetched fetch(final File file) {
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                long length = channel.size();
+                if (length < CodHeader.LENGTH) {
+                    return null;
+                }
+                ByteBuffer header = ByteBuffer.allocate(CodHeader.LENGTH);
+                ZipDirectory.readFully(channel, header, 0);
+                header.flip();
+                long trailerOffset = CodInspector.readHeader(
+                        header.duplicate(), file.getName()).getTrailerOffset();
+                if (trailerOffset > length) {
+                    return null;
+                }
+                ByteBuffer trailer = ByteBuffer.allocate(
+                        CodInspector.trailerLength(length - trailerOffset,
+                                file.getName()));
+                ZipDirectory.readFully(channel, trailer, trailerOffset);
+                trailer.flip();
+                return new Fetched(header, trailer, length);
+            } finally {
+                channel.close();
+            }
+        } catch (BadCodException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Header and signature trailer of a plain COD.
+     */
+    static final class Fetched {
+        /** The header. */
+        private final ByteBuffer header;
+        /** Every byte after the data section. */
+        private final ByteBuffer trailer;
+        /** Length of the file. */
+        private final long length;
+
+        /**
+         * @param headerBytes the header
+         * @param trailerBytes every byte after the data section
+         * @param fileLength length of the file
+         */
+        Fetched(final ByteBuffer headerBytes, final ByteBuffer trailerBytes,
+                final long fileLength) {
+            header = headerBytes;
+            trailer = trailerBytes;
+            length = fileLength;
+        }
+
+        /**
+         * @return the header, positioned at its start
+         */
+        ByteBuffer getHeader() {
+            return header.duplicate();
+        }
+
+        /**
+         * @return the trailer, positioned at its start
+         */
+        ByteBuffer getTrailer() {
+            return trailer.duplicate();
+        }
+
+        /**
+         * @return length of the file
+         */
+        long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Creates named daemon threads for the I/O pool.
+     */
+    private static final class IoThreadFactory implements ThreadFactory {
+        /** Number of threads created so far. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "verifySignatures-io-"
+                    + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
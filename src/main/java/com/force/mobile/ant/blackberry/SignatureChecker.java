@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks COD signatures against a public key for each signer. A signature
+ * covers the COD from its first byte up to its signature trailer: the header,
+ * code and data sections.
+ *
+ * The checker itself is immutable once configured and may be shared by
+ * threads; each COD is checked through its own {@link Session}, which feeds
+ * every byte of the signed region to all of its signers' signatures in a
+ * single pass.
+ */
+public final class SignatureChecker {
+
+    /**
+     * Key and algorithm of each signer, by packed signer ID.
+     */
+    private final Map<Integer, Verifier> verifiers =
+        new LinkedHashMap<Integer, Verifier>();
+
+    /**
+     * Encoding of signer IDs and algorithm names in fingerprints.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Adds the public key of a signer.
+     *
+     * @param signer signer ID, e.g. RBB
+     * @param key the signer's public key
+     * @param algorithm signature algorithm, e.g. SHA1withRSA
+     * @throws GeneralSecurityException if the algorithm is unknown or the
+     *         key does not suit it
+     */
+    public void addKey(final String signer, final PublicKey key,
+            final String algorithm) throws GeneralSecurityException {
+        Signature.getInstance(algorithm).initVerify(key);
+        verifiers.put(SignerIndex.pack(signer), new Verifier(key, algorithm));
+    }
+
+    /**
+     * @param signerId packed signer ID
+     * @return true if the signer's signatures are checked
+     */
+    public boolean hasKey(final int signerId) {
+        return verifiers.containsKey(signerId);
+    }
+
+    /**
+     * Adds each signer's key and algorithm to a digest, so that results
+     * decided with these keys can be told from those decided with others.
+     *
+     * @param digest digest to update
+     */
+    public void fingerprint(final MessageDigest digest) {
+        for (Map.Entry<Integer, Verifier> entry : verifiers.entrySet()) {
+            digest.update(SignerIndex.unpack(entry.getKey()).getBytes(UTF8));
+            digest.update((byte) 0);
+            digest.update(entry.getValue().algorithm.getBytes(UTF8));
+            digest.update((byte) 0);
+            digest.update(entry.getValue().key.getEncoded());
+        }
+    }
+
+    /**
+     * @return true if no keys are configured
+     */
+    public boolean isEmpty() {
+        return verifiers.isEmpty();
+    }
+
+    /**
+     * Starts checking a COD whose signers are already known.
+     *
+     * @param cod signers of the COD; only those with a key are checked
+     * @return a session over the COD's signed region
+     * @throws GeneralSecurityException if a signature cannot be set up
+     */
+    public Session start(final CodSigningInfo cod)
+        throws GeneralSecurityException {
+        Session session = new Session();
+        for (int i = 0; i < cod.getSignerCount(); i++) {
+            session.add(cod.getSignerId(i));
+        }
+        return session;
+    }
+
+    /**
+     * Starts checking a COD whose signers will only be known once its signed
+     * region has been read: every configured signer is prepared.
+     *
+     * @return a session over the COD's signed region
+     * @throws GeneralSecurityException if a signature cannot be set up
+     */
+    public Session start() throws GeneralSecurityException {
+        Session session = new Session();
+        for (Integer signerId : verifiers.keySet()) {
+            session.add(signerId);
+        }
+        return session;
+    }
+
+    /**
+     * Checks the signatures of one COD. Not thread-safe.
+     */
+    public final class Session {
+        /**
+         * Signatures being computed, by packed signer ID.
+         */
+        private final Map<Integer, Signature> signatures =
+            new LinkedHashMap<Integer, Signature>();
+
+        /**
+         * Prepares a signer's signature, if the signer has a key.
+         *
+         * @param signerId packed signer ID
+         * @throws GeneralSecurityException if the signature cannot be set up
+         */
+        private void add(final int signerId)
+            throws GeneralSecurityException {
+            Verifier verifier = verifiers.get(signerId);
+            if (verifier != null && !signatures.containsKey(signerId)) {
+                signatures.put(signerId, verifier.newSignature());
+            }
+        }
+
+        /**
+         * @return true if no signature of this COD is checked
+         */
+        public boolean isEmpty() {
+            return signatures.isEmpty();
+        }
+
+        /**
+         * Feeds bytes of the signed region, from the buffer's position to its
+         * limit. The buffer is left unchanged.
+         *
+         * @param bytes next bytes of the signed region
+         * @throws SignatureException if a signature is in a bad state
+         */
+        public void update(final ByteBuffer bytes) throws SignatureException {
+            for (Signature signature : signatures.values()) {
+                signature.update(bytes.duplicate());
+            }
+        }
+
+        /**
+         * Feeds bytes of the signed region.
+         *
+         * @param bytes array holding the bytes
+         * @param offset offset of the first byte
+         * @param length number of bytes
+         * @throws SignatureException if a signature is in a bad state
+         */
+        public void update(final byte[] bytes, final int offset,
+                final int length) throws SignatureException {
+            for (Signature signature : signatures.values()) {
+                signature.update(bytes, offset, length);
+            }
+        }
+
+        /**
+         * @param signerId packed signer ID
+         * @return true if the signer's signature is checked
+         */
+        public boolean checks(final int signerId) {
+            return signatures.containsKey(signerId);
+        }
+
+        /**
+         * Checks a signer's signature once the whole signed region has been
+         * fed. Each signer can be checked once.
+         *
+         * @param signerId packed signer ID
+         * @param signature the signature from the record
+         * @return true if the signature matches; false if it does not, or the
+         *         signer has no key
+         */
+        public boolean verify(final int signerId, final byte[] signature) {
+            Signature computed = signatures.remove(signerId);
+            if (computed == null) {
+                return false;
+            }
+            try {
+                return computed.verify(signature);
+            } catch (SignatureException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Public key and algorithm of one signer.
+     */
+    private static final class Verifier {
+        /** The signer's public key. */
+        private final PublicKey key;
+        /** Signature algorithm. */
+        private final String algorithm;
+
+        /**
+         * @param publicKey the signer's public key
+         * @param signatureAlgorithm signature algorithm
+         */
+        Verifier(final PublicKey publicKey, final String signatureAlgorithm) {
+            key = publicKey;
+            algorithm = signatureAlgorithm;
+        }
+
+        /**
+         * @return a signature ready to verify
+         * @throws NoSuchAlgorithmException if the algorithm is unknown
+         * @throws InvalidKeyException if the key does not suit it
+         */
+        Signature newSignature()
+            throws NoSuchAlgorithmException, InvalidKeyException {
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initVerify(key);
+            return signature;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+/**
+ * Position of one signature record in a COD's signature trailer. Each record
+ * is a little-endian sign type and length, followed by that many bytes: a
+ * four character signer ID and the signature itself.
+ *
+ * @see CodSigningInfo#getRecord(int)
+ */
+public final class SignatureRecord {
+
+    /**
+     * Length of the sign type and length fields.
+     */
+    public static final int HEADER_LENGTH = 4;
+
+    /**
+     * Sign type of the record.
+     */
+    private final int signType;
+
+    /**
+     * Packed ID of the signer.
+     */
+    private final int signerId;
+
+    /**
+     * Offset of the record from the start of the COD.
+     */
+    private final long offset;
+
+    /**
+     * Length of the signer ID and signature.
+     */
+    private final int length;
+
+    /**
+     * @param type sign type of the record
+     * @param id packed ID of the signer
+     * @param recordOffset offset of the record from the start of the COD
+     * @param recordLength length of the signer ID and signature
+     */
+    SignatureRecord(final int type, final int id, final long recordOffset,
+            final int recordLength) {
+        signType = type;
+        signerId = id;
+        offset = recordOffset;
+        length = recordLength;
+    }
+
+    /**
+     * @return sign type of the record
+     */
+    public int getSignType() {
+        return signType;
+    }
+
+    /**
+     * @return packed ID of the signer
+     */
+    public int getSignerId() {
+        return signerId;
+    }
+
+    /**
+     * @return ID of the signer
+     */
+    public String getSigner() {
+        return SignerIndex.unpack(signerId);
+    }
+
+    /**
+     * @return offset of the record from the start of the COD
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length of the signer ID and signature, as recorded
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return offset of the signature bytes from the start of the COD
+     */
+    public long getSignatureOffset() {
+        return offset + HEADER_LENGTH + CodInspector.SIGNER_ID_LENGTH;
+    }
+
+    /**
+     * @return number of signature bytes
+     */
+    public int getSignatureLength() {
+        return Math.max(0, length - CodInspector.SIGNER_ID_LENGTH);
+    }
+
+    @Override
+    public String toString() {
+        return getSigner() + "@" + offset + "+" + length;
+    }
+}
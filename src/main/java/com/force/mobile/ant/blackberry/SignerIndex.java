@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.util.Collection;
+
+/**
+ * A set of expected signers, compiled so that checking a COD against it is a
+ * single mask comparison.
+ *
+ * Signer IDs are at most four bytes long and are handled as packed
+ * {@code int}s: the non-zero bytes of the ID, in order, from the most
+ * significant byte down. Each expected signer is given a bit; a COD's
+ * {@link #mask(CodSigningInfo) mask} has the bit set for every expected
+ * signer it was signed by. Instances are immutable.
+ */
+public final class SignerIndex {
+
+    /**
+     * Maximum number of signers an index can hold.
+     */
+    public static final int MAX_SIGNERS = Long.SIZE;
+
+    /**
+     * Maximum length, in bytes, of a signer ID.
+     */
+    public static final int MAX_ID_LENGTH = 4;
+
+    /**
+     * Packed IDs of the expected signers, by bit.
+     */
+    private final int[] ids;
+
+    /**
+     * Mask with a bit set for every expected signer.
+     */
+    private final long allMask;
+
+    /**
+     * @param signers expected signer IDs
+     * @throws IllegalArgumentException if there are more than
+     *             {@link #MAX_SIGNERS} signers or an ID is too long
+     */
+    public SignerIndex(final Collection<String> signers) {
+        if (signers.size() > MAX_SIGNERS) {
+            throw new IllegalArgumentException("At most " + MAX_SIGNERS
+                    + " signers can be expected");
+        }
+        ids = new int[signers.size()];
+        int i = 0;
+        for (String signer : signers) {
+            ids[i++] = pack(signer);
+        }
+        allMask = ids.length == MAX_SIGNERS ? -1L : (1L << ids.length) - 1;
+    }
+
+    /**
+     * Computes which expected signers have signed a COD.
+     *
+     * @param cod signing information of the COD
+     * @return mask with bit i set if {@link #getSigner(int) signer i} signed
+     */
+    public long mask(final CodSigningInfo cod) {
+        long mask = 0;
+        for (int j = 0; j < cod.getSignerCount(); j++) {
+            int found = cod.getSignerId(j);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == found) {
+                    mask |= 1L << i;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @param mask mask computed by {@link #mask(CodSigningInfo)}
+     * @return true if every expected signer is in the mask
+     */
+    public boolean isSatisfied(final long mask) {
+        return (mask & allMask) == allMask;
+    }
+
+    /**
+     * @return number of expected signers
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param bit index of an expected signer
+     * @return the signer's packed ID
+     */
+    public int getSignerId(final int bit) {
+        return ids[bit];
+    }
+
+    /**
+     * @param bit index of an expected signer
+     * @return the signer's ID
+     */
+    public String getSigner(final int bit) {
+        return unpack(ids[bit]);
+    }
+
+    /**
+     * Packs a signer ID into an int.
+     *
+     * @param signer signer ID, at most {@link #MAX_ID_LENGTH} characters
+     * @return the packed ID
+     * @throws IllegalArgumentException if the ID is too long
+     */
+    public static int pack(final String signer) {
+        if (signer.length() > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("Invalid COD Signer ID: '"
+                    + signer + "'");
+        }
+        int id = 0;
+        int shift = Integer.SIZE - Byte.SIZE;
+        for (int i = 0; i < signer.length(); i++) {
+            int b = signer.charAt(i) & 0xFF;
+            if (b != 0) {
+                id |= b << shift;
+                shift -= Byte.SIZE;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Unpacks a signer ID.
+     *
+     * @param id packed ID
+     * @return the signer ID as a string
+     */
+    public static String unpack(final int id) {
+        StringBuilder signer = new StringBuilder(MAX_ID_LENGTH);
+        for (int shift = Integer.SIZE - Byte.SIZE; shift >= 0;
+                shift -= Byte.SIZE) {
+            int b = (id >>> shift) & 0xFF;
+            if (b != 0) {
+                signer.append((char) b);
+            }
+        }
+        return signer.toString();
+    }
+}
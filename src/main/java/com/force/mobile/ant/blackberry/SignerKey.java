@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Public key of one signer, configured as a nested {@code <key>} element of
+ * verifySignatures. The key file holds an X.509 SubjectPublicKeyInfo, either
+ * DER encoded or PEM encoded as {@code -----BEGIN PUBLIC KEY-----}.
+ */
+public final class SignerKey {
+
+    /**
+     * Signature algorithm used unless another is set.
+     */
+    public static final String DEFAULT_ALGORITHM = "SHA1withRSA";
+
+    /**
+     * PEM header of a public key.
+     */
+    private static final String PEM_BEGIN = "-----BEGIN PUBLIC KEY-----";
+
+    /**
+     * PEM footer of a public key.
+     */
+    private static final String PEM_END = "-----END PUBLIC KEY-----";
+
+    /**
+     * Signer ID the key belongs to.
+     */
+    private String signer;
+
+    /**
+     * File holding the key.
+     */
+    private File file;
+
+    /**
+     * Signature algorithm.
+     */
+    private String algorithm = DEFAULT_ALGORITHM;
+
+    /**
+     * @param id signer ID the key belongs to, e.g. RBB
+     */
+    public void setSigner(final String id) {
+        signer = id;
+    }
+
+    /**
+     * @return signer ID the key belongs to
+     */
+    public String getSigner() {
+        return signer;
+    }
+
+    /**
+     * @param keyFile file holding the public key
+     */
+    public void setFile(final File keyFile) {
+        file = keyFile;
+    }
+
+    /**
+     * @param name signature algorithm, e.g. SHA256withRSA or SHA256withECDSA
+     */
+    public void setAlgorithm(final String name) {
+        algorithm = name;
+    }
+
+    /**
+     * @return signature algorithm
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Reads the public key. Its type is taken from the signature algorithm:
+     * RSA, EC for ECDSA, or DSA.
+     *
+     * @return the key
+     * @throws IOException if the file cannot be read
+     * @throws GeneralSecurityException if the file does not hold a key of the
+     *         expected type
+     */
+    public PublicKey load() throws IOException, GeneralSecurityException {
+        if (signer == null || file == null) {
+            throw new IOException("A key needs a signer and a file");
+        }
+        byte[] encoded = Files.readAllBytes(file.toPath());
+        String text = new String(encoded, StandardCharsets.US_ASCII);
+        int begin = text.indexOf(PEM_BEGIN);
+        if (begin >= 0) {
+            int end = text.indexOf(PEM_END, begin);
+            if (end < 0) {
+                throw new IOException(file + " has no " + PEM_END);
+            }
+            encoded = Base64.getMimeDecoder().decode(text.substring(
+                    begin + PEM_BEGIN.length(), end));
+        }
+        return KeyFactory.getInstance(keyType()).generatePublic(
+                new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * @return key algorithm implied by the signature algorithm
+     */
+    private String keyType() {
+        String upper = algorithm.toUpperCase(Locale.ENGLISH);
+        if (upper.endsWith("WITHECDSA")) {
+            return "EC";
+        }
+        if (upper.endsWith("WITHDSA")) {
+            return "DSA";
+        }
+        return "RSA";
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.tools.ant.types.selectors.TokenizedPath;
+import org.apache.tools.ant.types.selectors.TokenizedPattern;
+
+/**
+ * {@link SignerPolicy Signer policies} compiled into one
+ * {@link SignerIndex} and a table of masks, so that a COD's signers are
+ * masked once and checked against its policy with two mask comparisons.
+ *
+ * Every signer named by the default signers or by any policy is given a bit
+ * of the index. Each policy becomes a {@link Rule} holding its tokenized
+ * pattern and its required, forbidden and optional masks. A COD gets the
+ * rule of the first policy whose pattern matches its path, or the default
+ * rule, which requires the default signers, if none does. Instances are
+ * immutable.
+ */
+public final class SignerPolicies {
+
+    /**
+     * Every signer named, by bit.
+     */
+    private final SignerIndex signers;
+
+    /**
+     * One rule per policy, in the order the policies were given.
+     */
+    private final Rule[] rules;
+
+    /**
+     * Rule of CODs no policy matches.
+     */
+    private final Rule defaultRule;
+
+    /**
+     * Absolute paths of the directories COD paths are made relative to,
+     * longest first.
+     */
+    private final String[] bases;
+
+    /**
+     * Compiles the default signers alone.
+     *
+     * @param defaults signers CODs must have
+     * @throws IllegalArgumentException if there are more than
+     *             {@link SignerIndex#MAX_SIGNERS} signers or an ID is too long
+     */
+    public SignerPolicies(final Collection<String> defaults) {
+        this(defaults, Collections.<SignerPolicy>emptyList(),
+                Collections.<File>emptyList());
+    }
+
+    /**
+     * Compiles policies.
+     *
+     * @param defaults signers CODs no policy matches must have
+     * @param policies policies, in order of precedence
+     * @param directories directories, typically those of the filesets,
+     *            that COD paths are made relative to before matching
+     * @throws IllegalArgumentException if a policy has no pattern or both
+     *             requires and forbids a signer, if more than
+     *             {@link SignerIndex#MAX_SIGNERS} signers are named or if an
+     *             ID is too long
+     */
+    public SignerPolicies(final Collection<String> defaults,
+            final List<SignerPolicy> policies,
+            final Collection<File> directories) {
+        Set<String> all = new LinkedHashSet<String>(defaults);
+        for (SignerPolicy policy : policies) {
+            if (policy.getPattern() == null) {
+                throw new IllegalArgumentException("A policy needs a pattern");
+            }
+            all.addAll(policy.getRequired());
+            all.addAll(policy.getForbidden());
+            all.addAll(policy.getOptional());
+        }
+        signers = new SignerIndex(all);
+        defaultRule = new Rule(null, mask(defaults), 0, 0);
+        rules = new Rule[policies.size()];
+        for (int i = 0; i < rules.length; i++) {
+            SignerPolicy policy = policies.get(i);
+            long required = mask(policy.getRequired());
+            long forbidden = mask(policy.getForbidden());
+            if ((required & forbidden) != 0) {
+                throw new IllegalArgumentException("The policy for "
+                        + policy.getPattern()
+                        + " both requires and forbids a signer");
+            }
+            rules[i] = new Rule(policy.getPattern(), required, forbidden,
+                    mask(policy.getOptional()));
+        }
+        List<String> paths = new ArrayList<String>();
+        for (File directory : directories) {
+            paths.add(directory.getAbsolutePath());
+        }
+        Collections.sort(paths, new Comparator<String>() {
+            @Override
+            public int compare(final String a, final String b) {
+                return b.length() - a.length();
+            }
+        });
+        bases = paths.toArray(new String[paths.size()]);
+    }
+
+    /**
+     * @param ids signer IDs, all in {@link #signers}
+     * @return mask with the bit of each signer set
+     */
+    private long mask(final Collection<String> ids) {
+        long mask = 0;
+        for (String id : ids) {
+            int packed = SignerIndex.pack(id);
+            for (int i = 0; i < signers.size(); i++) {
+                if (signers.getSignerId(i) == packed) {
+                    mask |= 1L << i;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return every signer named, by the bit of the masks
+     */
+    public SignerIndex getSigners() {
+        return signers;
+    }
+
+    /**
+     * Finds the rule of a COD.
+     *
+     * @param file file the COD was read from
+     * @param cod the COD or one of the file's siblings
+     * @return rule of the first policy matching the COD's path, or the
+     *         default rule
+     */
+    public Rule select(final File file, final CodSigningInfo cod) {
+        if (rules.length == 0) {
+            return defaultRule;
+        }
+        String path = relativePath(file);
+        String prefix = file.getName() + File.separator;
+        String name = cod.getFilename();
+        if (name.startsWith(prefix)) {
+            path = path + File.separator + name.substring(prefix.length());
+        }
+        TokenizedPath tokens = new TokenizedPath(path);
+        for (Rule rule : rules) {
+            if (rule.pattern.matchPath(tokens, true)) {
+                return rule;
+            }
+        }
+        return defaultRule;
+    }
+
+    /**
+     * @param file a COD file
+     * @return the file's path relative to the longest directory holding it,
+     *         or its path as given if no directory holds it
+     */
+    private String relativePath(final File file) {
+        String path = file.getAbsolutePath();
+        for (String base : bases) {
+            if (path.length() > base.length() && path.startsWith(base)
+                    && path.charAt(base.length()) == File.separatorChar) {
+                return path.substring(base.length() + 1);
+            }
+        }
+        return file.getPath();
+    }
+
+    /**
+     * One compiled policy.
+     */
+    public static final class Rule {
+        /**
+         * Tokenized pattern, or null for the default rule.
+         */
+        private final TokenizedPattern pattern;
+
+        /**
+         * Bits of the signers a COD must have.
+         */
+        private final long required;
+
+        /**
+         * Bits of the signers a COD may not have.
+         */
+        private final long forbidden;
+
+        /**
+         * Bits of the signers a COD may have.
+         */
+        private final long optional;
+
+        /**
+         * @param paths Ant pattern, or null for the default rule
+         * @param requiredMask bits of the signers a COD must have
+         * @param forbiddenMask bits of the signers a COD may not have
+         * @param optionalMask bits of the signers a COD may have
+         */
+        Rule(final String paths, final long requiredMask,
+                final long forbiddenMask, final long optionalMask) {
+            pattern = paths == null ? null
+                    : new TokenizedPattern(normalize(paths));
+            required = requiredMask;
+            forbidden = forbiddenMask;
+            optional = optionalMask;
+        }
+
+        /**
+         * Normalizes a pattern the way a fileset does: either slash
+         * separates, and a trailing separator matches everything below.
+         *
+         * @param paths Ant pattern
+         * @return the pattern with platform separators
+         */
+        private static String normalize(final String paths) {
+            String normalized = paths.replace('/', File.separatorChar)
+                    .replace('\\', File.separatorChar);
+            if (normalized.endsWith(File.separator)) {
+                normalized += "**";
+            }
+            return normalized;
+        }
+
+        /**
+         * @return the policy's pattern, or null for the default rule
+         */
+        public String getPattern() {
+            return pattern == null ? null : pattern.getPattern();
+        }
+
+        /**
+         * @return bits of the signers a COD must have
+         */
+        public long getRequired() {
+            return required;
+        }
+
+        /**
+         * @return bits of the signers a COD may not have
+         */
+        public long getForbidden() {
+            return forbidden;
+        }
+
+        /**
+         * @return bits of the signers a COD may have
+         */
+        public long getOptional() {
+            return optional;
+        }
+
+        /**
+         * @param mask a COD's mask from {@link SignerPolicies#getSigners()}
+         * @return true if every required signer and no forbidden one is in
+         *         the mask
+         */
+        public boolean isSatisfied(final long mask) {
+            return (mask & required) == required && (mask & forbidden) == 0;
+        }
+    }
+}
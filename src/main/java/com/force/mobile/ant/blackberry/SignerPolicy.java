@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Signers expected of the CODs whose paths match a pattern, configured as a
+ * nested {@code <policy>} element of verifySignatures. The pattern is an Ant
+ * pattern matched against the path of a COD relative to its fileset's
+ * directory; a sibling of a big COD is matched as the big COD's path followed
+ * by {@code /} and the sibling's name. For example
+ *
+ * <pre>
+ * &lt;policy pattern="platform/**" required="RBB,RRT,RCR"/&gt;
+ * &lt;policy pattern="apps/**" required="RBB,RRT,RCR,SFDC"/&gt;
+ * &lt;policy pattern="thirdparty/**" required="RRT" forbidden="SFDC"/&gt;
+ * </pre>
+ *
+ * A COD passes if it is signed by every required signer and by no forbidden
+ * one. Optional signers are neither; they are only logged when present.
+ */
+public final class SignerPolicy {
+
+    /**
+     * Ant pattern of the paths the policy applies to.
+     */
+    private String pattern;
+
+    /**
+     * Signers every matching COD must have.
+     */
+    private List<String> required = Collections.emptyList();
+
+    /**
+     * Signers no matching COD may have.
+     */
+    private List<String> forbidden = Collections.emptyList();
+
+    /**
+     * Signers a matching COD may have.
+     */
+    private List<String> optional = Collections.emptyList();
+
+    /**
+     * @param paths Ant pattern of the paths the policy applies to, e.g.
+     *            {@code apps/**}
+     */
+    public void setPattern(final String paths) {
+        pattern = paths;
+    }
+
+    /**
+     * @return Ant pattern of the paths the policy applies to
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @param signers comma separated signers every matching COD must have
+     */
+    public void setRequired(final String signers) {
+        required = split(signers);
+    }
+
+    /**
+     * @return signers every matching COD must have
+     */
+    public List<String> getRequired() {
+        return required;
+    }
+
+    /**
+     * @param signers comma separated signers no matching COD may have
+     */
+    public void setForbidden(final String signers) {
+        forbidden = split(signers);
+    }
+
+    /**
+     * @return signers no matching COD may have
+     */
+    public List<String> getForbidden() {
+        return forbidden;
+    }
+
+    /**
+     * @param signers comma separated signers a matching COD may have
+     */
+    public void setOptional(final String signers) {
+        optional = split(signers);
+    }
+
+    /**
+     * @return signers a matching COD may have
+     */
+    public List<String> getOptional() {
+        return optional;
+    }
+
+    /**
+     * Splits a comma separated list of signers, ignoring whitespace around
+     * each signer and empty entries.
+     *
+     * @param signers comma separated signers
+     * @return the signers, in order
+     */
+    static List<String> split(final String signers) {
+        List<String> list = new ArrayList<String>();
+        for (String signer : signers.split(",")) {
+            signer = signer.trim();
+            if (signer.length() > 0) {
+                list.add(signer);
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * Directory scanner that hands each included file to a queue as soon as it
+ * is found, instead of collecting every name before returning. Includes,
+ * excludes, selectors and case sensitivity are those of
+ * {@link DirectoryScanner}; directories that cannot hold an included file are
+ * not entered. Files are found in directory order.
+ */
+final class StreamingScanner extends DirectoryScanner {
+
+    /**
+     * Puts those of the given files that lie below the base directory, exist
+     * and are included on the queue, without walking the directory. Blocks
+     * while the queue is full.
+     *
+     * @param queue receives the included files
+     * @param candidates absolute, normalized paths of the files to consider,
+     *            in the order they are queued
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    void offerInto(final BlockingQueue<File> queue,
+            final Collection<Path> candidates) throws InterruptedException {
+        // Pre-condition: the base directory and patterns have been set
+        // Post-condition: every included candidate has been queued
+        final File base = prepare();
+        if (base == null) {
+            return;
+        }
+        Path root = base.getAbsoluteFile().toPath().normalize();
+        for (Path candidate : candidates) {
+            if (!candidate.startsWith(root) || candidate.equals(root)
+                    || !Files.isRegularFile(candidate)) {
+                continue;
+            }
+            String name = root.relativize(candidate).toString();
+            File found = new File(base, name);
+            if (isIncluded(name) && !isExcluded(name)
+                    && isSelected(name, found)) {
+                queue.put(found);
+            }
+        }
+    }
+
+    /**
+     * Checks the base directory and sets up the patterns.
+     *
+     * @return the base directory, or null if it is missing and that is not
+     *         an error
+     */
+    private File prepare() {
+        final File base = getBasedir();
+        if (base == null || !base.exists()) {
+            if (errorOnMissingDir) {
+                throw new BuildException(base + DOES_NOT_EXIST_POSTFIX);
+            }
+            return null;
+        }
+        if (!base.isDirectory()) {
+            throw new BuildException("basedir " + base
+                    + " is not a directory.");
+        }
+        synchronized (this) {
+            if (includes == null) {
+                includes = new String[] {"**"};
+            }
+            if (excludes == null) {
+                excludes = new String[0];
+            }
+        }
+        // builds the pattern tables couldHoldIncluded() relies on
+        isIncluded("");
+        return base;
+    }
+
+    /**
+     * Walks the base directory, putting every included file on the queue.
+     * Blocks while the queue is full.
+     *
+     * @param queue receives the included files
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    void scanInto(final BlockingQueue<File> queue)
+        throws InterruptedException {
+        // Pre-condition: the base directory and patterns have been set, e.g.
+        //                by FileSet.setupDirectoryScanner()
+        // Post-condition: every included file found has been queued
+        final File base = prepare();
+        if (base == null) {
+            return;
+        }
+        final Path root = base.toPath();
+        Set<FileVisitOption> options = isFollowSymlinks()
+            ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+            : Collections.<FileVisitOption>emptySet();
+        try {
+            Files.walkFileTree(root, options, Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(final Path dir,
+                            final BasicFileAttributes attrs) {
+                        if (dir.equals(root) || couldHoldIncluded(
+                                root.relativize(dir).toString())) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(final Path file,
+                            final BasicFileAttributes attrs) {
+                        if (!attrs.isRegularFile()) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        String name = root.relativize(file).toString();
+                        File found = file.toFile();
+                        if (!isIncluded(name) || isExcluded(name)
+                                || !isSelected(name, found)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        try {
+                            queue.put(found);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return FileVisitResult.TERMINATE;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(final Path file,
+                            final IOException e) {
+                        // unreadable entries are skipped, as by the
+                        // DirectoryScanner, including symbolic link loops
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        } catch (IOException e) {
+            throw new BuildException("Unable to scan " + base, e);
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
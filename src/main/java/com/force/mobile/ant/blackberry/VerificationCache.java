@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of the signers found in COD files, so unchanged files do not
+ * have to be opened again on the next build.
+ *
+ * Entries are keyed by absolute path and are valid while the file's size and
+ * modification time are unchanged. Each entry also keeps a digest of the
+ * bytes the signers were read from (see {@link #digest(List)}), which lets a
+ * file that was touched but not changed be revalidated cheaply.
+ *
+ * The cache is written with a read-merge-write cycle under a file lock and
+ * replaced atomically, so several builds may share one cache file. It holds
+ * at most a fixed number of entries; the least recently used are evicted.
+ * Instances are thread-safe.
+ */
+public final class VerificationCache {
+
+    /**
+     * Magic number at the start of a cache file: "CODC".
+     */
+    private static final int MAGIC = 0x434F4443;
+
+    /**
+     * Version of the cache file format.
+     */
+    private static final int FORMAT_VERSION = 4;
+
+    /**
+     * Orders entries from most to least recently used.
+     */
+    private static final Comparator<Entry> MOST_RECENT_FIRST =
+        new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry a, final Entry b) {
+                return a.lastUsed < b.lastUsed ? 1
+                        : (a.lastUsed == b.lastUsed ? 0 : -1);
+            }
+        };
+
+    /**
+     * Cache file.
+     */
+    private final File file;
+
+    /**
+     * Maximum number of files kept in the cache.
+     */
+    private final int maxEntries;
+
+    /**
+     * Entries by absolute path.
+     */
+    private final Map<String, Entry> entries =
+        new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * @param cacheFile file the cache is kept in
+     * @param capacity maximum number of files kept in the cache
+     */
+    public VerificationCache(final File cacheFile, final int capacity) {
+        file = cacheFile;
+        maxEntries = capacity;
+    }
+
+    /**
+     * Loads the cache file, if there is one.
+     *
+     * @throws IOException if the file exists but cannot be read
+     */
+    public void load() throws IOException {
+        entries.putAll(readEntries(file));
+    }
+
+    /**
+     * Looks up the cached signers of a file.
+     *
+     * @param codFile file to look up
+     * @return the cached entry for this path, or null. The entry may be stale;
+     *         see {@link Entry#matches(long, long)}
+     */
+    public Entry lookup(final File codFile) {
+        return entries.get(codFile.getAbsolutePath());
+    }
+
+    /**
+     * Records the signers found in a file.
+     *
+     * @param codFile file that was read
+     * @param size length of the file
+     * @param modified modification time of the file
+     * @param cods signers found, one element per COD in the file. Every
+     *            element must have a digest.
+     */
+    public void store(final File codFile, final long size,
+            final long modified, final List<CodSigningInfo> cods) {
+        store(codFile, size, modified, cods, null);
+    }
+
+    /**
+     * Records the signers found in a file, identifying its content by a
+     * given key, e.g. the zip directory of a big COD, so that a touched file
+     * can be revalidated without reading its CODs.
+     *
+     * @param codFile file that was read
+     * @param size length of the file
+     * @param modified modification time of the file
+     * @param cods signers found, one element per COD in the file. Every
+     *            element must have a digest.
+     * @param contentKey key of the file's content, or null to derive it
+     *            from the COD digests
+     */
+    public void store(final File codFile, final long size,
+            final long modified, final List<CodSigningInfo> cods,
+            final byte[] contentKey) {
+        String path = codFile.getAbsolutePath();
+        List<Cod> stored = new ArrayList<Cod>(cods.size());
+        for (CodSigningInfo cod : cods) {
+            int[] signers = new int[cod.getSignerCount()];
+            for (int i = 0; i < signers.length; i++) {
+                signers[i] = cod.getSignerId(i);
+            }
+            stored.add(new Cod(cod.getFilename(), cod.getDigest(), signers,
+                    cod.getHeader(), cod.getLength()));
+        }
+        entries.put(path, new Entry(path, size, modified,
+                System.currentTimeMillis(),
+                contentKey != null ? contentKey : digest(cods), stored));
+    }
+
+    /**
+     * Marks an entry as used, recording the file's current modification time.
+     *
+     * @param entry entry that answered a lookup
+     * @param modified current modification time of the file
+     */
+    public void touch(final Entry entry, final long modified) {
+        entries.put(entry.path, new Entry(entry.path, entry.size, modified,
+                System.currentTimeMillis(), entry.digest, entry.cods));
+    }
+
+    /**
+     * Merges this cache into the cache file and replaces it atomically.
+     *
+     * The on-disk cache is re-read under an exclusive lock so that entries
+     * written by concurrent builds are kept; for a path present in both, the
+     * more recently used entry wins.
+     *
+     * @throws IOException if the cache file cannot be written
+     */
+    public void save() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        synchronized (VerificationCache.class) {
+            RandomAccessFile lockFile = new RandomAccessFile(
+                    new File(file.getPath() + ".lock"), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    Map<String, Entry> merged;
+                    try {
+                        merged = readEntries(file);
+                    } catch (IOException e) {
+                        // a damaged cache is rebuilt rather than kept forever
+                        merged = new HashMap<String, Entry>();
+                    }
+                    for (Entry mine : entries.values()) {
+                        Entry theirs = merged.get(mine.path);
+                        if (theirs == null || theirs.lastUsed < mine.lastUsed) {
+                            merged.put(mine.path, mine);
+                        }
+                    }
+                    write(evict(merged.values()));
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps the most recently used entries, up to the cache's capacity.
+     *
+     * @param all candidate entries
+     * @return entries to keep
+     */
+    private List<Entry> evict(final Iterable<Entry> all) {
+        List<Entry> kept = new ArrayList<Entry>();
+        for (Entry e : all) {
+            kept.add(e);
+        }
+        if (kept.size() > maxEntries) {
+            Collections.sort(kept, MOST_RECENT_FIRST);
+            kept = kept.subList(0, maxEntries);
+        }
+        return kept;
+    }
+
+    /**
+     * Writes entries to a temporary file and moves it over the cache file.
+     *
+     * @param kept entries to write
+     * @throws IOException upon failure to write
+     */
+    private void write(final List<Entry> kept) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeShort(FORMAT_VERSION);
+                out.writeInt(kept.size());
+                for (Entry e : kept) {
+                    e.write(out);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Reads every entry of a cache file.
+     *
+     * @param cacheFile file to read
+     * @return entries by path; empty if the file does not exist or was
+     *         written in another format
+     * @throws IOException upon failure to read
+     */
+    private static Map<String, Entry> readEntries(final File cacheFile)
+        throws IOException {
+        Map<String, Entry> read = new HashMap<String, Entry>();
+        if (!cacheFile.isFile()) {
+            return read;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(cacheFile)));
+        try {
+            if (in.readInt() != MAGIC
+                    || in.readUnsignedShort() != FORMAT_VERSION) {
+                return read;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry e = Entry.read(in);
+                read.put(e.path, e);
+            }
+        } finally {
+            in.close();
+        }
+        return read;
+    }
+
+    /**
+     * Digest identifying the content of a file by the bytes its signers were
+     * read from: the digest of each COD it contains, in order.
+     *
+     * @param cods every COD in the file. Each must have a digest.
+     * @return SHA-1 over the COD digests
+     */
+    static byte[] digest(final List<CodSigningInfo> cods) {
+        MessageDigest sha = sha1();
+        for (CodSigningInfo cod : cods) {
+            sha.update(cod.getDigest());
+        }
+        return sha.digest();
+    }
+
+    /**
+     * @return a new SHA-1 message digest
+     */
+    static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Cached signers of one file.
+     */
+    public static final class Entry {
+        /** Absolute path of the file. */
+        private final String path;
+        /** Length of the file. */
+        private final long size;
+        /** Modification time of the file. */
+        private final long modified;
+        /** When the entry was last used, for eviction. */
+        private final long lastUsed;
+        /** Digest of the file's content; see {@link #digest(List)}. */
+        private final byte[] digest;
+        /** CODs in the file. */
+        private final List<Cod> cods;
+
+        /**
+         * @param filePath absolute path of the file
+         * @param length length of the file
+         * @param mtime modification time of the file
+         * @param used when the entry was last used
+         * @param contentDigest digest of the file's content
+         * @param fileCods CODs in the file
+         */
+        Entry(final String filePath, final long length, final long mtime,
+                final long used, final byte[] contentDigest,
+                final List<Cod> fileCods) {
+            path = filePath;
+            size = length;
+            modified = mtime;
+            lastUsed = used;
+            digest = contentDigest;
+            cods = fileCods;
+        }
+
+        /**
+         * Checks whether the file is unchanged since it was cached.
+         *
+         * @param length current length of the file
+         * @param mtime current modification time of the file
+         * @return true if both match
+         */
+        public boolean matches(final long length, final long mtime) {
+            return size == length && modified == mtime;
+        }
+
+        /**
+         * @param length current length of the file
+         * @return true if the file still has the cached length
+         */
+        public boolean sameSize(final long length) {
+            return size == length;
+        }
+
+        /**
+         * @param contentDigest digest of the file's current content
+         * @return true if it matches the cached digest
+         */
+        public boolean sameContent(final byte[] contentDigest) {
+            return Arrays.equals(digest, contentDigest);
+        }
+
+        /**
+         * Rebuilds the signing information that was cached.
+         *
+         * @return one CodSigningInfo per COD in the file
+         */
+        public List<CodSigningInfo> getSigningInfo() {
+            List<CodSigningInfo> infos =
+                new ArrayList<CodSigningInfo>(cods.size());
+            for (Cod cod : cods) {
+                CodSigningInfo info = new CodSigningInfo(cod.name);
+                info.setDigest(cod.digest);
+                info.setHeader(cod.header);
+                info.setLength(cod.length);
+                for (int signer : cod.signers) {
+                    info.addSigner(signer);
+                }
+                infos.add(info);
+            }
+            return infos;
+        }
+
+        /**
+         * @param out stream to write the entry to
+         * @throws IOException upon failure to write
+         */
+        private void write(final DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeLong(lastUsed);
+            writeBytes(out, digest);
+            out.writeInt(cods.size());
+            for (Cod cod : cods) {
+                out.writeUTF(cod.name);
+                writeBytes(out, cod.digest);
+                out.writeInt(cod.signers.length);
+                for (int signer : cod.signers) {
+                    out.writeInt(signer);
+                }
+                out.writeLong(cod.length);
+                out.writeBoolean(cod.header != null);
+                if (cod.header != null) {
+                    out.writeShort(cod.header.getVersion());
+                    out.writeShort(cod.header.getCodeSize());
+                    out.writeShort(cod.header.getDataSize());
+                    out.writeShort(cod.header.getFlags());
+                }
+            }
+        }
+
+        /**
+         * @param in stream positioned at an entry
+         * @return the entry read
+         * @throws IOException upon failure to read
+         */
+        private static Entry read(final DataInputStream in)
+            throws IOException {
+            String path = in.readUTF();
+            long size = in.readLong();
+            long modified = in.readLong();
+            long lastUsed = in.readLong();
+            byte[] digest = readBytes(in);
+            int count = readCount(in);
+            List<Cod> cods = new ArrayList<Cod>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] codDigest = readBytes(in);
+                int[] signers = new int[readCount(in)];
+                for (int j = 0; j < signers.length; j++) {
+                    signers[j] = in.readInt();
+                }
+                long length = in.readLong();
+                CodHeader header = null;
+                if (in.readBoolean()) {
+                    header = new CodHeader(in.readUnsignedShort(),
+                            in.readUnsignedShort(), in.readUnsignedShort(),
+                            in.readUnsignedShort());
+                }
+                cods.add(new Cod(name, codDigest, signers, header, length));
+            }
+            return new Entry(path, size, modified, lastUsed, digest, cods);
+        }
+
+        /**
+         * @param in stream to read from
+         * @return a count written with {@link DataOutputStream#writeInt}
+         * @throws IOException upon failure to read, or if the count cannot
+         *             be right
+         */
+        private static int readCount(final DataInputStream in)
+            throws IOException {
+            int count = in.readInt();
+            // every item takes at least a byte of what is left of the file
+            if (count < 0 || count > in.available()) {
+                throw new IOException("Corrupt count " + count);
+            }
+            return count;
+        }
+
+        /**
+         * @param out stream to write to
+         * @param bytes short byte array to write with its length
+         * @throws IOException upon failure to write
+         */
+        private static void writeBytes(final DataOutputStream out,
+                final byte[] bytes) throws IOException {
+            out.writeByte(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * @param in stream to read from
+         * @return a byte array written by {@link #writeBytes}
+         * @throws IOException upon failure to read
+         */
+        private static byte[] readBytes(final DataInputStream in)
+            throws IOException {
+            byte[] bytes = new byte[in.readUnsignedByte()];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Cached signers of one COD or sibling.
+     */
+    private static final class Cod {
+        /** Name of the COD, as in {@link CodSigningInfo#getFilename()}. */
+        private final String name;
+        /** Digest of the COD. */
+        private final byte[] digest;
+        /** Packed IDs of the signers found. */
+        private final int[] signers;
+        /** Header of the COD, or null if unknown. */
+        private final CodHeader header;
+        /** Length of the COD, or -1 if unknown. */
+        private final long length;
+
+        /**
+         * @param codName name of the COD
+         * @param codDigest digest of the COD
+         * @param codSigners signers found
+         * @param codHeader header of the COD, or null if unknown
+         * @param codLength length of the COD, or -1 if unknown
+         */
+        Cod(final String codName, final byte[] codDigest,
+                final int[] codSigners, final CodHeader codHeader,
+                final long codLength) {
+            name = codName;
+            digest = codDigest;
+            signers = codSigners;
+            header = codHeader;
+            length = codLength;
+        }
+    }
+}
@@ -0,0 +1,768 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Keeps the signers of every COD in a set of directories up to date in a
+ * long-running JVM, and answers queries from the verifySignatures task over a
+ * loopback socket.
+ *
+ * Directories are watched with a {@link WatchService}; only created or
+ * modified CODs are read again. A query for a file whose size or modification
+ * time no longer matches its result reads it again first, so answers are
+ * never stale even when a change has not been reported by the watcher yet.
+ *
+ * The protocol is line based, in UTF-8. Only clients that can read the
+ * daemon's token file, which is readable by its owner alone, are answered:
+ * every request starts with the token from {@link #tokenFile(int)} and a
+ * space, and a request without it is answered {@code DENIED} and the
+ * connection closed. After the token the client sends one of:
+ * <ul>
+ * <li>{@code CODS <absolute path>}: the daemon replies with one line
+ * {@code COD <error> <signers> <name>} per COD or sibling, where error is a
+ * {@link BadCodException.Kind} or {@code -} and signers are the packed
+ * signer IDs in hex, comma separated, or {@code -}; then {@code END}. A file
+ * outside the watched directories gets {@code UNKNOWN}.</li>
+ * <li>{@code PING}: the daemon replies {@code PONG}.</li>
+ * <li>{@code SHUTDOWN}: the daemon replies {@code BYE} and exits.</li>
+ * </ul>
+ */
+public final class VerificationDaemon implements Closeable {
+
+    /**
+     * Port the daemon listens on unless told otherwise.
+     */
+    public static final int DEFAULT_PORT = 7465;
+
+    /**
+     * Radix signer IDs are sent in.
+     */
+    private static final int HEX = 16;
+
+    /**
+     * Number of fields before the name in a COD line.
+     */
+    private static final int COD_FIELDS = 4;
+
+    /**
+     * Files whose results are kept. Files clients ask about beyond this are
+     * read and answered but not remembered.
+     */
+    private static final int MAX_RESULTS = 1 << 20;
+
+    /**
+     * Number of random bytes in a token.
+     */
+    private static final int TOKEN_BYTES = 16;
+
+    /**
+     * Comma separated signers verifiers are configured with, or null.
+     */
+    private final String signerList;
+
+    /**
+     * Reads the CODs found by scans and watch events, on one thread at a
+     * time. A new run is started for each batch of events.
+     */
+    private final VerifySignatures watchVerifier;
+
+    /**
+     * Signers whose absence is reported on the console, or null.
+     */
+    private final SignerIndex expected;
+
+    /**
+     * Watched directories, as real paths.
+     */
+    private final List<Path> roots = new ArrayList<Path>();
+
+    /**
+     * Current signers of every COD in the watched directories, keyed by
+     * real path.
+     */
+    private final Map<File, Snapshot> results =
+        new ConcurrentHashMap<File, Snapshot>();
+
+    /**
+     * Watched directories by watch key.
+     */
+    private final Map<WatchKey, Path> keys =
+        new ConcurrentHashMap<WatchKey, Path>();
+
+    /**
+     * Reports changes in the watched directories.
+     */
+    private final WatchService watcher;
+
+    /**
+     * Accepts client connections.
+     */
+    private final ServerSocket server;
+
+    /**
+     * Console the daemon reports to.
+     */
+    private final PrintStream console;
+
+    /**
+     * Released when the daemon is closed.
+     */
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * Secret every request must start with, in UTF-8.
+     */
+    private final byte[] token;
+
+    /**
+     * File the token is written to, for clients to read.
+     */
+    private final File tokenFile;
+
+    /**
+     * Creates a daemon and reads every COD in the given directories.
+     *
+     * @param directories directories to watch, recursively
+     * @param port loopback port to listen on; 0 picks a free port
+     * @param signers comma separated signers to report on, or null
+     * @param out console for status messages
+     * @throws IOException if the directories cannot be watched or the port
+     *         cannot be bound
+     */
+    public VerificationDaemon(final List<File> directories, final int port,
+            final String signers, final PrintStream out) throws IOException {
+        console = out;
+        signerList = signers;
+        watchVerifier = newVerifier(signers);
+        expected = signers == null ? null
+                : new SignerIndex(watchVerifier.getSigners());
+        watcher = FileSystems.getDefault().newWatchService();
+        for (File dir : directories) {
+            Path root = dir.toPath().toRealPath();
+            roots.add(root);
+            scan(root);
+        }
+        server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        byte[] secret = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(secret);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : secret) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, HEX));
+            hex.append(Character.forDigit(b & 0xF, HEX));
+        }
+        token = hex.toString().getBytes(StandardCharsets.UTF_8);
+        tokenFile = tokenFile(getPort());
+        try {
+            writeToken(tokenFile, hex.toString());
+        } catch (IOException e) {
+            server.close();
+            watcher.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Where the daemon on a port keeps its token: in the user's home
+     * directory, so that only the user's builds can talk to the daemon.
+     *
+     * @param port port the daemon listens on
+     * @return the token file
+     */
+    static File tokenFile(final int port) {
+        return new File(new File(System.getProperty("user.home"),
+                ".ant-sigtool"), "daemon-" + port + ".token");
+    }
+
+    /**
+     * Writes a token to a new file only its owner can read. Where the file
+     * system has no POSIX permissions, e.g. on Windows, the file inherits
+     * those of the user's home directory, which is private by default.
+     *
+     * @param file file to replace
+     * @param secret the token
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeToken(final File file, final String secret)
+        throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        Files.deleteIfExists(file.toPath());
+        if (FileSystems.getDefault().supportedFileAttributeViews()
+                .contains("posix")) {
+            Files.createFile(file.toPath(),
+                    PosixFilePermissions.asFileAttribute(
+                            PosixFilePermissions.fromString("rw-------")));
+        }
+        Files.write(file.toPath(), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param signers comma separated signers, or null
+     * @return a single-threaded verifier
+     */
+    private static VerifySignatures newVerifier(final String signers) {
+        VerifySignatures reader = new VerifySignatures();
+        reader.setProject(new Project());
+        reader.setThreads(1);
+        if (signers != null) {
+            reader.setSigners(signers);
+        }
+        return reader;
+    }
+
+    /**
+     * @return the port the daemon listens on
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return number of CODs currently known
+     */
+    public int getFileCount() {
+        return results.size();
+    }
+
+    /**
+     * Starts watching the directories and answering clients, on background
+     * threads.
+     */
+    public void start() {
+        Thread watching = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "verificationDaemon-watcher");
+        watching.setDaemon(true);
+        watching.start();
+        Thread accepting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "verificationDaemon-server");
+        accepting.setDaemon(true);
+        accepting.start();
+    }
+
+    /**
+     * Waits until the daemon is closed, by a client or another thread.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    /**
+     * Stops watching and stops answering clients.
+     */
+    @Override
+    public void close() {
+        if (!tokenFile.delete() && tokenFile.exists()) {
+            console.println("Unable to delete " + tokenFile);
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            console.println("Unable to close server socket: "
+                    + e.getMessage());
+        }
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            console.println("Unable to close watch service: "
+                    + e.getMessage());
+        }
+        closed.countDown();
+    }
+
+    /**
+     * Current signers of a COD, read again first if it changed, with a
+     * verifier of the caller's own.
+     *
+     * @param file COD to look up
+     * @return signing information of each COD in the file, or null if the
+     *         file does not exist or is not in a watched directory
+     */
+    List<CodSigningInfo> lookup(final File file) {
+        return lookup(newVerifier(signerList), file);
+    }
+
+    /**
+     * Current signers of a COD, read again first if it changed.
+     *
+     * @param reader verifier of the calling thread
+     * @param file COD to look up
+     * @return signing information of each COD in the file, or null if the
+     *         file does not exist or is not in a watched directory
+     */
+    private List<CodSigningInfo> lookup(final VerifySignatures reader,
+            final File file) {
+        Path path;
+        try {
+            // resolves "..", links and case so that a path cannot escape
+            // the watched directories or be remembered twice
+            path = file.toPath().toRealPath();
+        } catch (IOException e) {
+            return null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!isWatched(path)) {
+            return null;
+        }
+        File key = path.toFile();
+        Snapshot snapshot = results.get(key);
+        if (snapshot == null || !snapshot.matches(key)) {
+            snapshot = refresh(reader, key);
+        }
+        if (snapshot == null) {
+            return Collections.emptyList();
+        }
+        return snapshot.cods;
+    }
+
+    /**
+     * @param path real path
+     * @return true if the path is in a watched directory
+     */
+    private boolean isWatched(final Path path) {
+        for (Path root : roots) {
+            if (path.startsWith(root)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a directory tree with the watch service and reads its CODs.
+     *
+     * @param dir directory to scan
+     * @throws IOException if the tree cannot be walked
+     */
+    private void scan(final Path dir) throws IOException {
+        watchVerifier.startRun();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path d,
+                    final BasicFileAttributes attrs) throws IOException {
+                keys.put(d.register(watcher,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE), d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path f,
+                    final BasicFileAttributes attrs) {
+                if (isCod(f)) {
+                    refresh(watchVerifier, f.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @param path file name to check
+     * @return true if the file is named like a COD
+     */
+    private static boolean isCod(final Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ENGLISH)
+            .endsWith(".cod");
+    }
+
+    /**
+     * Reads a COD again and records its signers.
+     *
+     * @param reader verifier of the calling thread
+     * @param file real path of the COD
+     * @return the new result, or null if the file no longer exists
+     */
+    private Snapshot refresh(final VerifySignatures reader, final File file) {
+        long size = file.length();
+        long modified = file.lastModified();
+        List<CodSigningInfo> cods;
+        try {
+            cods = reader.readCod(file);
+        } catch (BuildException e) {
+            results.remove(file);
+            return null;
+        }
+        Snapshot snapshot = new Snapshot(size, modified, cods);
+        Snapshot previous = null;
+        if (results.size() < MAX_RESULTS || results.containsKey(file)) {
+            previous = results.put(file, snapshot);
+        }
+        if (expected != null) {
+            boolean broken = isBroken(cods);
+            if (previous == null ? broken : broken != isBroken(previous.cods)) {
+                console.println((broken ? "BROKEN " : "OK ") + file);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param cods signing information of a file
+     * @return true if a COD lacks an expected signer or could not be read
+     */
+    private boolean isBroken(final List<CodSigningInfo> cods) {
+        if (cods.isEmpty()) {
+            return true;
+        }
+        for (CodSigningInfo cod : cods) {
+            if (cod.getSignerCount() == 0
+                    || !expected.isSatisfied(expected.mask(cod))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Processes watch events until the watch service is closed.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = keys.get(key);
+            watchVerifier.startRun();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    handle(dir, event);
+                } catch (IOException e) {
+                    console.println("Unable to rescan " + dir + ": "
+                            + e.getMessage());
+                }
+            }
+            if (!key.reset()) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Applies one watch event.
+     *
+     * @param dir directory the event happened in
+     * @param event the event
+     * @throws IOException if a directory cannot be rescanned
+     */
+    private void handle(final Path dir, final WatchEvent<?> event)
+        throws IOException {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            for (Path root : roots) {
+                scan(root);
+            }
+            return;
+        }
+        if (dir == null) {
+            return;
+        }
+        Path child = dir.resolve((Path) event.context());
+        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            results.remove(child.toFile());
+        } else if (Files.isDirectory(child)) {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                scan(child);
+            }
+        } else if (isCod(child)) {
+            refresh(watchVerifier, child.toFile());
+        }
+    }
+
+    /**
+     * Accepts clients until the server socket is closed.
+     */
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread serving = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(client);
+                }
+            }, "verificationDaemon-client");
+            serving.setDaemon(true);
+            serving.start();
+        }
+    }
+
+    /**
+     * Answers one client's requests until it disconnects. Each client has a
+     * verifier of its own, since verifiers are not thread-safe.
+     *
+     * @param client connected client
+     */
+    private void serve(final Socket client) {
+        VerifySignatures reader = newVerifier(signerList);
+        try {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        client.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(client.getOutputStream(),
+                        StandardCharsets.UTF_8);
+                String request;
+                while ((request = in.readLine()) != null) {
+                    if (!answer(request, reader, out)) {
+                        break;
+                    }
+                    out.flush();
+                }
+                out.flush();
+            } finally {
+                client.close();
+            }
+        } catch (IOException e) {
+            console.println("Client disconnected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers one request.
+     *
+     * @param line line sent by the client: the token, a space and the
+     *            request
+     * @param reader verifier of the client's thread
+     * @param out where the reply is written
+     * @return false if the connection should be closed
+     * @throws IOException upon failure to write
+     */
+    private boolean answer(final String line, final VerifySignatures reader,
+            final Writer out) throws IOException {
+        int space = line.indexOf(' ');
+        if (space < 0 || !MessageDigest.isEqual(token, line.substring(0, space)
+                .getBytes(StandardCharsets.UTF_8))) {
+            out.write("DENIED\n");
+            return false;
+        }
+        String request = line.substring(space + 1);
+        if (request.startsWith("CODS ")) {
+            List<CodSigningInfo> cods = lookup(reader, new File(
+                    request.substring("CODS ".length())));
+            if (cods == null) {
+                out.write("UNKNOWN\n");
+                return true;
+            }
+            for (CodSigningInfo cod : cods) {
+                out.write(format(cod));
+                out.write('\n');
+            }
+            out.write("END\n");
+        } else if (request.equals("PING")) {
+            out.write("PONG\n");
+        } else if (request.equals("SHUTDOWN")) {
+            out.write("BYE\n");
+            out.flush();
+            close();
+            return false;
+        } else {
+            out.write("ERROR unknown request\n");
+        }
+        return true;
+    }
+
+    /**
+     * Formats a COD for the wire.
+     *
+     * @param cod signing information to send
+     * @return the COD line, without a line terminator
+     */
+    static String format(final CodSigningInfo cod) {
+        StringBuilder line = new StringBuilder("COD ");
+        line.append(cod.getError() == null ? "-" : cod.getError().name());
+        line.append(' ');
+        if (cod.getSignerCount() == 0) {
+            line.append('-');
+        }
+        for (int i = 0; i < cod.getSignerCount(); i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(Integer.toHexString(cod.getSignerId(i)));
+        }
+        return line.append(' ').append(cod.getFilename()).toString();
+    }
+
+    /**
+     * Parses a COD line sent by the daemon.
+     *
+     * @param line the line, as produced by {@link #format(CodSigningInfo)}
+     * @return the signing information
+     * @throws IOException if the line is malformed
+     */
+    static CodSigningInfo parse(final String line) throws IOException {
+        String[] fields = line.split(" ", COD_FIELDS);
+        if (fields.length != COD_FIELDS || !fields[0].equals("COD")) {
+            throw new IOException("Unexpected reply from daemon: " + line);
+        }
+        CodSigningInfo cod = new CodSigningInfo(fields[COD_FIELDS - 1]);
+        try {
+            if (!fields[1].equals("-")) {
+                cod.setError(BadCodException.Kind.valueOf(fields[1]));
+            }
+            if (!fields[2].equals("-")) {
+                for (String id : fields[2].split(",")) {
+                    cod.addSigner((int) Long.parseLong(id, HEX));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unexpected reply from daemon: " + line, e);
+        }
+        return cod;
+    }
+
+    /**
+     * Runs a daemon until a client asks it to shut down.
+     * Usage: {@code [-port N] [-signers A,B] directory...}
+     *
+     * @param args command line arguments
+     * @throws Exception if the daemon cannot start
+     */
+    public static void main(final String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        String signers = null;
+        List<File> directories = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-signers") && i + 1 < args.length) {
+                signers = args[++i];
+            } else {
+                directories.add(new File(args[i]));
+            }
+        }
+        if (directories.isEmpty()) {
+            System.err.println("Usage: VerificationDaemon [-port N]"
+                    + " [-signers A,B] directory...");
+            System.exit(2);
+        }
+        final VerificationDaemon daemon = new VerificationDaemon(directories,
+                port, signers, System.out);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                daemon.close();
+            }
+        }));
+        daemon.start();
+        System.out.println("Watching " + daemon.getFileCount()
+                + " COD file(s) on port " + daemon.getPort() + "; token in "
+                + tokenFile(daemon.getPort()));
+        daemon.awaitClose();
+    }
+
+    /**
+     * Signers of a file together with the size and modification time they
+     * were read at.
+     */
+    private static final class Snapshot {
+        /** Size of the file when read. */
+        private final long size;
+        /** Modification time of the file when read. */
+        private final long modified;
+        /** Signing information of each COD in the file. */
+        private final List<CodSigningInfo> cods;
+
+        /**
+         * @param length size of the file
+         * @param lastModified modification time of the file
+         * @param signingInfo signing information read
+         */
+        Snapshot(final long length, final long lastModified,
+                final List<CodSigningInfo> signingInfo) {
+            size = length;
+            modified = lastModified;
+            cods = signingInfo;
+        }
+
+        /**
+         * @param file the file the snapshot was taken of
+         * @return true if the file is unchanged
+         */
+        boolean matches(final File file) {
+            return file.length() == size && file.lastModified() == modified;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and timers describing one verification run: where the time went,
+ * how much of each COD was read or skipped, and how many CODs failed and why.
+ *
+ * Metrics are updated concurrently by the worker threads. When the JDK Flight
+ * Recorder is available each file also produces a {@link FileVerificationEvent};
+ * on older runtimes that class is never loaded.
+ */
+public final class VerificationMetrics {
+
+    /**
+     * Parts of a run that are timed. Phases may overlap: messages logged
+     * while parsing also count towards parsing.
+     */
+    public enum Phase {
+        /** Opening files and reading big cods' zip directories. */
+        OPEN,
+        /** Reading COD headers and signature trailers. */
+        PARSE,
+        /** Loading, querying and saving the cache; reading the baseline. */
+        CACHE,
+        /** Writing messages to Ant's log. */
+        LOG,
+        /** Writing the verification report. */
+        REPORT
+    }
+
+    /**
+     * Whether the JDK Flight Recorder API can be used.
+     */
+    private static final boolean FLIGHT_RECORDER = hasFlightRecorder();
+
+    /**
+     * Bits of each latency kept below its highest set bit. Latencies are
+     * counted in buckets whose width is 1/8 of their lower bound, so the
+     * percentiles reported are within 12.5% of the exact ones while memory
+     * does not grow with the number of files.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of latency buckets, enough for any positive long.
+     */
+    private static final int BUCKETS = Long.SIZE * SUB_BUCKETS;
+
+    /**
+     * Percentile reported as the median.
+     */
+    private static final double MEDIAN = 0.5;
+
+    /**
+     * Percentile reported as the tail latency.
+     */
+    private static final double TAIL = 0.99;
+
+    /**
+     * Nanoseconds spent in each phase, indexed by {@link Phase#ordinal()}.
+     */
+    private final AtomicLongArray phaseNanos =
+        new AtomicLongArray(Phase.values().length);
+
+    /**
+     * Number of failed CODs per kind, indexed by ordinal.
+     */
+    private final AtomicLongArray errors =
+        new AtomicLongArray(BadCodException.Kind.values().length);
+
+    /** Files verified. */
+    private final AtomicLong files = new AtomicLong();
+    /** CODs and siblings verified. */
+    private final AtomicLong cods = new AtomicLong();
+    /** Files answered from the verification cache. */
+    private final AtomicLong cacheHits = new AtomicLong();
+    /** Files whose results were carried forward from a baseline. */
+    private final AtomicLong carried = new AtomicLong();
+    /** CODs that were read but lack an expected signer. */
+    private final AtomicLong unsigned = new AtomicLong();
+    /** Bytes of COD content read. */
+    private final AtomicLong bytesRead = new AtomicLong();
+    /** Bytes of COD content skipped without being read. */
+    private final AtomicLong bytesSkipped = new AtomicLong();
+
+    /**
+     * Number of files per latency bucket; see {@link #bucket(long)}.
+     */
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Longest latency recorded, in nanoseconds.
+     */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Checks for the jdk.jfr module without loading any event class.
+     *
+     * @return true if Flight Recorder events can be emitted
+     */
+    private static boolean hasFlightRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event", false,
+                    VerificationMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds time spent in a phase.
+     *
+     * @param phase the phase
+     * @param nanos elapsed time in nanoseconds
+     */
+    public void addTime(final Phase phase, final long nanos) {
+        phaseNanos.addAndGet(phase.ordinal(), nanos);
+    }
+
+    /**
+     * Adds the bytes of one COD that were read and skipped.
+     *
+     * @param read bytes read
+     * @param skipped bytes skipped
+     */
+    public void addBytes(final long read, final long skipped) {
+        bytesRead.addAndGet(read);
+        bytesSkipped.addAndGet(skipped);
+    }
+
+    /**
+     * Starts timing a file.
+     *
+     * @return a Flight Recorder event to pass to
+     *         {@link #fileVerified(Object, VerificationResult, long)},
+     *         or null if Flight Recorder is unavailable
+     */
+    public Object fileStarted() {
+        if (!FLIGHT_RECORDER) {
+            return null;
+        }
+        return FileVerificationEvent.start();
+    }
+
+    /**
+     * Records a verified file.
+     *
+     * @param event value returned by {@link #fileStarted()}
+     * @param result outcome of verifying the file
+     * @param nanos time taken to verify the file
+     */
+    public void fileVerified(final Object event,
+            final VerificationResult result, final long nanos) {
+        files.incrementAndGet();
+        long read = 0;
+        for (CodSigningInfo cod : result.getCods()) {
+            cods.incrementAndGet();
+            read += cod.getBytesRead();
+            if (cod.getError() != null) {
+                errors.incrementAndGet(cod.getError().ordinal());
+            }
+        }
+        if (result.getCods().isEmpty()) {
+            errors.incrementAndGet(BadCodException.Kind.READ_FAILED.ordinal());
+        }
+        latencies.incrementAndGet(bucket(nanos));
+        long max = maxLatency.get();
+        while (nanos > max && !maxLatency.compareAndSet(max, nanos)) {
+            max = maxLatency.get();
+        }
+        if (event != null) {
+            ((FileVerificationEvent) event).finish(result, read);
+        }
+    }
+
+    /**
+     * Counts a file answered from the verification cache.
+     */
+    public void cacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Counts a file whose results were carried forward from a baseline.
+     */
+    public void carriedForward() {
+        carried.incrementAndGet();
+    }
+
+    /**
+     * Counts a COD that was read but lacks an expected signer.
+     */
+    public void codUnsigned() {
+        unsigned.incrementAndGet();
+    }
+
+    /**
+     * @return number of files verified
+     */
+    public long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return number of CODs and siblings verified
+     */
+    public long getCods() {
+        return cods.get();
+    }
+
+    /**
+     * @return number of files answered from the verification cache
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return number of files whose results were carried forward from a
+     *         baseline
+     */
+    public long getCarriedForward() {
+        return carried.get();
+    }
+
+    /**
+     * @return number of CODs that lack an expected signer
+     */
+    public long getUnsigned() {
+        return unsigned.get();
+    }
+
+    /**
+     * @return bytes of COD content read
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return bytes of COD content skipped
+     */
+    public long getBytesSkipped() {
+        return bytesSkipped.get();
+    }
+
+    /**
+     * @param kind kind of failure
+     * @return number of CODs that failed that way
+     */
+    public long getErrors(final BadCodException.Kind kind) {
+        return errors.get(kind.ordinal());
+    }
+
+    /**
+     * @param phase the phase
+     * @return time spent in the phase, in nanoseconds
+     */
+    public long getTime(final Phase phase) {
+        return phaseNanos.get(phase.ordinal());
+    }
+
+    /**
+     * Per-file latency at a percentile, using the nearest-rank method. The
+     * result is the upper bound of the bucket holding that rank, and never
+     * more than the longest latency recorded.
+     *
+     * @param percentile fraction between 0 and 1
+     * @return latency in nanoseconds, or 0 if no file was verified
+     */
+    public long getLatency(final double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latencies.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(percentile * total), 1);
+        long seen = 0;
+        int i = 0;
+        while (i < BUCKETS - 1 && seen + counts[i] < rank) {
+            seen += counts[i];
+            i++;
+        }
+        return Math.min(upperBound(i), maxLatency.get());
+    }
+
+    /**
+     * Index of the bucket counting a latency.
+     *
+     * @param nanos latency in nanoseconds
+     * @return bucket index
+     */
+    static int bucket(final long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos)
+            - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS
+            + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Largest latency counted in a bucket.
+     *
+     * @param bucket bucket index
+     * @return latency in nanoseconds
+     */
+    static long upperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Lists the metrics by name, in a stable order. Times are in
+     * milliseconds.
+     *
+     * @return metric names mapped to their values
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put("files", Long.toString(getFiles()));
+        values.put("cods", Long.toString(getCods()));
+        values.put("cacheHits", Long.toString(getCacheHits()));
+        values.put("carriedForward", Long.toString(getCarriedForward()));
+        values.put("unsigned", Long.toString(getUnsigned()));
+        values.put("bytesRead", Long.toString(getBytesRead()));
+        values.put("bytesSkipped", Long.toString(getBytesSkipped()));
+        for (BadCodException.Kind kind : BadCodException.Kind.values()) {
+            values.put("errors." + kind.name(),
+                    Long.toString(getErrors(kind)));
+        }
+        values.put("latency.p50", millis(getLatency(MEDIAN)));
+        values.put("latency.p99", millis(getLatency(TAIL)));
+        for (Phase phase : Phase.values()) {
+            values.put("time." + phase.name(), millis(getTime(phase)));
+        }
+        return values;
+    }
+
+    /**
+     * Summarizes the run for the build log.
+     *
+     * @param duplicates CODs skipped as duplicates of ones already read
+     * @return summary lines
+     */
+    public String[] summary(final int duplicates) {
+        StringBuilder failures = new StringBuilder();
+        for (BadCodException.Kind kind : BadCodException.Kind.values()) {
+            if (getErrors(kind) > 0) {
+                failures.append(", ").append(getErrors(kind)).append(' ')
+                    .append(kind.name());
+            }
+        }
+        StringBuilder phases = new StringBuilder("Time by phase:");
+        for (Phase phase : Phase.values()) {
+            phases.append(' ').append(phase.name().toLowerCase(Locale.ROOT))
+                .append(' ').append(millis(getTime(phase))).append(" ms");
+        }
+        return new String[] {
+            "Verified " + getFiles() + " file(s) holding " + getCods()
+                    + " COD(s): " + getCacheHits() + " from cache, "
+                    + getCarriedForward() + " from baseline, " + duplicates
+                    + " duplicate(s), " + getUnsigned() + " missing signers"
+                    + failures,
+            "Read " + getBytesRead() + " bytes, skipped " + getBytesSkipped()
+                    + " bytes; per-file latency p50 "
+                    + millis(getLatency(MEDIAN)) + " ms, p99 "
+                    + millis(getLatency(TAIL)) + " ms",
+            phases.toString()};
+    }
+
+    /**
+     * @param nanos duration in nanoseconds
+     * @return the duration in milliseconds, to three decimal places
+     */
+    private static String millis(final long nanos) {
+        final long nanosPerMicro = 1000;
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return String.format("%d.%03d", micros / nanosPerMicro,
+                micros % nanosPerMicro);
+    }
+}
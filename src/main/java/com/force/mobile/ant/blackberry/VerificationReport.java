@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Machine-readable record of a verification run, written one COD at a time
+ * while the run progresses.
+ *
+ * Two formats are supported: {@link #JSON_LINES}, one JSON object per COD or
+ * sibling, and {@link #JUNIT}, one JUnit XML test case per COD or sibling.
+ * Instances are not thread-safe; results are written from the Ant thread in
+ * file order.
+ */
+public abstract class VerificationReport {
+
+    /**
+     * Name of the JSON Lines format.
+     */
+    public static final String JSON_LINES = "jsonl";
+
+    /**
+     * Name of the JUnit XML format.
+     */
+    public static final String JUNIT = "junit";
+
+    /**
+     * Destination of the report.
+     */
+    private final Writer out;
+
+    /**
+     * @param writer destination of the report
+     */
+    protected VerificationReport(final Writer writer) {
+        out = writer;
+    }
+
+    /**
+     * Opens a report file.
+     *
+     * @param file file to write; replaced if it exists
+     * @param format {@link #JSON_LINES} or {@link #JUNIT}
+     * @return the open report
+     * @throws IOException if the file cannot be created
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    public static VerificationReport open(final File file, final String format)
+        throws IOException {
+        if (!JSON_LINES.equals(format) && !JUNIT.equals(format)) {
+            throw new IllegalArgumentException("Unknown report format '"
+                    + format + "'; expected " + JSON_LINES + " or " + JUNIT);
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"));
+        VerificationReport report = JUNIT.equals(format)
+                ? new JUnitReport(writer) : new JsonLinesReport(writer);
+        report.start();
+        return report;
+    }
+
+    /**
+     * Writes one record per COD in a verified file. A file that could not be
+     * read at all gets a single record without a sibling.
+     *
+     * @param result outcome of verifying the file
+     * @param expected signers every COD must have
+     * @throws IOException upon failure to write
+     */
+    public final void write(final VerificationResult result,
+            final SignerIndex expected) throws IOException {
+        List<String> all = new ArrayList<String>();
+        for (int i = 0; i < expected.size(); i++) {
+            all.add(expected.getSigner(i));
+        }
+        write(result, new SignerPolicies(all));
+    }
+
+    /**
+     * Writes one record per COD in a verified file, with the signers missing
+     * from or forbidden by the policy of each COD. A file that could not be
+     * read at all gets a single record without a sibling.
+     *
+     * @param result outcome of verifying the file
+     * @param policies signers expected of each COD
+     * @throws IOException upon failure to write
+     */
+    public final void write(final VerificationResult result,
+            final SignerPolicies policies) throws IOException {
+        String path = result.getFile().getPath();
+        SignerIndex named = policies.getSigners();
+        if (result.getCods().isEmpty()) {
+            CodSigningInfo unread = new CodSigningInfo(
+                    result.getFile().getName());
+            record(path, null, new ArrayList<String>(), signers(named,
+                    policies.select(result.getFile(), unread).getRequired()),
+                    new ArrayList<String>(), BadCodException.Kind.READ_FAILED,
+                    0);
+            return;
+        }
+        for (CodSigningInfo cod : result.getCods()) {
+            List<String> found = new ArrayList<String>(cod.getSignerCount());
+            for (int i = 0; i < cod.getSignerCount(); i++) {
+                found.add(SignerIndex.unpack(cod.getSignerId(i)));
+            }
+            SignerPolicies.Rule rule = policies.select(result.getFile(), cod);
+            long mask = named.mask(cod);
+            record(path, result.getSiblingName(cod), found,
+                    signers(named, rule.getRequired() & ~mask),
+                    signers(named, rule.getForbidden() & mask),
+                    cod.getError(), cod.getBytesRead());
+        }
+    }
+
+    /**
+     * @param named signers by bit
+     * @param mask bits of the signers wanted
+     * @return the signers whose bits are set, by bit
+     */
+    private static List<String> signers(final SignerIndex named,
+            final long mask) {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < named.size(); i++) {
+            if ((mask & (1L << i)) != 0) {
+                list.add(named.getSigner(i));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Finishes and closes the report.
+     *
+     * @throws IOException upon failure to write
+     */
+    public final void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return destination of the report
+     */
+    protected final Writer out() {
+        return out;
+    }
+
+    /**
+     * Writes anything that precedes the first record.
+     *
+     * @throws IOException upon failure to write
+     */
+    protected abstract void start() throws IOException;
+
+    /**
+     * Writes one record.
+     *
+     * @param file path of the verified file
+     * @param sibling name of the sibling within a big COD, or null
+     * @param signers signers found
+     * @param missing expected signers not found
+     * @param forbidden forbidden signers found
+     * @param error why the COD could not be read, or null
+     * @param bytesRead bytes read to find the signers
+     * @throws IOException upon failure to write
+     */
+    protected abstract void record(String file, String sibling,
+            List<String> signers, List<String> missing,
+            List<String> forbidden, BadCodException.Kind error,
+            long bytesRead) throws IOException;
+
+    /**
+     * Writes anything that follows the last record.
+     *
+     * @throws IOException upon failure to write
+     */
+    protected abstract void finish() throws IOException;
+
+    /**
+     * One JSON object per line.
+     */
+    private static final class JsonLinesReport extends VerificationReport {
+
+        /**
+         * @param writer destination of the report
+         */
+        JsonLinesReport(final Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        protected void start() {
+        }
+
+        @Override
+        protected void record(final String file, final String sibling,
+                final List<String> signers, final List<String> missing,
+                final List<String> forbidden, final BadCodException.Kind error,
+                final long bytesRead)
+            throws IOException {
+            Writer out = out();
+            out.write("{\"file\":");
+            string(file);
+            out.write(",\"sibling\":");
+            string(sibling);
+            out.write(",\"signers\":");
+            array(signers);
+            out.write(",\"missing\":");
+            array(missing);
+            out.write(",\"error\":");
+            string(error == null ? null : error.name());
+            out.write(",\"bytesRead\":");
+            out.write(Long.toString(bytesRead));
+            out.write(",\"forbidden\":");
+            array(forbidden);
+            out.write("}\n");
+        }
+
+        @Override
+        protected void finish() {
+        }
+
+        /**
+         * @param values strings to write as a JSON array
+         * @throws IOException upon failure to write
+         */
+        private void array(final List<String> values) throws IOException {
+            out().write('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    out().write(',');
+                }
+                string(values.get(i));
+            }
+            out().write(']');
+        }
+
+        /**
+         * @param value string to write as JSON, may be null
+         * @throws IOException upon failure to write
+         */
+        private void string(final String value) throws IOException {
+            Writer out = out();
+            if (value == null) {
+                out.write("null");
+                return;
+            }
+            final int firstPrintable = 0x20;
+            out.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.write('\\');
+                    out.write(c);
+                } else if (c < firstPrintable) {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+            out.write('"');
+        }
+    }
+
+    /**
+     * A JUnit XML test suite with one test case per COD. Broken CODs are
+     * reported as failures.
+     */
+    private static final class JUnitReport extends VerificationReport {
+
+        /**
+         * @param writer destination of the report
+         */
+        JUnitReport(final Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        protected void start() throws IOException {
+            out().write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out().write("<testsuite name=\"verifySignatures\">\n");
+        }
+
+        @Override
+        protected void record(final String file, final String sibling,
+                final List<String> signers, final List<String> missing,
+                final List<String> forbidden, final BadCodException.Kind error,
+                final long bytesRead)
+            throws IOException {
+            Writer out = out();
+            out.write("  <testcase classname=\"");
+            text(file);
+            out.write("\" name=\"");
+            text(sibling == null ? new File(file).getName() : sibling);
+            out.write("\">\n");
+            if (error != null) {
+                out.write("    <failure type=\"" + error.name()
+                        + "\" message=\"");
+                text("Bad COD: " + error.name());
+                out.write("\"/>\n");
+            } else if (signers.isEmpty() || !missing.isEmpty()) {
+                out.write("    <failure type=\"MISSING_SIGNERS\" message=\"");
+                text("Not signed by " + missing);
+                out.write("\"/>\n");
+            } else if (!forbidden.isEmpty()) {
+                out.write("    <failure type=\"FORBIDDEN_SIGNERS\" message=\"");
+                text("Signed by " + forbidden);
+                out.write("\"/>\n");
+            }
+            out.write("    <system-out>");
+            text("signers=" + signers + " bytesRead=" + bytesRead);
+            out.write("</system-out>\n");
+            out.write("  </testcase>\n");
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            out().write("</testsuite>\n");
+        }
+
+        /**
+         * @param value text to write XML-escaped
+         * @throws IOException upon failure to write
+         */
+        private void text(final String value) throws IOException {
+            Writer out = out();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                default:
+                    out.write(c);
+                }
+            }
+        }
+    }
+}
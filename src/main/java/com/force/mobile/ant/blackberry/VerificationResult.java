@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Outcome of verifying one file: the signing information of every COD it
+ * contains and whether it passed.
+ */
+public final class VerificationResult {
+
+    /**
+     * File that was verified.
+     */
+    private final File file;
+
+    /**
+     * One element per COD in the file; empty if the file could not be read.
+     */
+    private final List<CodSigningInfo> cods;
+
+    /**
+     * True if the file is not a set of valid, signed cods.
+     */
+    private final boolean broken;
+
+    /**
+     * Size of the file when it was read, or -1 if unknown.
+     */
+    private final long fileLength;
+
+    /**
+     * Modification time of the file when it was read, or 0 if unknown.
+     */
+    private final long fileModified;
+
+    /**
+     * @param verified file that was verified
+     * @param codSignatures signing information of each COD in the file
+     * @param failed true if the file is not a set of valid, signed cods
+     */
+    public VerificationResult(final File verified,
+            final List<CodSigningInfo> codSignatures, final boolean failed) {
+        this(verified, codSignatures, failed, -1, 0);
+    }
+
+    /**
+     * @param verified file that was verified
+     * @param codSignatures signing information of each COD in the file
+     * @param failed true if the file is not a set of valid, signed cods
+     * @param length size of the file when it was read, or -1 if unknown
+     * @param modified modification time of the file when it was read, or 0
+     *            if unknown
+     */
+    public VerificationResult(final File verified,
+            final List<CodSigningInfo> codSignatures, final boolean failed,
+            final long length, final long modified) {
+        file = verified;
+        cods = codSignatures;
+        broken = failed;
+        fileLength = length;
+        fileModified = modified;
+    }
+
+    /**
+     * @return file that was verified
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return signing information of each COD in the file
+     */
+    public List<CodSigningInfo> getCods() {
+        return cods;
+    }
+
+    /**
+     * @return size of the file when it was read, or -1 if unknown
+     */
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * @return modification time of the file when it was read, or 0 if
+     *         unknown
+     */
+    public long getFileModified() {
+        return fileModified;
+    }
+
+    /**
+     * @return true if the file is not a set of valid, signed cods
+     */
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * @return false if reading the file stopped before its last sibling, so
+     *         that the result must not be cached, shared or indexed
+     */
+    public boolean isComplete() {
+        for (CodSigningInfo cod : cods) {
+            if (cod.areLaterSiblingsSkipped()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Name of a COD within the file.
+     *
+     * @param cod one of {@link #getCods()}
+     * @return the sibling's entry name, or null if the file is a plain COD
+     */
+    public String getSiblingName(final CodSigningInfo cod) {
+        String prefix = file.getName() + File.separator;
+        String name = cod.getFilename();
+        return name.startsWith(prefix) ? name.substring(prefix.length())
+                : null;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+/**
+ * Worker pool and verified results shared by the {@code verifySignatures}
+ * tasks of one Ant project, so that a build calling the task from many
+ * targets neither starts a pool per call nor reads a file twice.
+ *
+ * One instance is kept per project as a reference (see {@link #get(Project)})
+ * and shut down when the build finishes. Results are keyed by canonical path
+ * and reused while the file's size, modification time and file key are
+ * unchanged. Instances are thread-safe.
+ */
+public final class VerificationService implements BuildListener {
+
+    /**
+     * Id of the project reference the service is registered under.
+     */
+    public static final String REFERENCE_ID =
+        "com.force.mobile.ant.blackberry.verificationService";
+
+    /**
+     * Seconds an idle worker is kept before it exits.
+     */
+    private static final int IDLE_SECONDS = 30;
+
+    /**
+     * Shared workers; grows to the largest thread count asked for.
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * Verified results by canonical path.
+     */
+    private final ConcurrentMap<String, Entry> results =
+        new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Creates a service with no workers and no results.
+     */
+    VerificationService() {
+        pool = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the project's service, registering a new one the first time.
+     *
+     * @param project the project whose tasks share the service
+     * @return the project's service
+     */
+    public static VerificationService get(final Project project) {
+        synchronized (project) {
+            Object existing = project.getReference(REFERENCE_ID);
+            if (existing instanceof VerificationService) {
+                return (VerificationService) existing;
+            }
+            VerificationService service = new VerificationService();
+            project.addReference(REFERENCE_ID, service);
+            project.addBuildListener(service);
+            return service;
+        }
+    }
+
+    /**
+     * Returns the shared pool, grown to at least the given number of workers.
+     * Callers must not shut it down.
+     *
+     * @param threads number of workers the caller wants
+     * @return the shared pool
+     */
+    public ExecutorService executor(final int threads) {
+        synchronized (pool) {
+            if (pool.getMaximumPoolSize() < threads) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the signing information verified earlier for a file, if the
+     * file has not changed since.
+     *
+     * @param file the file to look up
+     * @return the signing information of each COD, or null
+     */
+    public List<CodSigningInfo> lookup(final File file) {
+        Entry cached = results.get(key(file));
+        if (cached == null) {
+            return null;
+        }
+        Entry current = Entry.of(file, null);
+        if (current == null || !cached.sameFile(current)) {
+            return null;
+        }
+        return cached.cods;
+    }
+
+    /**
+     * Remembers the signing information verified for a file.
+     *
+     * @param file the verified file
+     * @param cods the signing information of each COD
+     */
+    public void store(final File file, final List<CodSigningInfo> cods) {
+        Entry entry = Entry.of(file, Collections.unmodifiableList(cods));
+        if (entry != null) {
+            results.put(key(file), entry);
+        }
+    }
+
+    /**
+     * @return number of files with remembered results
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * Stops the workers and forgets every result.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+        results.clear();
+    }
+
+    /**
+     * Key of a file's results.
+     *
+     * @param file the file
+     * @return the file's canonical path, or its absolute path if that cannot
+     *         be resolved
+     */
+    private static String key(final File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    @Override
+    public void buildFinished(final BuildEvent event) {
+        shutdown();
+    }
+
+    @Override
+    public void buildStarted(final BuildEvent event) {
+    }
+
+    @Override
+    public void targetStarted(final BuildEvent event) {
+    }
+
+    @Override
+    public void targetFinished(final BuildEvent event) {
+    }
+
+    @Override
+    public void taskStarted(final BuildEvent event) {
+    }
+
+    @Override
+    public void taskFinished(final BuildEvent event) {
+    }
+
+    @Override
+    public void messageLogged(final BuildEvent event) {
+    }
+
+    /**
+     * Results of one file and the identity of the file they were read from.
+     */
+    private static final class Entry {
+        /** Size of the file in bytes. */
+        private final long size;
+        /** Modification time of the file. */
+        private final long modified;
+        /** File system key of the file, or null if there is none. */
+        private final Object fileKey;
+        /** Signing information of each COD. */
+        private final List<CodSigningInfo> cods;
+
+        /**
+         * @param length size of the file in bytes
+         * @param lastModified modification time of the file
+         * @param identity file system key of the file, or null
+         * @param signingInfo signing information of each COD
+         */
+        private Entry(final long length, final long lastModified,
+                final Object identity, final List<CodSigningInfo> signingInfo) {
+            size = length;
+            modified = lastModified;
+            fileKey = identity;
+            cods = signingInfo;
+        }
+
+        /**
+         * Reads a file's identity.
+         *
+         * @param file the file
+         * @param signingInfo signing information to keep, or null
+         * @return the entry, or null if the file cannot be read
+         */
+        static Entry of(final File file,
+                final List<CodSigningInfo> signingInfo) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(
+                        file.toPath(), BasicFileAttributes.class);
+                return new Entry(attributes.size(),
+                        attributes.lastModifiedTime().toMillis(),
+                        attributes.fileKey(), signingInfo);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @param other identity of the file now
+         * @return true if both describe the same, unchanged file
+         */
+        boolean sameFile(final Entry other) {
+            return size == other.size && modified == other.modified
+                    && (fileKey == null ? other.fileKey == null
+                            : fileKey.equals(other.fileKey));
+        }
+    }
+
+    /**
+     * Creates daemon threads so that idle workers never hold up the JVM.
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        /** Number of threads created so far. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "verifySignatures-shared-"
+                    + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -29,27 +29,60 @@ package com.force.mobile.ant.blackberry;
  * @author aditya.joshi
  *
  */
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.zip.ZipException;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.ZipFileSet;
 
 /**
  * Ant task to validate COD signatures.
@@ -61,12 +94,49 @@ public class VerifySignatures extends Task {
     /**
      * Minimum COD header version number.
      */
-    public static final int MIN_VERSION = 74;
+    public static final int MIN_VERSION = CodInspector.MIN_VERSION;
     /**
      * Length, in bytes, of the Signer ID characters.
      */
     private static final int LENGTH_OF_SIGNER_ID = 4;
 
+    /**
+     * Default maximum number of files kept in the verification cache.
+     */
+    private static final int DEFAULT_CACHE_SIZE = 50000;
+
+    /**
+     * Size of the reads that feed signed content to signature checks.
+     */
+    private static final int SIGNED_CHUNK = 64 * 1024;
+
+    /**
+     * Zips a COD may be nested in below an archive fileset's entry, e.g. a
+     * bundle holding a big COD holding siblings.
+     */
+    private static final int MAX_NESTING = 4;
+
+    /**
+     * Seconds to wait for abandoned workers at the end of a run.
+     */
+    private static final int WORKER_SHUTDOWN_SECONDS = 10;
+
+    /**
+     * Files submitted per worker thread ahead of the file being reported.
+     */
+    private static final int FILES_PER_THREAD = 4;
+
+    /**
+     * Files found by the scanner that may wait to be verified.
+     */
+    private static final int SCAN_QUEUE_LENGTH = 1024;
+
+    /**
+     * CODs remembered per run for duplicate detection; later ones are not
+     * remembered, which bounds the memory a run uses.
+     */
+    private static final int MAX_PARSED_CODS = 1 << 16;
+
     /**
      * Set of signer IDs.
      *
@@ -74,11 +144,207 @@ public class VerifySignatures extends Task {
      */
     private final Set<String> signers;
 
+    /**
+     * Nested policies giving the signers expected of CODs by path.
+     */
+    private final List<SignerPolicy> policies = new ArrayList<SignerPolicy>();
+
+    /**
+     * {@link #signers} and {@link #policies} compiled for matching; only the
+     * default signers until a run compiles the policies.
+     */
+    private SignerPolicies signerPolicies;
+
     /**
      * List of filesets for COD files.
      */
     private List<FileSet> fileSet;
 
+    /**
+     * Number of worker threads used to verify files. Defaults to the number
+     * of available processors.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * File the verification cache is kept in, or null for no cache.
+     */
+    private File cacheFile;
+
+    /**
+     * Maximum number of files kept in the verification cache.
+     */
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    /**
+     * Verification cache in use while the task runs, or null.
+     */
+    private VerificationCache verificationCache;
+
+    /**
+     * File the verification report is written to, or null for no report.
+     */
+    private File reportFile;
+
+    /**
+     * Format of the verification report.
+     */
+    private String reportFormat = VerificationReport.JSON_LINES;
+
+    /**
+     * Verification report being written while the task runs, or null.
+     */
+    private VerificationReport report;
+
+    /**
+     * File the COD index is written to, or null for no index.
+     */
+    private File indexFile;
+
+    /**
+     * COD index being written while the task runs, or null.
+     */
+    private CodIndex.Writer index;
+
+    /**
+     * Index of a previous run whose results are carried forward, or null.
+     */
+    private File baselineFile;
+
+    /**
+     * {@link #baselineFile} mapped while the task runs, or null.
+     */
+    private volatile CodIndex baseline;
+
+    /**
+     * File listing the paths changed since the baseline, or null.
+     */
+    private File changesFile;
+
+    /**
+     * Absolute, normalized paths read from {@link #changesFile} while the
+     * task runs, or null.
+     */
+    private volatile Set<Path> changedPaths;
+
+    /**
+     * Filesets of JAD and ALX descriptors whose listed CODs are checked.
+     */
+    private final List<FileSet> descriptorSets = new ArrayList<FileSet>();
+
+    /**
+     * Descriptors read while the task runs, or null if none are checked.
+     */
+    private volatile List<CodDescriptor> descriptors;
+
+    /**
+     * Absolute, normalized paths of the CODs the descriptors list, mapped to
+     * the COD verified at that path once it is reported; null if no
+     * descriptors are checked. Only used on the Ant thread.
+     */
+    private Map<Path, CodSigningInfo> listedCods;
+
+    /**
+     * Whether every expected signer found is logged, not only missing ones.
+     */
+    private boolean verbose;
+
+    /**
+     * Public keys configured as nested elements.
+     */
+    private final List<SignerKey> keys = new ArrayList<SignerKey>();
+
+    /**
+     * Checks signatures during a run if keys are configured, else null.
+     */
+    private SignatureChecker signatureChecker;
+
+    /**
+     * Whether to stop at the first unsigned or corrupt COD.
+     */
+    private boolean failFast;
+
+    /**
+     * Set once a file has failed in fail-fast mode; outstanding work checks
+     * it and gives up.
+     */
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    /**
+     * First file that failed in the current run, or null.
+     */
+    private volatile File firstFailure;
+
+    /**
+     * Loopback port of a {@link VerificationDaemon} to ask for signers, or 0
+     * to read every file in this JVM.
+     */
+    private int daemonPort;
+
+    /**
+     * Connection to the verification daemon during a run, or null.
+     */
+    private volatile DaemonClient daemon;
+
+    /**
+     * Number of files whose header and trailer are read ahead of parsing, or
+     * 0 to read each file when it is parsed.
+     */
+    private int readAheadDepth;
+
+    /**
+     * Files being read ahead during a run, or null.
+     */
+    private volatile ReadAhead readAhead;
+
+    /**
+     * Whether to share workers and results with the project's other
+     * verifySignatures tasks.
+     */
+    private boolean shared;
+
+    /**
+     * The project's shared service during a run, or null.
+     */
+    private volatile VerificationService service;
+
+    /**
+     * Prefix of the Ant properties the run's metrics are published as, or
+     * null to publish none.
+     */
+    private String metricsPrefix;
+
+    /**
+     * Counters and timers of the current run.
+     */
+    private volatile VerificationMetrics metrics = new VerificationMetrics();
+
+    /**
+     * Files that failed verification in the current run, in file order.
+     * Other results are only counted, so memory does not grow with the
+     * number of files verified.
+     */
+    private final List<File> failures = new ArrayList<File>();
+
+    /**
+     * CODs read so far in this run, keyed by content digest.
+     */
+    private final ConcurrentMap<ByteBuffer, CodSigningInfo> parsedCods =
+        new ConcurrentHashMap<ByteBuffer, CodSigningInfo>();
+
+    /**
+     * Number of CODs whose signers were taken from {@link #parsedCods}.
+     */
+    private final AtomicInteger duplicateCods = new AtomicInteger();
+
+    /**
+     * Messages logged by the current worker thread. When set, log output is
+     * buffered here and replayed on the Ant thread in file order so that the
+     * build log does not depend on thread scheduling.
+     */
+    private final ThreadLocal<List<BufferedMessage>> pendingLog =
+        new ThreadLocal<List<BufferedMessage>>();
+
     /**
      * Constructor for a SignVerifier that takes comma separated signer names.
      *
@@ -94,11 +360,14 @@ public class VerifySignatures extends Task {
      */
     public VerifySignatures() {
         signers = new HashSet<String>();
+        signerPolicies = new SignerPolicies(signers);
         fileSet = new ArrayList<FileSet>();
     }
 
     /**
-     * Adds a fileset to the list of filesets.
+     * Adds a fileset to the list of filesets. A {@code <zipfileset>} with a
+     * {@code src} archive selects entries of the archive, which are streamed
+     * and verified in place without being extracted.
      *
      * @param fileset Set of files to add.
      */
@@ -106,146 +375,1868 @@ public class VerifySignatures extends Task {
         fileSet.add(fileset);
     }
 
+    /**
+     * Sets the number of threads used to verify COD files.
+     *
+     * @param count number of worker threads; must be at least 1
+     */
+    public final void setThreads(final int count) {
+        if (count < 1) {
+            throw new BuildException("threads must be at least 1, was "
+                    + count);
+        }
+        threads = count;
+    }
+
+    /**
+     * Accessor for the number of verification threads.
+     *
+     * @return number of worker threads
+     */
+    public final int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the file used to cache signers between builds. Files whose size
+     * and modification time are unchanged are not opened again.
+     *
+     * @param file cache file; created if it does not exist
+     */
+    public final void setCache(final File file) {
+        cacheFile = file;
+    }
+
+    /**
+     * Sets the maximum number of files kept in the verification cache.
+     *
+     * @param size maximum number of cached files; must be at least 1
+     */
+    public final void setCacheSize(final int size) {
+        if (size < 1) {
+            throw new BuildException("cacheSize must be at least 1, was "
+                    + size);
+        }
+        cacheSize = size;
+    }
+
+    /**
+     * Sets the file a machine-readable report of the run is written to.
+     *
+     * @param file report file; replaced if it exists
+     */
+    public final void setReport(final File file) {
+        reportFile = file;
+    }
+
+    /**
+     * Writes a {@link CodIndex} of every COD and sibling verified, so that
+     * later build steps can look up their signers, sizes and header fields
+     * without opening them.
+     *
+     * @param file index file; replaced when the run ends
+     */
+    public final void setIndex(final File file) {
+        indexFile = file;
+    }
+
+    /**
+     * Takes the {@link CodIndex} written by a previous run as a baseline.
+     * Files the baseline holds with the same size and modification time, or
+     * that are not in the {@link #setChanges(File) change list} if one is
+     * given, are not read again; their signers are carried forward and
+     * checked against the current signers and policies. The baseline may be
+     * the same file as the {@link #setIndex(File) index}, which then becomes
+     * the next run's baseline. A missing baseline verifies every file.
+     *
+     * @param file index written by a previous run
+     */
+    public final void setBaseline(final File file) {
+        baselineFile = file;
+    }
+
+    /**
+     * Reads the paths changed since the baseline from a file, one per line,
+     * relative to the project's base directory or absolute, e.g. the output
+     * of {@code git diff --name-only}. Blank lines and lines starting with
+     * '#' are ignored. Without a {@link #setBaseline(File) baseline}, only
+     * the listed files that the filesets include are verified and the
+     * filesets' directories are not walked.
+     *
+     * @param file list of changed paths
+     */
+    public final void setChanges(final File file) {
+        changesFile = file;
+    }
+
+    /**
+     * Adds a fileset of JAD or ALX descriptors. Each COD a descriptor lists
+     * must be among the CODs verified, either as a file or as a sibling of a
+     * big COD in the same directory, and must have the length and SHA-1 the
+     * descriptor gives. The CODs are hashed while their signers are read.
+     *
+     * @param fileset descriptors to check, e.g. {@code *.jad,*.alx}
+     */
+    public final void addDescriptors(final FileSet fileset) {
+        descriptorSets.add(fileset);
+    }
+
+    /**
+     * Sets the format of the report: {@code jsonl} (the default) for one JSON
+     * object per COD, or {@code junit} for JUnit XML.
+     *
+     * @param format report format
+     */
+    public final void setReportFormat(final String format) {
+        if (!VerificationReport.JSON_LINES.equals(format)
+                && !VerificationReport.JUNIT.equals(format)) {
+            throw new BuildException("reportFormat must be "
+                    + VerificationReport.JSON_LINES + " or "
+                    + VerificationReport.JUNIT + ", was " + format);
+        }
+        reportFormat = format;
+    }
+
+    /**
+     * Sets whether every signer found is logged. By default only missing
+     * signers and errors are logged.
+     *
+     * @param logAll true to log each expected signer of each COD
+     */
+    public final void setVerbose(final boolean logAll) {
+        verbose = logAll;
+    }
+
+    /**
+     * Adds the public key of a signer. Once any key is configured, the
+     * signatures of those signers are checked against the content of each
+     * COD, not just looked for.
+     *
+     * @return the key to configure
+     */
+    public final SignerKey createKey() {
+        SignerKey key = new SignerKey();
+        keys.add(key);
+        return key;
+    }
+
+    /**
+     * Adds a policy giving the signers expected of the CODs whose paths
+     * match a pattern. The first matching policy applies; CODs no policy
+     * matches must have the task's signers.
+     *
+     * @return the policy to configure
+     */
+    public final SignerPolicy createPolicy() {
+        SignerPolicy policy = new SignerPolicy();
+        policies.add(policy);
+        return policy;
+    }
+
+    /**
+     * Stops verifying as soon as one unsigned or corrupt COD is found,
+     * instead of reporting every broken file. Files still queued and the
+     * remaining siblings of a big COD are not read.
+     *
+     * @param stop true to stop at the first failure
+     */
+    public final void setFailFast(final boolean stop) {
+        failFast = stop;
+    }
+
+    /**
+     * Asks a {@link VerificationDaemon} listening on this port for the signers
+     * of files in the directories it watches. Other files, or every file if
+     * the daemon cannot be reached, are read by the task itself.
+     *
+     * @param port loopback port of the daemon
+     */
+    public final void setDaemonPort(final int port) {
+        daemonPort = port;
+    }
+
+    /**
+     * Reads the header and signature trailer of up to this many upcoming
+     * files on separate I/O threads while earlier files are parsed, which
+     * hides the latency of opening files on network file systems. Not used
+     * while keys are configured, since the whole COD is read then.
+     *
+     * @param depth number of files read ahead, or 0 for none
+     */
+    public final void setReadAhead(final int depth) {
+        if (depth < 0) {
+            throw new BuildException("readAhead must not be negative");
+        }
+        readAheadDepth = depth;
+    }
+
+    /**
+     * Shares a worker pool and verified files with the other tasks of the
+     * project that also set this, so that a file verified by an earlier
+     * target is not read again and no pool is started per call.
+     *
+     * @param share true to use the project's {@link VerificationService}
+     */
+    public final void setShared(final boolean share) {
+        shared = share;
+    }
+
+    /**
+     * Publishes the run's metrics as Ant properties named
+     * {@code <prefix>.files}, {@code <prefix>.latency.p99} and so on.
+     *
+     * @param prefix property name prefix
+     */
+    public final void setMetricsPrefix(final String prefix) {
+        metricsPrefix = prefix;
+    }
+
+    /**
+     * Counters and timers of the last or current run.
+     *
+     * @return the run's metrics
+     */
+    public final VerificationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Files that failed verification in the last or current run.
+     *
+     * @return the failed files, in file order
+     */
+    public final List<File> getFailures() {
+        return Collections.unmodifiableList(new ArrayList<File>(failures));
+    }
+
     /**
      * Implements the task. For use by Ant
      */
     @Override
     public final void execute() {
-        boolean error = false;
+        List<FileSet> directories = new ArrayList<FileSet>();
+        List<ZipFileSet> archives = new ArrayList<ZipFileSet>();
         for (FileSet fs : fileSet) {
-            if (brokenFileSet(fs)) {
-                error = true;
+            if (archiveOf(fs) != null) {
+                archives.add((ZipFileSet) fs);
+            } else {
+                directories.add(fs);
+            }
+        }
+        FileStream files = new FileStream(directories, getProject(),
+                SCAN_QUEUE_LENGTH);
+        boolean error;
+        boolean stale = false;
+        startRun();
+        try {
+            // Opened inside the try, so that if one fails those opened
+            // before it are still closed.
+            signatureChecker = loadKeys();
+            descriptors = readDescriptors();
+            verificationCache = openCache();
+            report = openReport();
+            index = openIndex();
+            baseline = openBaseline();
+            changedPaths = readChanges();
+            if (changedPaths != null && baseline == null) {
+                files.restrictTo(changedPaths);
+            }
+            daemon = connectDaemon();
+            service = shared && getProject() != null
+                    ? VerificationService.get(getProject()) : null;
+            files.start();
+            error = brokenFiles(files);
+            if (!(error && failFast)) {
+                error |= brokenArchives(archives);
             }
+            if (!(error && failFast)) {
+                stale = brokenDescriptors();
+            }
+        } finally {
+            files.close();
+            service = null;
+            disconnectDaemon();
+            baseline = null;
+            changedPaths = null;
+            parsedCods.clear();
+            signatureChecker = null;
+            descriptors = null;
+            listedCods = null;
+            try {
+                closeIndex();
+            } finally {
+                try {
+                    closeReport();
+                } finally {
+                    closeCache();
+                }
+            }
+        }
+        publishMetrics();
+        if (error && failFast) {
+            long skipped = files.getFound() - metrics.getFiles();
+            if (skipped > 0) {
+                logMsg("Stopped at the first failure; " + skipped
+                        + " file(s) found were not checked");
+            }
+            throw new BuildException("Not all cod files are signed: "
+                    + firstFailure);
         }
         if (error) {
             throw new BuildException("Not all cod files are signed");
         }
+        if (stale) {
+            throw new BuildException("Not all descriptors match their cods");
+        }
 
     }
 
     /**
-     * Goes through every desired cod file in the fileset and checks signature.
-     *
-     * @param fs FileSet to check.
-     * @return false iff the fileset is a set of valid, signed cods.
+     * Forgets the CODs read by a previous run, so that every file is read
+     * again and duplicates are counted afresh.
      */
-    protected final boolean brokenFileSet(final FileSet fs) {
-        boolean error = false;
-        DirectoryScanner ds = fs.getDirectoryScanner();
+    protected final void startRun() {
+        parsedCods.clear();
+        duplicateCods.set(0);
+        metrics = new VerificationMetrics();
+    }
+
+    /**
+     * Logs a summary of the run's metrics and sets them as Ant properties if
+     * a prefix was given.
+     */
+    private void publishMetrics() {
+        for (String line : metrics.summary(duplicateCods.get())) {
+            logMsg(line);
+        }
+        if (metricsPrefix == null || getProject() == null) {
+            return;
+        }
+        for (Map.Entry<String, String> metric
+                : metrics.toMap().entrySet()) {
+            getProject().setNewProperty(metricsPrefix + "." + metric.getKey(),
+                    metric.getValue());
+        }
+        getProject().setNewProperty(metricsPrefix + ".duplicates",
+                Integer.toString(duplicateCods.get()));
+    }
+
+    /**
+     * Loads the configured public keys.
+     *
+     * @return a checker for the keys, or null if none are configured
+     */
+    private SignatureChecker loadKeys() {
+        if (keys.isEmpty()) {
+            return null;
+        }
+        SignatureChecker checker = new SignatureChecker();
+        for (SignerKey key : keys) {
+            try {
+                checker.addKey(key.getSigner(), key.load(),
+                        key.getAlgorithm());
+            } catch (IOException e) {
+                throw new BuildException("Unable to read the key of "
+                        + key.getSigner(), e);
+            } catch (GeneralSecurityException e) {
+                throw new BuildException("Unable to use the key of "
+                        + key.getSigner(), e);
+            }
+        }
+        return checker;
+    }
+
+    /**
+     * Connects to the verification daemon, if one is configured.
+     *
+     * @return the connection, or null if files are read locally
+     */
+    private DaemonClient connectDaemon() {
+        if (daemonPort == 0) {
+            return null;
+        }
+        String reason = wholeReadReason();
+        if (reason != null) {
+            logMsg(reason + "; not using the verification daemon");
+            return null;
+        }
+        try {
+            return new DaemonClient(daemonPort);
+        } catch (IOException e) {
+            logAt("No verification daemon on port " + daemonPort
+                    + "; reading files locally", null, Project.MSG_WARN);
+            return null;
+        }
+    }
+
+    /**
+     * Closes the connection to the verification daemon, if there is one.
+     */
+    private void disconnectDaemon() {
+        DaemonClient client = daemon;
+        daemon = null;
+        if (client == null) {
+            return;
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            logWarning(e);
+        }
+    }
+
+    /**
+     * Asks the verification daemon for the signers of a file. If the daemon
+     * fails, it is not asked again in this run.
+     *
+     * @param inputFile file to look up
+     * @return signing information of each COD in the file, or null if the
+     *         file must be read locally
+     */
+    private List<CodSigningInfo> askDaemon(final File inputFile) {
+        DaemonClient client = daemon;
+        if (client == null) {
+            return null;
+        }
+        try {
+            return client.cods(inputFile);
+        } catch (IOException e) {
+            logError("Verification daemon failed; reading files locally");
+            logWarning(e);
+            daemon = null;
+            return null;
+        }
+    }
+
+    /**
+     * Creates the report file, if one is configured.
+     *
+     * @return the open report, or null if no report was requested
+     */
+    private VerificationReport openReport() {
+        if (reportFile == null) {
+            return null;
+        }
+        try {
+            return VerificationReport.open(reportFile, reportFormat);
+        } catch (IOException e) {
+            throw new BuildException("Unable to create report " + reportFile,
+                    e);
+        }
+    }
+
+    /**
+     * Finishes the report, if there is one.
+     */
+    private void closeReport() {
+        if (report == null) {
+            return;
+        }
+        try {
+            report.close();
+        } catch (IOException e) {
+            throw new BuildException("Unable to write report " + reportFile,
+                    e);
+        } finally {
+            report = null;
+        }
+    }
+
+    /**
+     * Starts the COD index, if one was asked for.
+     *
+     * @return the index writer, or null
+     */
+    private CodIndex.Writer openIndex() {
+        if (indexFile == null) {
+            return null;
+        }
+        try {
+            return new CodIndex.Writer(indexFile, checksFingerprint());
+        } catch (IOException e) {
+            throw new BuildException("Unable to create index " + indexFile,
+                    e);
+        }
+    }
+
+    /**
+     * Maps the baseline, if one was given and exists.
+     *
+     * @return the baseline, or null
+     */
+    private CodIndex openBaseline() {
+        if (baselineFile == null) {
+            return null;
+        }
+        if (!baselineFile.isFile()) {
+            logMsg("No baseline " + baselineFile + "; verifying every file");
+            return null;
+        }
+        long started = System.nanoTime();
+        try {
+            // the index replaces the baseline when they are one file, which
+            // Windows refuses while it is mapped
+            CodIndex known = indexFile != null
+                    && baselineFile.getCanonicalFile().equals(
+                            indexFile.getCanonicalFile())
+                    ? CodIndex.load(baselineFile)
+                    : CodIndex.open(baselineFile);
+            if (!known.isCheckedWith(checksFingerprint())) {
+                logMsg("Baseline " + baselineFile + " was checked with other"
+                        + " keys or policies; verifying every file");
+                return null;
+            }
+            return known;
+        } catch (IOException e) {
+            logWarning(e);
+            logMsg("Unable to read baseline " + baselineFile
+                    + "; verifying every file");
+            return null;
+        } finally {
+            metrics.addTime(VerificationMetrics.Phase.CACHE,
+                    System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Digests what decides a COD's result besides its own bytes: the
+     * signers, the policies and the keys. A baseline is only carried
+     * forward if it was written with the same digest.
+     *
+     * @return SHA-1 of the checks configured for this run
+     */
+    private byte[] checksFingerprint() {
+        MessageDigest sha = VerificationCache.sha1();
+        List<String> names = new ArrayList<String>(signers);
+        Collections.sort(names);
+        digestStrings(sha, names);
+        for (SignerPolicy policy : policies) {
+            digestStrings(sha, Collections.singletonList(policy.getPattern()));
+            digestStrings(sha, policy.getRequired());
+            digestStrings(sha, policy.getForbidden());
+            digestStrings(sha, policy.getOptional());
+        }
+        if (signatureChecker != null) {
+            signatureChecker.fingerprint(sha);
+        }
+        return sha.digest();
+    }
+
+    /**
+     * Adds a list of strings to a digest, each one and the list terminated
+     * so that different lists never digest alike.
+     *
+     * @param sha digest to update
+     * @param strings strings to add; a null string is added as empty
+     */
+    private static void digestStrings(final MessageDigest sha,
+            final List<String> strings) {
+        for (String string : strings) {
+            if (string != null) {
+                sha.update(string.getBytes(StandardCharsets.UTF_8));
+            }
+            sha.update((byte) 0);
+        }
+        sha.update((byte) 1);
+    }
+
+    /**
+     * Reads the change list, if one was given.
+     *
+     * @return absolute, normalized changed paths in order, or null
+     * @throws BuildException if the list cannot be read
+     */
+    private Set<Path> readChanges() {
+        if (changesFile == null) {
+            return null;
+        }
+        Set<Path> paths = new TreeSet<Path>();
+        try {
+            for (String line : Files.readAllLines(changesFile.toPath(),
+                    StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                File changed = getProject() != null
+                        ? getProject().resolveFile(line) : new File(line);
+                paths.add(normalize(changed));
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to read changes " + changesFile,
+                    e);
+        }
+        return paths;
+    }
+
+    /**
+     * @param file a file
+     * @return the file's absolute, normalized path
+     */
+    private static Path normalize(final File file) {
+        return file.getAbsoluteFile().toPath().normalize();
+    }
+
+    /**
+     * Reads the descriptors of the nested descriptor filesets, noting the
+     * CODs they list.
+     *
+     * @return the descriptors, or null if none are checked
+     * @throws BuildException if a descriptor cannot be read
+     */
+    private List<CodDescriptor> readDescriptors() {
+        if (descriptorSets.isEmpty()) {
+            return null;
+        }
+        List<CodDescriptor> read = new ArrayList<CodDescriptor>();
+        listedCods = new HashMap<Path, CodSigningInfo>();
+        for (FileSet fs : descriptorSets) {
+            for (File file : includedFiles(fs)) {
+                CodDescriptor descriptor;
+                try {
+                    descriptor = CodDescriptor.read(file);
+                } catch (IOException e) {
+                    logWarning(e);
+                    throw new BuildException("Unable to read descriptor "
+                            + file, e);
+                }
+                read.add(descriptor);
+                for (CodDescriptor.Listing listing
+                        : descriptor.getListings()) {
+                    listedCods.put(normalize(listing.getCod()), null);
+                }
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Keeps the CODs of a verified file that a descriptor lists. A sibling
+     * of a big COD is served under its own name from the big COD's
+     * directory.
+     *
+     * @param result outcome of verifying the file
+     */
+    private void rememberListed(final VerificationResult result) {
+        File file = result.getFile();
+        String name = file.getName();
+        for (CodSigningInfo cod : result.getCods()) {
+            String codName = cod.getFilename();
+            File served = file;
+            if (codName.length() > name.length()
+                    && codName.startsWith(name)) {
+                served = new File(file.getParentFile(),
+                        codName.substring(name.length() + 1));
+            }
+            Path path = normalize(served);
+            if (listedCods.containsKey(path)) {
+                listedCods.putIfAbsent(path, cod);
+            }
+        }
+    }
+
+    /**
+     * Checks every descriptor against the CODs verified, logging each listed
+     * COD that is missing or differs.
+     *
+     * @return true if a descriptor does not match its CODs
+     */
+    private boolean brokenDescriptors() {
+        List<CodDescriptor> read = descriptors;
+        if (read == null) {
+            return false;
+        }
+        boolean broken = false;
+        for (CodDescriptor descriptor : read) {
+            boolean stale = false;
+            for (CodDescriptor.Listing listing : descriptor.getListings()) {
+                if (!matches(descriptor, listing)) {
+                    stale = true;
+                }
+            }
+            if (stale) {
+                failures.add(descriptor.getFile());
+                broken = true;
+            } else if (verbose) {
+                logMsg(descriptor.getFile().getName() + " matches its "
+                        + descriptor.getListings().size() + " cod(s)");
+            }
+        }
+        return broken;
+    }
+
+    /**
+     * Checks one listed COD against the COD verified at its path.
+     *
+     * @param descriptor the descriptor listing the COD
+     * @param listing the listed COD
+     * @return true if the COD was verified with the length and SHA-1 listed
+     */
+    private boolean matches(final CodDescriptor descriptor,
+            final CodDescriptor.Listing listing) {
+        String where = descriptor.getFile().getName() + ": "
+            + listing.getAttribute();
+        String name = listing.getCod().getName();
+        CodSigningInfo cod = listedCods.get(normalize(listing.getCod()));
+        if (cod == null) {
+            logError(where + " lists " + name + ", which was not verified");
+            return false;
+        }
+        if (cod.getError() != null) {
+            logError(where + " lists " + name + ", which could not be read");
+            return false;
+        }
+        if (listing.getSize() >= 0 && listing.getSize() != cod.getLength()) {
+            logError(where + " gives " + listing.getSize() + " bytes but "
+                    + name + " is " + cod.getLength() + " bytes");
+            return false;
+        }
+        if (listing.getSha1() != null
+                && !Arrays.equals(listing.getSha1(), cod.getContentDigest())) {
+            logError(where + " does not match the SHA-1 of " + name);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tells why CODs are read whole in this run. Answers from the daemon,
+     * caches, baselines, earlier copies and read-ahead headers are then not
+     * used, since none of them covers the whole COD.
+     *
+     * @return why every COD is read whole, or null if its header and trailer
+     *         suffice
+     */
+    private String wholeReadReason() {
+        if (signatureChecker != null) {
+            return "Signatures are checked";
+        }
+        if (descriptors != null) {
+            return "Descriptors are checked";
+        }
+        return null;
+    }
+
+    /**
+     * Writes the COD index, if there is one.
+     */
+    private void closeIndex() {
+        if (index == null) {
+            return;
+        }
+        try {
+            index.close();
+        } catch (IOException e) {
+            throw new BuildException("Unable to write index " + indexFile, e);
+        } finally {
+            index = null;
+        }
+    }
+
+    /**
+     * Adds a file's result to the report and index, if there are any.
+     *
+     * @param result outcome of verifying the file
+     */
+    private void report(final VerificationResult result) {
+        if (result.isBroken()) {
+            failures.add(result.getFile());
+        }
+        if (listedCods != null) {
+            rememberListed(result);
+        }
+        if (report == null && index == null) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            if (report != null) {
+                try {
+                    report.write(result, signerPolicies);
+                } catch (IOException e) {
+                    throw new BuildException("Unable to write report "
+                            + reportFile, e);
+                }
+            }
+            if (index != null) {
+                try {
+                    index.add(result);
+                } catch (IOException e) {
+                    throw new BuildException("Unable to write index "
+                            + indexFile, e);
+                }
+            }
+        } finally {
+            metrics.addTime(VerificationMetrics.Phase.REPORT,
+                    System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Loads the verification cache, if one is configured.
+     *
+     * @return the cache, or null if caching is off
+     */
+    private VerificationCache openCache() {
+        if (cacheFile == null) {
+            return null;
+        }
+        String reason = wholeReadReason();
+        if (reason != null) {
+            logMsg(reason + "; not using the cache");
+            return null;
+        }
+        long started = System.nanoTime();
+        VerificationCache cache = new VerificationCache(cacheFile, cacheSize);
+        try {
+            cache.load();
+        } catch (IOException e) {
+            logError("Unable to read cache " + cacheFile
+                    + "; verifying every file");
+            logWarning(e);
+        }
+        metrics.addTime(VerificationMetrics.Phase.CACHE,
+                System.nanoTime() - started);
+        return cache;
+    }
+
+    /**
+     * Writes back and releases the verification cache, if there is one.
+     */
+    private void closeCache() {
+        if (verificationCache == null) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            verificationCache.save();
+        } catch (IOException e) {
+            logError("Unable to write cache " + cacheFile);
+            logWarning(e);
+        } finally {
+            verificationCache = null;
+            metrics.addTime(VerificationMetrics.Phase.CACHE,
+                    System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Goes through every desired cod file in the fileset and checks signature.
+     *
+     * @param fs FileSet to check.
+     * @return false iff the fileset is a set of valid, signed cods.
+     */
+    protected final boolean brokenFileSet(final FileSet fs) {
+        return brokenFiles(includedFiles(fs));
+    }
+
+    /**
+     * Lists the files selected by a fileset, in scanner order.
+     *
+     * @param fs FileSet to scan
+     * @return the included files, resolved against the fileset's base dir
+     */
+    private List<File> includedFiles(final FileSet fs) {
+        DirectoryScanner ds = fs.getDirectoryScanner();
+        List<File> files = new ArrayList<File>();
         for (String fileName : ds.getIncludedFiles()) {
-            if (isBroken(new File(ds.getBasedir(), fileName))) {
+            files.add(new File(ds.getBasedir(), fileName));
+        }
+        return files;
+    }
+
+    /**
+     * Compiles the task's signers and nested policies. Paths are matched
+     * relative to the directories of the filesets.
+     *
+     * @return the compiled policies
+     * @throws BuildException if a policy is invalid
+     */
+    private SignerPolicies compilePolicies() {
+        if (policies.isEmpty()) {
+            return new SignerPolicies(signers);
+        }
+        List<File> directories = new ArrayList<File>();
+        for (FileSet fs : fileSet) {
+            File archive = archiveOf(fs);
+            directories.add(archive != null ? archive
+                    : fs.getDir(getProject()));
+        }
+        try {
+            return new SignerPolicies(signers, policies, directories);
+        } catch (IllegalArgumentException e) {
+            throw new BuildException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param fs a fileset
+     * @return the archive whose entries the fileset selects, or null if it
+     *         selects files in a directory
+     */
+    private File archiveOf(final FileSet fs) {
+        if (!(fs instanceof ZipFileSet)) {
+            return null;
+        }
+        return ((ZipFileSet) fs).getSrc(getProject());
+    }
+
+    /**
+     * Verifies the entries selected by archive filesets, one archive at a
+     * time, after the files of the other filesets.
+     *
+     * @param archives filesets of archive entries
+     * @return true if at least one entry or archive is broken
+     */
+    private boolean brokenArchives(final List<ZipFileSet> archives) {
+        boolean error = false;
+        for (ZipFileSet fs : archives) {
+            if (brokenArchive(fs)) {
                 error = true;
+                if (failFast) {
+                    break;
+                }
             }
         }
-        return error;
+        return error;
+    }
+
+    /**
+     * Verifies the entries of an archive selected by a fileset in one pass
+     * over the archive. Each entry is reported as a file whose path is the
+     * archive's path followed by the entry's name; the siblings of a big
+     * COD, and the CODs of zips nested in the entry, are its siblings, named
+     * by their path within the entry.
+     *
+     * @param fs fileset selecting entries of an archive
+     * @return true if at least one entry or the archive is broken
+     */
+    private boolean brokenArchive(final ZipFileSet fs) {
+        File archive = fs.getSrc(getProject());
+        Set<String> included = new HashSet<String>(Arrays.asList(
+                fs.getDirectoryScanner(getProject()).getIncludedFiles()));
+        boolean error = false;
+        // the entry being read, or the archive between entries
+        File current = archive;
+        try {
+            ZipInputStream zip = new ZipInputStream(new BufferedInputStream(
+                    new FileInputStream(archive), SIGNED_CHUNK));
+            try {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    current = new File(archive,
+                            entry.getName().replace('/', File.separatorChar));
+                    if (!entry.isDirectory()
+                            && included.contains(entry.getName())) {
+                        VerificationResult result = verifyEntry(current, zip,
+                                entry.getSize());
+                        report(result);
+                        if (result.isBroken()) {
+                            error = true;
+                            if (failFast) {
+                                break;
+                            }
+                        }
+                    }
+                    zip.closeEntry();
+                    current = archive;
+                }
+            } finally {
+                closeCod(zip, archive.getName());
+            }
+        } catch (IOException e) {
+            logError("Encountered unexpected error while reading "
+                    + current);
+            logWarning(e);
+            failures.add(current);
+            error = true;
+        }
+        if (error && failFast && cancelled.compareAndSet(false, true)) {
+            firstFailure = current;
+        }
+        return error;
+    }
+
+    /**
+     * Verifies one entry of an archive as it is streamed.
+     *
+     * @param entryFile the archive's path followed by the entry's name
+     * @param in stream positioned at the start of the entry
+     * @param size size of the entry, or -1 if unknown
+     * @return the signing information of each COD and whether the entry
+     *         passed
+     */
+    private VerificationResult verifyEntry(final File entryFile,
+            final InputStream in, final long size) {
+        long started = System.nanoTime();
+        Object event = metrics.fileStarted();
+        List<CodSigningInfo> cods = new ArrayList<CodSigningInfo>();
+        try {
+            readNested(entryFile, entryFile.getName(), in, size, 0, cods);
+        } catch (IOException e) {
+            // a corrupt nested zip; the archive itself is read on
+            logError("Encountered unexpected error while reading "
+                    + entryFile);
+            logWarning(e);
+            CodSigningInfo failure = failed(entryFile.getName(),
+                    BadCodException.Kind.READ_FAILED);
+            failure.skipLaterSiblings();
+            cods.add(failure);
+        }
+        return check(entryFile, cods, -1, 0, event, started);
+    }
+
+    /**
+     * Reads a streamed COD, or each COD of a streamed zip, going into nested
+     * zips in memory. Only the stream's own buffers and each COD's signature
+     * trailer are held.
+     *
+     * @param entryFile the archive's path followed by the entry's name
+     * @param name name to report the COD or zip under
+     * @param in stream positioned at the start of the COD or zip
+     * @param size size of the COD or zip, or -1 if unknown
+     * @param depth number of zips the stream is nested in below the entry
+     * @param cods receives the signing information of each COD
+     * @throws IOException upon failure to read a zip
+     */
+    private void readNested(final File entryFile, final String name,
+            final InputStream in, final long size, final int depth,
+            final List<CodSigningInfo> cods) throws IOException {
+        byte[] magic = new byte[CodInspector.MAGIC_LENGTH];
+        PushbackInputStream peek = new PushbackInputStream(in, magic.length);
+        int read = CodInspector.readAtMost(peek, magic, magic.length);
+        peek.unread(magic, 0, read);
+        ByteBuffer bytes = ByteBuffer.wrap(magic, 0, read);
+        if (read == magic.length && bytes.getInt(0) == CodHeader.FLASH_ID) {
+            cods.add(signers(peek, name, size));
+        } else if (CodInspector.isZip(bytes) && depth < MAX_NESTING) {
+            // not closed: that would close the enclosing stream
+            ZipInputStream zip = new ZipInputStream(peek);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                int before = cods.size();
+                readNested(entryFile, name + File.separator
+                        + entry.getName().replace('/', File.separatorChar),
+                        zip, entry.getSize(), depth + 1, cods);
+                if (failFast && cods.size() > before && isBrokenCod(
+                        entryFile, cods.get(cods.size() - 1))) {
+                    cods.get(cods.size() - 1).skipLaterSiblings();
+                    // the entry fails; its other CODs don't matter
+                    break;
+                }
+            }
+        } else {
+            logWarning(new BadCodException(name + (CodInspector.isZip(bytes)
+                    ? " is nested more than " + MAX_NESTING + " zips deep"
+                    : " is neither a COD nor a zip")));
+            logError("Bad COD file.");
+            cods.add(failed(name, BadCodException.Kind.NOT_A_COD));
+        }
+    }
+
+    /**
+     * Checks the signatures of the given files, spreading the work over
+     * {@link #getThreads()} worker threads. Log output for each file is
+     * emitted in the order the files were given.
+     *
+     * @param files COD files to check
+     * @return false iff every file is a valid, signed cod.
+     */
+    protected final boolean brokenFiles(final List<File> files) {
+        return brokenFiles(files.iterator());
+    }
+
+    /**
+     * Checks the given files, in order, as they become available.
+     *
+     * @param files the files to be checked; may block while files are found
+     * @return false iff every file is a valid, signed cod.
+     */
+    private boolean brokenFiles(final Iterator<File> files) {
+        signerPolicies = compilePolicies();
+        cancelled.set(false);
+        firstFailure = null;
+        failures.clear();
+        if (readAheadDepth > 0 && wholeReadReason() == null) {
+            readAhead = new ReadAhead(files, readAheadDepth);
+        }
+        try {
+            return verifyFiles(readAhead != null ? readAhead : files);
+        } finally {
+            if (readAhead != null) {
+                readAhead.close();
+                readAhead = null;
+            }
+        }
+    }
+
+    /**
+     * Verifies each file, in parallel if more than one thread is configured.
+     * Only a few files per thread are in flight at a time, and each result is
+     * reported and dropped in file order.
+     *
+     * @param files the files to be checked
+     * @return true if at least one file is broken
+     */
+    private boolean verifyFiles(final Iterator<File> files) {
+        boolean error = false;
+        if (threads == 1) {
+            while (files.hasNext()) {
+                VerificationResult result = verify(files.next());
+                report(result);
+                if (result.isBroken()) {
+                    error = true;
+                    if (failFast) {
+                        break;
+                    }
+                }
+            }
+            return error;
+        }
+
+        VerificationService sharing = service;
+        ExecutorService pool = sharing != null ? sharing.executor(threads)
+                : Executors.newFixedThreadPool(threads,
+                        new WorkerThreadFactory());
+        Queue<Verification> inFlight = new ArrayDeque<Verification>();
+        try {
+            while (true) {
+                while (inFlight.size() < threads * FILES_PER_THREAD
+                        && files.hasNext()) {
+                    Verification task = new Verification(files.next());
+                    task.future = pool.submit(task);
+                    inFlight.add(task);
+                }
+                Verification task = inFlight.poll();
+                if (task == null) {
+                    break;
+                }
+                VerificationResult result = awaitResult(task, task.future);
+                if (result == null) {
+                    // given up because a later file already failed
+                    continue;
+                }
+                report(result);
+                if (result.isBroken()) {
+                    error = true;
+                    if (failFast) {
+                        for (Verification pending : inFlight) {
+                            pending.future.cancel(false);
+                        }
+                        break;
+                    }
+                }
+            }
+        } finally {
+            if (sharing != null) {
+                awaitWorkers(inFlight);
+            } else {
+                pool.shutdownNow();
+                awaitWorkers(pool);
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Waits for workers abandoned in fail-fast mode to notice, so that none
+     * outlives the run's cache and report.
+     *
+     * @param pool the shut down pool
+     */
+    private static void awaitWorkers(final ExecutorService pool) {
+        try {
+            pool.awaitTermination(WORKER_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Cancels this run's queued work on the shared pool and waits for the
+     * work already started, which the pool cannot be shut down for.
+     *
+     * @param inFlight verifications of the run not yet reported
+     */
+    private static void awaitWorkers(final Queue<Verification> inFlight) {
+        long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(WORKER_SHUTDOWN_SECONDS);
+        for (Verification pending : inFlight) {
+            pending.future.cancel(false);
+        }
+        for (Verification pending : inFlight) {
+            if (pending.future.isDone()) {
+                continue;
+            }
+            try {
+                pending.future.get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // a worker that failed or is still busy is given up on
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Waits for one file's verification to finish and replays its log.
+     *
+     * @param task the verification whose messages are replayed
+     * @param result pending result of the verification
+     * @return the outcome of verifying the file, or null if it was given up
+     *         in fail-fast mode
+     */
+    private VerificationResult awaitResult(final Verification task,
+            final Future<VerificationResult> result) {
+        try {
+            VerificationResult verified;
+            try {
+                verified = result.get();
+            } finally {
+                task.replay();
+            }
+            return verified;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while verifying "
+                    + task.file, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BuildException) {
+                throw (BuildException) e.getCause();
+            }
+            throw new BuildException(e.getCause());
+        }
+    }
+
+    /**
+     * Verifies that the given file has the signers specified by the class data
+     * member.
+     *
+     * @param inputFile The file to be checked
+     * @return false if the file is a valid, signed cod. true otherwise
+     */
+    protected final boolean isBroken(final File inputFile) {
+        return verify(inputFile).isBroken();
+    }
+
+    /**
+     * Verifies that the given file has the signers specified by the class data
+     * member, keeping the signing information read.
+     *
+     * @param inputFile The file to be checked
+     * @return the signing information of each COD and whether the file passed
+     */
+    protected final VerificationResult verify(final File inputFile) {
+        long started = System.nanoTime();
+        Object event = metrics.fileStarted();
+        long size = -1;
+        long modified = 0;
+        if (index != null || baseline != null) {
+            size = inputFile.length();
+            modified = inputFile.lastModified();
+        }
+        List<CodSigningInfo> codSignatures = carryForward(inputFile, size,
+                modified);
+        if (codSignatures == null) {
+            codSignatures = readCachedCod(inputFile);
+        }
+        ReadAhead fetching = readAhead;
+        if (fetching != null) {
+            // answered without reading, e.g. from a cache
+            fetching.discard(inputFile);
+        }
+        return check(inputFile, codSignatures, size, modified, event,
+                started);
+    }
+
+    /**
+     * Checks the CODs read from a file against their policies.
+     *
+     * @param inputFile the file, or the path of an archive entry
+     * @param codSignatures the signing information of each COD in the file
+     * @param size size of the file, or -1 if unknown
+     * @param modified modification time of the file, or 0 if unknown
+     * @param event the metrics event of the file
+     * @param started when verifying the file started, in nanoseconds
+     * @return the signing information of each COD and whether the file passed
+     */
+    private VerificationResult check(final File inputFile,
+            final List<CodSigningInfo> codSignatures, final long size,
+            final long modified, final Object event, final long started) {
+        boolean error = codSignatures.isEmpty();
+        for (CodSigningInfo oneCod : codSignatures) {
+            if (!meetsPolicy(inputFile, oneCod)) {
+                error = true;
+                if (oneCod.getError() == null) {
+                    metrics.codUnsigned();
+                }
+            } else if (oneCod.getError() != null) {
+                logError(oneCod.getFilename() + " has an invalid signature!");
+                error = true;
+            }
+        }
+        VerificationResult result = new VerificationResult(inputFile,
+                codSignatures, error, size, modified);
+        metrics.fileVerified(event, result, System.nanoTime() - started);
+        if (error && failFast && cancelled.compareAndSet(false, true)) {
+            firstFailure = inputFile;
+        }
+        return result;
+    }
+
+    /**
+     * Checks a COD against the policy its path selects, logging each
+     * required signer that is missing and each forbidden signer present.
+     *
+     * @param inputFile file the COD was read from
+     * @param cod the COD or one of the file's siblings
+     * @return true if the COD is signed as its policy requires
+     */
+    private boolean meetsPolicy(final File inputFile,
+            final CodSigningInfo cod) {
+        if (cod.getSignerCount() == 0) {
+            logError(cod.getFilename() + " is missing a signature!");
+            return false;
+        }
+        SignerPolicies.Rule rule = signerPolicies.select(inputFile, cod);
+        SignerIndex named = signerPolicies.getSigners();
+        long mask = named.mask(cod);
+        long logged = rule.getRequired() | rule.getOptional();
+        for (int i = 0; i < named.size(); i++) {
+            long bit = 1L << i;
+            if ((rule.getRequired() & bit) != 0 && (mask & bit) == 0) {
+                logError(cod.getFilename() + " not signed by "
+                        + named.getSigner(i));
+            } else if ((rule.getForbidden() & bit) != 0
+                    && (mask & bit) != 0) {
+                logError(cod.getFilename() + " is signed by forbidden signer "
+                        + named.getSigner(i));
+            } else if (verbose && (logged & bit) != 0 && (mask & bit) != 0) {
+                logMsg(cod.getFilename() + " signed by "
+                        + named.getSigner(i));
+            }
+        }
+        if (verbose) {
+            logMsg(cod.getSigners().toString());
+        }
+        if ((mask & rule.getRequired()) != rule.getRequired()) {
+            logError(cod.getFilename() + " is missing a signature!");
+            return false;
+        }
+        if ((mask & rule.getForbidden()) != 0) {
+            logError(cod.getFilename() + " has a forbidden signature!");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks to see if the given CodSigningInfo contains signatures by every
+     * signer in expectedSigners.
+     *
+     * @param cod codfile containing data about signers of a file
+     * @param expectedSigners Set of expected signers
+     * @return true if all signers are present, false otherwise
+     */
+    protected final boolean isSignedBySigners(final CodSigningInfo cod,
+            final Set<String> expectedSigners) {
+        return isSignedBySigners(cod, new SignerIndex(expectedSigners));
+    }
+
+    /**
+     * Checks to see if the given CodSigningInfo contains signatures by every
+     * signer in a compiled set of expected signers.
+     *
+     * @param cod codfile containing data about signers of a file
+     * @param expectedSigners compiled set of expected signers
+     * @return true if all signers are present, false otherwise
+     */
+    protected final boolean isSignedBySigners(final CodSigningInfo cod,
+            final SignerIndex expectedSigners) {
+        // Pre-condition: CodsigningInfo and expectedSigners have been
+        //                initialized
+        // Post-condition: Presence/Absence of signers in file has been logged
+        if (cod.getSignerCount() == 0) {
+            return false;
+        }
+        long mask = expectedSigners.mask(cod);
+        for (int i = 0; i < expectedSigners.size(); i++) {
+            if ((mask & (1L << i)) == 0) {
+                logError(cod.getFilename() + " not signed by "
+                        + expectedSigners.getSigner(i));
+            } else if (verbose) {
+                logMsg(cod.getFilename() + " signed by "
+                        + expectedSigners.getSigner(i));
+            }
+        }
+        if (verbose) {
+            logMsg(cod.getSigners().toString());
+        }
+        return expectedSigners.isSatisfied(mask);
+    }
+
+    /**
+     * Takes a file's signing information from the baseline if the file is
+     * unchanged: not in the change list if there is one, else of the size
+     * and modification time the baseline recorded. Nothing is carried
+     * forward while signatures are checked, or for files whose reading
+     * failed, which are retried.
+     *
+     * @param inputFile the file to verify
+     * @param size current size of the file
+     * @param modified current modification time of the file
+     * @return the signing information of each COD in the file, or null if
+     *         the file must be read
+     */
+    private List<CodSigningInfo> carryForward(final File inputFile,
+            final long size, final long modified) {
+        CodIndex known = baseline;
+        if (known == null || wholeReadReason() != null) {
+            return null;
+        }
+        Set<Path> changed = changedPaths;
+        if (changed != null && changed.contains(normalize(inputFile))) {
+            return null;
+        }
+        long started = System.nanoTime();
+        try {
+            List<CodIndex.Entry> entries = known.lookupFile(inputFile);
+            if (entries == null) {
+                return null;
+            }
+            CodIndex.Entry first = entries.get(0);
+            if (changed == null && (first.getFileLength() != size
+                    || first.getFileModified() != modified)) {
+                return null;
+            }
+            List<CodSigningInfo> cods =
+                new ArrayList<CodSigningInfo>(entries.size());
+            for (CodIndex.Entry entry : entries) {
+                if (entry.getError() == BadCodException.Kind.READ_FAILED) {
+                    return null;
+                }
+                String sibling = entry.getSiblingName();
+                cods.add(entry.toSigningInfo(sibling == null
+                        ? inputFile.getName()
+                        : inputFile.getName() + File.separator + sibling));
+            }
+            metrics.carriedForward();
+            return cods;
+        } finally {
+            metrics.addTime(VerificationMetrics.Phase.CACHE,
+                    System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Reads a COD file, answering from the verification daemon if it watches
+     * the file, from the project's shared results if an earlier task verified
+     * it, or from the verification cache when the file is unchanged since it
+     * was cached.
+     *
+     * @param inputFile COD file to be read.
+     * @return List of CodSigningInfos where each element corresponds to a
+     *         subfile.
+     */
+    private List<CodSigningInfo> readCachedCod(final File inputFile) {
+        List<CodSigningInfo> remote = askDaemon(inputFile);
+        if (remote != null) {
+            return remote;
+        }
+        VerificationService sharing = wholeReadReason() == null ? service
+                : null;
+        if (sharing != null) {
+            List<CodSigningInfo> known = sharing.lookup(inputFile);
+            if (known != null) {
+                metrics.cacheHit();
+                return known;
+            }
+        }
+        List<CodSigningInfo> cods = readPersistentCod(inputFile);
+        if (sharing != null && isCacheable(cods)) {
+            sharing.store(inputFile, cods);
+        }
+        return cods;
+    }
+
+    /**
+     * Reads a file's signing information through the verification cache, if
+     * one is in use.
+     *
+     * @param inputFile the file to read
+     * @return the signing information of each COD in the file
+     */
+    private List<CodSigningInfo> readPersistentCod(final File inputFile) {
+        VerificationCache cache = verificationCache;
+        if (cache == null) {
+            return readCod(inputFile);
+        }
+        long started = System.nanoTime();
+        long size = inputFile.length();
+        long modified = inputFile.lastModified();
+        VerificationCache.Entry cached = cache.lookup(inputFile);
+        boolean hit = cached != null && cached.sameSize(size)
+                && (cached.matches(size, modified)
+                        || sameBigCod(inputFile, cached));
+        if (hit) {
+            cache.touch(cached, modified);
+        }
+        metrics.addTime(VerificationMetrics.Phase.CACHE,
+                System.nanoTime() - started);
+        if (hit) {
+            metrics.cacheHit();
+            return cached.getSigningInfo();
+        }
+        List<CodSigningInfo> cods = readCod(inputFile);
+        if (isCacheable(cods)) {
+            String prefix = inputFile.getName() + File.separator;
+            cache.store(inputFile, size, modified, cods,
+                    cods.get(0).getFilename().startsWith(prefix)
+                    ? zipKey(inputFile) : null);
+        }
+        return cods;
+    }
+
+    /**
+     * Checks whether a big cod that was touched since it was cached still
+     * has the same siblings, by reading only its zip directory.
+     *
+     * @param inputFile big cod to check
+     * @param cached cache entry for the file
+     * @return true if the siblings are unchanged
+     */
+    private boolean sameBigCod(final File inputFile,
+            final VerificationCache.Entry cached) {
+        byte[] key = zipKey(inputFile);
+        return key != null && cached.sameContent(key);
+    }
+
+    /**
+     * Identifies the siblings of a big cod by its zip directory alone: the
+     * CRC-32 and size of each entry. This only tells a touched big cod from
+     * a rewritten one; siblings read in a run are identified by the digest
+     * of their header and trailer.
+     *
+     * @param inputFile big cod to read
+     * @return SHA-1 over the entries' CRC-32s and sizes, or null if the
+     *         directory cannot be read
+     */
+    private static byte[] zipKey(final File inputFile) {
+        try {
+            RandomAccessFile in = new RandomAccessFile(inputFile, "r");
+            try {
+                ZipDirectory directory = ZipDirectory.read(in.getChannel());
+                if (directory == null) {
+                    return null;
+                }
+                MessageDigest sha = VerificationCache.sha1();
+                for (ZipDirectory.Entry entry : directory.getEntries()) {
+                    sha.update(entry.getDigest());
+                }
+                return sha.digest();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Only complete, signed results are cached; anything else, including a
+     * big COD whose later siblings were skipped in fail-fast mode, is read
+     * again on the next build so that its errors are reported again.
+     *
+     * @param cods signing information read from a file
+     * @return true if the result may be cached
+     */
+    private static boolean isCacheable(final List<CodSigningInfo> cods) {
+        if (cods.isEmpty()) {
+            return false;
+        }
+        for (CodSigningInfo cod : cods) {
+            if (cod.getDigest() == null || cod.getSignerCount() == 0
+                    || cod.areLaterSiblingsSkipped()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a COD file, opening it once. Its first bytes decide how it is
+     * read: a COD flash ID as a single COD, a zip signature as a big COD,
+     * anything else is reported as not a COD.
+     *
+     * @param inputFile COD file to be read.
+     * @return List of CodSigningInfos where each element corresponds to a
+     *         subfile.
+     *
+     * @see #readSingleFile(File)
+     * @see #signers(InputStream, String)
+     */
+    protected final List<CodSigningInfo> readCod(final File inputFile) {
+        // Pre-condition: - fileName is a valid codfile name
+        // Post-condition: - The signers have been returned and the file has
+        //                   been closed
+        String fileName = inputFile.getName();
+        List<CodSigningInfo> returnValue = new ArrayList<CodSigningInfo>();
+        CodSigningInfo fetched = readFetched(inputFile);
+        if (fetched != null) {
+            returnValue.add(fetched);
+            return returnValue;
+        }
+        long started = System.nanoTime();
+        try {
+            FileChannel channel = FileChannel.open(inputFile.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                ByteBuffer magic = ByteBuffer.allocate(
+                        CodInspector.MAGIC_LENGTH);
+                if (channel.size() >= magic.capacity()) {
+                    ZipDirectory.readFully(channel, magic, 0);
+                }
+                metrics.addTime(VerificationMetrics.Phase.OPEN,
+                        System.nanoTime() - started);
+                if (magic.getInt(0) == CodHeader.FLASH_ID) {
+                    CodSigningInfo cod = signers(channel, 0, channel.size(),
+                            fileName);
+                    cod.setSource(inputFile, null, 0);
+                    returnValue.add(cod);
+                } else if (CodInspector.isZip(magic)) {
+                    readBigCod(inputFile, channel, returnValue);
+                } else {
+                    logWarning(new BadCodException(fileName
+                            + " is neither a COD nor a big COD"));
+                    logError("Bad COD file.");
+                    returnValue.add(failed(fileName,
+                            BadCodException.Kind.NOT_A_COD));
+                }
+            } finally {
+                closeCod(channel, fileName);
+            }
+        } catch (IOException ioException) {
+            logError("Encountered unexpected error while reading " + fileName);
+            logWarning(ioException);
+            // the siblings read so far are not the whole file: fail it, and
+            // keep it out of the cache and the index
+            CodSigningInfo failure = failed(fileName,
+                    BadCodException.Kind.READ_FAILED);
+            failure.skipLaterSiblings();
+            returnValue.add(failure);
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Reads the siblings of a big COD through its open channel. Stored
+     * siblings are read in place and compressed ones inflated from the same
+     * channel; a zip whose directory cannot be read is streamed instead.
+     *
+     * @param inputFile the big COD
+     * @param channel open channel to the big COD
+     * @param returnValue receives the signing information of each sibling
+     * @throws IOException upon failure to read the zip
+     */
+    private void readBigCod(final File inputFile, final FileChannel channel,
+            final List<CodSigningInfo> returnValue) throws IOException {
+        String fileName = inputFile.getName();
+        ZipDirectory directory = ZipDirectory.read(channel);
+        if (directory == null) {
+            streamBigCod(inputFile, channel, returnValue);
+            return;
+        }
+        for (ZipDirectory.Entry entry : directory.getEntries()) {
+            if (failFast && cancelled.get()) {
+                throw new CancellationException();
+            }
+            String siblingName = fileName + File.separator + entry.getName();
+
+            // puts its signer set into the arraylist; identical CODs read
+            // earlier are found by the digest of the header and trailer
+            CodSigningInfo sibling;
+            if (entry.getMethod() == ZipEntry.STORED
+                    && entry.getCompressedSize() == entry.getSize()) {
+                long dataOffset = entry.getDataOffset(channel);
+                sibling = signers(channel, dataOffset, entry.getSize(),
+                        siblingName);
+                // its signatures are read in place, like a plain COD's
+                sibling.setSource(inputFile, null, dataOffset);
+            } else {
+                InputStream inputStream = entry.open(channel);
+                try {
+                    sibling = signers(inputStream, siblingName,
+                            entry.getSize());
+                } finally {
+                    inputStream.close();
+                }
+                sibling.setSource(inputFile, entry.getName(), 0);
+            }
+            returnValue.add(sibling);
+            if (failFast && isBrokenCod(inputFile, sibling)) {
+                // the big cod fails; its other siblings don't matter
+                sibling.skipLaterSiblings();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the siblings of a big COD whose central directory is not
+     * understood, e.g. a Zip64 archive, from its local headers.
+     *
+     * @param inputFile the big COD
+     * @param channel open channel to the big COD
+     * @param returnValue receives the signing information of each sibling
+     * @throws IOException upon failure to read the zip
+     */
+    private void streamBigCod(final File inputFile, final FileChannel channel,
+            final List<CodSigningInfo> returnValue) throws IOException {
+        ZipInputStream zip = new ZipInputStream(
+                Channels.newInputStream(channel.position(0)));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (failFast && cancelled.get()) {
+                throw new CancellationException();
+            }
+            CodSigningInfo sibling = signers(zip, inputFile.getName()
+                    + File.separator + entry.getName(), entry.getSize());
+            sibling.setSource(inputFile, entry.getName(), 0);
+            returnValue.add(sibling);
+            if (failFast && isBrokenCod(inputFile, sibling)) {
+                sibling.skipLaterSiblings();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Parses a plain COD whose header and trailer were read ahead.
+     *
+     * @param inputFile COD file to be read
+     * @return signing information of the COD, or null if it was not read
+     *         ahead
+     */
+    private CodSigningInfo readFetched(final File inputFile) {
+        ReadAhead fetching = readAhead;
+        if (fetching == null) {
+            return null;
+        }
+        long started = System.nanoTime();
+        ReadAhead.Fetched bytes;
+        try {
+            bytes = fetching.take(inputFile);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while reading "
+                    + inputFile, e);
+        }
+        metrics.addTime(VerificationMetrics.Phase.OPEN,
+                System.nanoTime() - started);
+        if (bytes == null) {
+            return null;
+        }
+        CodSigningInfo info;
+        try {
+            info = signers(null, 0, bytes.getLength(), inputFile.getName(),
+                    bytes);
+        } catch (IOException e) {
+            // nothing is read from the channel when the bytes are given
+            throw new BuildException(e);
+        }
+        info.setSource(inputFile, null, 0);
+        return info;
     }
 
     /**
-     * Verifies that the given file has the signers specified by the class data
-     * member.
+     * Checks, without logging, whether a COD fails verification.
      *
-     * @param inputFile The file to be checked
-     * @return false if the file is a valid, signed cod. true otherwise
+     * @param inputFile file the COD was read from
+     * @param cod COD that was read
+     * @return true if it could not be read or does not meet its policy
      */
-    protected final boolean isBroken(final File inputFile) {
-        List<CodSigningInfo> codSignatures = readCod(inputFile);
-        if (codSignatures.isEmpty()) {
-            return true;
+    private boolean isBrokenCod(final File inputFile,
+            final CodSigningInfo cod) {
+        return cod.getError() != null || cod.getSignerCount() == 0
+            || !signerPolicies.select(inputFile, cod).isSatisfied(
+                    signerPolicies.getSigners().mask(cod));
+    }
+
+    /**
+     * Looks for a COD with the same content that was already read in this
+     * run. Copies read concurrently by different threads may each be read
+     * once. Nothing is reused while signatures are checked.
+     *
+     * @param digest digest of the COD about to be read, may be null
+     * @param fileName name to report the COD under
+     * @return a copy of the earlier result under the new name, or null
+     */
+    private CodSigningInfo findParsed(final byte[] digest,
+            final String fileName) {
+        if (digest == null || wholeReadReason() != null) {
+            // digests cover the trailer, not the signed content
+            return null;
         }
-        boolean error = false;
-        for (CodSigningInfo oneCod : codSignatures) {
-            if (!isSignedBySigners(oneCod, signers)) {
-                logError(oneCod.getFilename() + " is missing a signature!");
-                error = true;
-            }
+        CodSigningInfo parsed = parsedCods.get(ByteBuffer.wrap(digest));
+        if (parsed == null) {
+            return null;
         }
-        return error;
+        duplicateCods.incrementAndGet();
+        CodSigningInfo copy = new CodSigningInfo(fileName);
+        copy.setDigest(digest);
+        copy.copyContent(parsed);
+        return copy;
     }
 
     /**
-     * Checks to see if the given CodSigningInfo contains signatures by every
-     * signer in expectedSigners.
+     * Remembers a COD's signers for identical copies read later in this run.
+     * Only complete, signed results are remembered.
      *
-     * @param cod codfile containing data about signers of a file
-     * @param expectedSigners Set of expected signers
-     * @return true if all signers are present, false otherwise
+     * @param cod COD that was just read
      */
-    protected final boolean isSignedBySigners(final CodSigningInfo cod,
-            final Set<String> expectedSigners) {
-        // Pre-condition: CodsigningInfo and expectedSigners have been
-        //                initialized
-        // Post-condition: Presence/Absence of signers in file has been logged
-        if (cod.getSigners().isEmpty()) {
-            return false;
-        }
-        boolean returnValue = true;
-        for (String expectedSigner : expectedSigners) {
-            if (!cod.getSigners().contains(expectedSigner)) {
-                logError(cod.getFilename() + " not signed by "
-                        + expectedSigner);
-                returnValue = false;
-            } else {
-                logMsg(cod.getFilename() + " signed by " + expectedSigner);
-            }
+    private void rememberParsed(final CodSigningInfo cod) {
+        if (cod.getDigest() != null && cod.getSignerCount() > 0
+                && parsedCods.size() < MAX_PARSED_CODS) {
+            parsedCods.putIfAbsent(ByteBuffer.wrap(cod.getDigest()), cod);
         }
-        logMsg(cod.getSigners().toString());
-        return returnValue;
     }
 
     /**
-     * Attempts to read a COD file. If it is zipped, it reads; else it is passed
-     * on to {@link readSingleFile()}.
+     * Number of CODs and siblings that were not parsed because a COD with
+     * the same content had already been read in this run.
      *
-     * @param inputFile COD file to be read.
-     * @return List of CodSigningInfos where each element corresponds to a
-     *         subfile.
+     * @return number of duplicates skipped
+     */
+    public final int getDuplicateCount() {
+        return duplicateCods.get();
+    }
+
+    /**
+     * Closes a cod or big cod file, logging any failure.
      *
-     * @see #readSingleFile(File)
-     * @see #signers(InputStream, String)
+     * @param cod open cod or big cod
+     * @param fileName name of the file, for the log
      */
-    protected final List<CodSigningInfo> readCod(final File inputFile) {
-        // Pre-condition: - fileName is a valid codfile name
-        // Post-condition: - The signers have been returned and the file has
-        //                   been closed
-        String fileName = inputFile.getName();
-        List<CodSigningInfo> returnValue = new ArrayList<CodSigningInfo>();
-        JarFile bigcod;
-        Enumeration<JarEntry> entries;
+    private void closeCod(final Closeable cod, final String fileName) {
         try {
-            bigcod = new JarFile(inputFile);
-            entries = bigcod.entries();
-            try {
-                while (entries.hasMoreElements()) {
-                    // read Jar entry:
-                    JarEntry currentEntry = entries.nextElement();
-                    InputStream inputStream = bigcod
-                            .getInputStream(currentEntry);
-
-                    // puts its signer set into the arraylist
-                    returnValue.add(signers(inputStream, fileName
-                            + File.separator + currentEntry));
-                }
-            } finally {
-                try {
-                    bigcod.close();
-                } catch (IOException e) {
-                    logError("Unable to close big cod file " + fileName);
-                    log(e, Project.MSG_WARN);
-                }
-            }
-        } catch (ZipException zipException) {
-            logMsg("May not be a big COD: opening normally");
-            returnValue.add(readSingleFile(inputFile));
-        } catch (IOException ioException) {
-            logError("Encountered unexpected error while reading big cod file");
-            log(ioException, Project.MSG_WARN);
+            cod.close();
+        } catch (IOException e) {
+            logError("Unable to close cod file " + fileName);
+            logWarning(e);
         }
-
-        return returnValue;
     }
 
     /**
      * Reads a small codfile (not a zipped one) and returns a list of signers.
+     * Only the header and the signature trailer are read; the code and data
+     * sections are skipped by seeking.
      *
      * @param inputCodFile File to be read
      * @return HashSet of all signer names
@@ -255,13 +2246,23 @@ public class VerifySignatures extends Task {
         // Post-condition: - The file is closed.
         try {
             FileInputStream inputFile = new FileInputStream(inputCodFile);
+            FileChannel channel = inputFile.getChannel();
 
-            CodSigningInfo returnValue = signers(inputFile,
-                    inputCodFile.getName());
+            CodSigningInfo returnValue;
+            try {
+                returnValue = signers(channel, 0, channel.size(),
+                        inputCodFile.getName());
+                returnValue.setSource(inputCodFile, null, 0);
+            } catch (IOException e) {
+                logWarning(e);
+                logError("Failed to read file.");
+                returnValue = failed(inputCodFile.getName(),
+                        BadCodException.Kind.READ_FAILED);
+            }
             try {
                 inputFile.close();
             } catch (IOException e) {
-                log(e, Project.MSG_WARN);
+                logWarning(e);
                 logError("Failed to close file");
             }
             return returnValue;
@@ -270,6 +2271,237 @@ public class VerifySignatures extends Task {
         }
     }
 
+    /**
+     * Reads the signers of a COD stored at a known position in a channel,
+     * using positional reads for the header and the signature trailer only.
+     *
+     * @param channel Open channel containing the COD
+     * @param start Offset of the start of the COD within the channel
+     * @param length Length of the COD in bytes
+     * @param fileName Name of codfile being looked through
+     * @return CodSigningInfo for the given file
+     * @throws IOException upon failure to read
+     */
+    protected final CodSigningInfo signers(final FileChannel channel,
+            final long start, final long length, final String fileName)
+        throws IOException {
+        return signers(channel, start, length, fileName, null);
+    }
+
+    /**
+     * Reads the signers of a COD stored at a known position in a channel, or
+     * from its header and trailer if these were read ahead.
+     *
+     * @param channel Open channel containing the COD; unused if fetched is
+     *            given and no keys are configured
+     * @param start Offset of the start of the COD within the channel
+     * @param length Length of the COD in bytes
+     * @param fileName Name of codfile being looked through
+     * @param fetched header and trailer read ahead, or null
+     * @return CodSigningInfo for the given file
+     * @throws IOException upon failure to read
+     */
+    private CodSigningInfo signers(final FileChannel channel,
+            final long start, final long length, final String fileName,
+            final ReadAhead.Fetched fetched) throws IOException {
+        // Pre-condition: - channel is open and holds length bytes of COD
+        //                  starting at start
+        // Post-condition: - channel is still open; its position is unchanged
+        CodSigningInfo returnValue = new CodSigningInfo(fileName);
+        long started = System.nanoTime();
+        long skipped = 0;
+        try {
+            if (length < CodHeader.LENGTH) {
+                throw new BadCodException(fileName + " is not a COD");
+            }
+            returnValue.setBytesRead(CodHeader.LENGTH);
+            ByteBuffer headerBytes;
+            if (fetched != null) {
+                headerBytes = fetched.getHeader();
+            } else {
+                headerBytes = ByteBuffer.allocate(CodHeader.LENGTH);
+                ZipDirectory.readFully(channel, headerBytes, start);
+                headerBytes.flip();
+            }
+            CodHeader header = CodInspector.readHeader(headerBytes, fileName);
+
+            long trailerOffset = header.getTrailerOffset();
+            if (trailerOffset > length) {
+                throw new BadCodException(fileName + " is truncated",
+                        BadCodException.Kind.TRUNCATED);
+            }
+            ByteBuffer trailer;
+            if (fetched != null) {
+                trailer = fetched.getTrailer();
+            } else {
+                trailer = ByteBuffer.allocate(CodInspector.trailerLength(
+                        length - trailerOffset, fileName));
+                ZipDirectory.readFully(channel, trailer,
+                        start + trailerOffset);
+                trailer.flip();
+            }
+            returnValue.setBytesRead(CodHeader.LENGTH + trailer.limit());
+            skipped = trailerOffset - CodHeader.LENGTH;
+            MessageDigest sha = VerificationCache.sha1();
+            sha.update(headerBytes);
+            sha.update(trailer.duplicate());
+            byte[] digest = sha.digest();
+            CodSigningInfo parsed = findParsed(digest, fileName);
+            if (parsed != null) {
+                return parsed;
+            }
+            CodInspector.readRecords(trailer, trailerOffset, fileName,
+                    returnValue);
+            returnValue.setHeader(header);
+            returnValue.setLength(length);
+            if (wholeReadReason() != null) {
+                headerBytes.rewind();
+                long body = readBody(channel, start, headerBytes,
+                        trailerOffset, trailer, returnValue);
+                returnValue.setBytesRead(returnValue.getBytesRead() + body);
+                skipped -= body;
+            }
+            returnValue.setDigest(digest);
+            rememberParsed(returnValue);
+        } catch (BadCodException e) {
+            logWarning(e);
+            logError("Bad COD file.");
+            return failed(fileName, e.getKind());
+        } finally {
+            metrics.addBytes(returnValue.getBytesRead(), skipped);
+            metrics.addTime(VerificationMetrics.Phase.PARSE,
+                    System.nanoTime() - started);
+        }
+        return returnValue;
+    }
+
+    /**
+     * Reads the code and data sections of a COD read in place, once for all
+     * of its signers that have keys and for its SHA-1 if descriptors are
+     * checked.
+     *
+     * @param channel open channel containing the COD
+     * @param start offset of the COD within the channel
+     * @param headerBytes the COD's header
+     * @param trailerOffset offset of the signature trailer within the COD
+     * @param trailer the signature trailer
+     * @param info signers of the COD; marked BAD_SIGNATURE if one fails
+     * @return number of bytes read beyond the header and trailer
+     * @throws IOException upon failure to read
+     */
+    private long readBody(final FileChannel channel, final long start,
+            final ByteBuffer headerBytes, final long trailerOffset,
+            final ByteBuffer trailer, final CodSigningInfo info)
+        throws IOException {
+        SignatureChecker.Session session = null;
+        if (signatureChecker != null) {
+            session = startSession(info);
+            if (session.isEmpty()) {
+                session = null;
+            }
+        }
+        MessageDigest content = descriptors != null
+                ? VerificationCache.sha1() : null;
+        if (session == null && content == null) {
+            return 0;
+        }
+        long position = CodHeader.LENGTH;
+        try {
+            if (session != null) {
+                session.update(headerBytes);
+            }
+            if (content != null) {
+                content.update(headerBytes.duplicate());
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(SIGNED_CHUNK);
+            while (position < trailerOffset) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(),
+                        trailerOffset - position));
+                ZipDirectory.readFully(channel, chunk, start + position);
+                chunk.flip();
+                if (session != null) {
+                    session.update(chunk);
+                }
+                if (content != null) {
+                    content.update(chunk);
+                }
+                position += chunk.limit();
+            }
+        } catch (SignatureException e) {
+            throw new BuildException(e);
+        }
+        if (content != null) {
+            content.update(trailer.duplicate());
+            info.setContentDigest(content.digest());
+        }
+        if (session != null) {
+            checkRecords(session, trailerOffset, trailer, info);
+        }
+        return position - CodHeader.LENGTH;
+    }
+
+    /**
+     * Checks the signature of each record whose signer has a key, once the
+     * signed region has been fed to the session.
+     *
+     * @param session session over the COD's signed region
+     * @param trailerOffset offset of the signature trailer within the COD
+     * @param trailer the signature trailer
+     * @param info signers of the COD; marked BAD_SIGNATURE if one fails
+     */
+    private void checkRecords(final SignatureChecker.Session session,
+            final long trailerOffset, final ByteBuffer trailer,
+            final CodSigningInfo info) {
+        for (int i = 0; i < info.getRecordCount(); i++) {
+            SignatureRecord record = info.getRecord(i);
+            if (!session.checks(record.getSignerId())) {
+                continue;
+            }
+            ByteBuffer bytes = trailer.duplicate();
+            bytes.position((int) Math.min(bytes.limit(),
+                    record.getSignatureOffset() - trailerOffset));
+            byte[] signature = new byte[Math.min(bytes.remaining(),
+                    record.getSignatureLength())];
+            bytes.get(signature);
+            checkSignature(session, record, signature, info);
+        }
+    }
+
+    /**
+     * Starts checking the signatures of a COD.
+     *
+     * @param info signers of the COD, or null if they are not known yet
+     * @return a session for the COD's signers that have keys
+     */
+    private SignatureChecker.Session startSession(final CodSigningInfo info) {
+        try {
+            return info == null ? signatureChecker.start()
+                    : signatureChecker.start(info);
+        } catch (GeneralSecurityException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * Checks one record's signature once the signed region has been fed,
+     * marking the COD if it does not match.
+     *
+     * @param session session over the COD's signed region
+     * @param record the record
+     * @param signature signature bytes of the record
+     * @param info signers of the COD
+     */
+    private void checkSignature(final SignatureChecker.Session session,
+            final SignatureRecord record, final byte[] signature,
+            final CodSigningInfo info) {
+        if (!session.verify(record.getSignerId(), signature)) {
+            logError(info.getFilename() + " signature by "
+                    + record.getSigner() + " does not match its content");
+            info.setError(BadCodException.Kind.BAD_SIGNATURE);
+        }
+    }
+
     /**
      * Print out the signers for a given COD input stream.
      *
@@ -279,69 +2511,315 @@ public class VerifySignatures extends Task {
      */
     protected final CodSigningInfo signers(final InputStream inputStream,
             final String fileName) {
+        return signers(inputStream, fileName, -1);
+    }
+
+    /**
+     * Reads the signers of a streamed COD. The header gives the offset of
+     * the signature trailer; the trailer is then read whole and its records
+     * walked within its bounds, so reaching the end of the stream is never
+     * signalled by an exception.
+     *
+     * @param inputStream Open inputStream to a COD file
+     * @param fileName Name of codfile being looked through
+     * @param length Length of the COD in bytes, or -1 if it is only known
+     *            once the stream ends
+     * @return CodSigningInfo for the given file
+     */
+    private CodSigningInfo signers(final InputStream inputStream,
+            final String fileName, final long length) {
         // Pre-condition: - inputStream is not null - inputStream is at the
         //                  beginning of the file
         // Post-condition: - inputStream is at the end of the file, but still
         //                   open
 
-        DataInputStream inputFile;
-        StringBuffer currentSigner = new StringBuffer(LENGTH_OF_SIGNER_ID);
+        InputStream inputFile;
         CodSigningInfo returnValue = new CodSigningInfo(fileName);
+        byte[] digest;
 
-        inputFile = new DataInputStream(inputStream);
+        CountingInputStream counter = new CountingInputStream(inputStream);
+        inputFile = counter;
+        ContentDigestInputStream content = null;
+        if (descriptors != null) {
+            content = new ContentDigestInputStream(inputFile);
+            inputFile = content;
+        }
+        SignedRegionInputStream signed = null;
+        if (signatureChecker != null) {
+            signed = new SignedRegionInputStream(inputFile,
+                    startSession(null));
+            inputFile = signed;
+        }
+        long started = System.nanoTime();
         try {
-            int dataSize; // stores the sum of data size and code size
-            int signLength; // stores the length of the signature
+            byte[] headerBytes = new byte[CodHeader.LENGTH];
+            int headerLength = CodInspector.readAtMost(inputFile, headerBytes,
+                    headerBytes.length);
+            CodHeader header = CodInspector.readHeader(ByteBuffer.wrap(
+                    headerBytes, 0, headerLength), fileName);
+            long trailerOffset = header.getTrailerOffset();
+            if (length >= 0 && trailerOffset > length) {
+                throw new BadCodException(fileName + " is truncated",
+                        BadCodException.Kind.TRUNCATED);
+            }
+            returnValue.setHeader(header);
+            if (signed != null) {
+                signed.endRegionAt(trailerOffset);
+            }
+            long body = trailerOffset - CodHeader.LENGTH;
+            if (CodInspector.skipAtMost(inputFile, body) < body) {
+                throw new BadCodException(fileName + " is truncated",
+                        BadCodException.Kind.TRUNCATED);
+            }
+
+            ByteBuffer trailer = CodInspector.readTrailer(inputFile,
+                    length < 0 ? -1 : length - trailerOffset, fileName);
+            if (length >= 0 && trailer.remaining() < length - trailerOffset) {
+                throw new BadCodException(fileName + " ends "
+                        + (length - counter.count) + " bytes early",
+                        BadCodException.Kind.TRUNCATED_RECORD);
+            }
+            MessageDigest sha = VerificationCache.sha1();
+            sha.update(headerBytes);
+            sha.update(trailer.duplicate());
+            digest = sha.digest();
+            CodSigningInfo parsed = findParsed(digest, fileName);
+            if (parsed != null) {
+                return parsed;
+            }
+            CodInspector.readRecords(trailer, trailerOffset, fileName,
+                    returnValue);
+            if (content != null) {
+                returnValue.setContentDigest(content.sha1.digest());
+            }
+            if (signed != null) {
+                checkRecords(signed.session, trailerOffset, trailer,
+                        returnValue);
+            }
+        } catch (IOException e) {
+            logWarning(e);
+            logError("Failed to read file.");
+            return failed(fileName, BadCodException.Kind.READ_FAILED);
+        } catch (BadCodException e) {
+            logWarning(e);
+            logError("Bad COD file.");
+            return failed(fileName, e.getKind());
+        } finally {
+            metrics.addBytes(counter.count - counter.skipped, counter.skipped);
+            metrics.addTime(VerificationMetrics.Phase.PARSE,
+                    System.nanoTime() - started);
+        }
 
-            checkValidity(inputFile, fileName); // Find out if the flashid is
-            // correct and verify the ends
+        returnValue.setBytesRead(counter.count - counter.skipped);
+        returnValue.setLength(counter.count);
+        returnValue.setDigest(digest);
+        rememberParsed(returnValue);
+        return returnValue;
+    }
 
-            if (getVersion(inputFile) <= MIN_VERSION) {
-                logError("File version not above " + MIN_VERSION + ".");
-                return null;
+    private static CodSigningInfo failed(final String fileName,
+            final BadCodException.Kind kind) {
+        CodSigningInfo info = new CodSigningInfo(fileName);
+        info.setError(kind);
+        return info;
+    }
+
+    /**
+     * Counts the bytes read or skipped through a stream.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        /** Bytes read or skipped so far. */
+        private long count;
+        /** Bytes skipped so far. */
+        private long skipped;
+
+        /**
+         * @param in stream to count
+         */
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
             }
+            return read;
+        }
 
-            // code size:
-            dataSize = readLittleEndianNibble(inputFile);
-            // + data size:
-            dataSize += readLittleEndianNibble(inputFile);
-            // Skip two bytes for the COD flags.
-            inputFile.skip(2 + dataSize);
+        @Override
+        public long skip(final long n) throws IOException {
+            long done = super.skip(n);
+            count += done;
+            skipped += done;
+            return done;
+        }
+    }
 
-            while (true) { // read until exception
-                currentSigner.delete(0, currentSigner.length());
-                int temp = readLittleEndianNibble(inputFile);
-                if (temp != 1) {
-                    logError("Sign_type is not 1.  Sign_type = " + temp);
-                    return null;
+    /**
+     * Hashes every byte of a streamed COD. Skipped bytes are read so that
+     * they are hashed too.
+     */
+    private static final class ContentDigestInputStream
+        extends FilterInputStream {
+        /** SHA-1 of the bytes read so far. */
+        private final MessageDigest sha1 = VerificationCache.sha1();
+        /** Buffer for bytes skipped. */
+        private byte[] scratch;
+
+        /**
+         * @param in stream positioned at the start of the COD
+         */
+        ContentDigestInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                sha1.update((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                sha1.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            if (scratch == null) {
+                scratch = new byte[SIGNED_CHUNK];
+            }
+            long done = 0;
+            while (done < n) {
+                int read = read(scratch, 0,
+                        (int) Math.min(scratch.length, n - done));
+                if (read < 0) {
+                    break;
                 }
-                signLength = readLittleEndianNibble(inputFile);
-                char c;
-                for (short i = 0; i < LENGTH_OF_SIGNER_ID; i++) {
-                    // read 4 char signer
-                    c = (char) inputFile.readByte();
-                    if (c != 0) {
-                        currentSigner.append(c);
-                    }
+                done += read;
+            }
+            return done;
+        }
+    }
+
+    /**
+     * Feeds the signed region of a streamed COD to a signature session. The
+     * region is every byte before the signature trailer; within it, skipped
+     * bytes are read so that they are fed too.
+     */
+    private static final class SignedRegionInputStream
+        extends FilterInputStream {
+        /** Session the region is fed to. */
+        private final SignatureChecker.Session session;
+        /** Bytes read or skipped so far. */
+        private long position;
+        /** Offset of the end of the region, once known. */
+        private long regionEnd = Long.MAX_VALUE;
+        /** Buffer for bytes skipped within the region. */
+        private byte[] scratch;
+        /** Buffer for single bytes read. */
+        private final byte[] single = new byte[1];
+
+        /**
+         * @param in stream positioned at the start of the COD
+         * @param signatures session to feed
+         */
+        SignedRegionInputStream(final InputStream in,
+                final SignatureChecker.Session signatures) {
+            super(in);
+            session = signatures;
+        }
+
+        /**
+         * @param offset offset of the signature trailer
+         */
+        void endRegionAt(final long offset) {
+            regionEnd = offset;
+        }
+
+        /**
+         * Feeds bytes that were just read, up to the end of the region.
+         *
+         * @param b buffer holding the bytes
+         * @param off offset of the first byte
+         * @param len number of bytes read
+         * @throws IOException if a signature is in a bad state
+         */
+        private void feed(final byte[] b, final int off, final int len)
+            throws IOException {
+            int fed = (int) Math.max(0, Math.min(len, regionEnd - position));
+            if (fed > 0) {
+                try {
+                    session.update(b, off, fed);
+                } catch (SignatureException e) {
+                    throw new IOException(e);
                 }
-                // -4 because 4 characters of signer have already been read
-                inputFile.skip(signLength - LENGTH_OF_SIGNER_ID);
-                returnValue.addSigner(currentSigner.toString());
             }
+            position += len;
+        }
 
-        } catch (EOFException e) { // EOF- return list of signers
-            /* this is expected; we reached the end of the file. */
-        } catch (IOException e) {
-            log(e, Project.MSG_WARN);
-            logError("Failed to read file.");
-            return new CodSigningInfo(fileName);
-        } catch (BadCodException e) {
-            log(e, Project.MSG_WARN);
-            logError("Bad COD file.");
-            return new CodSigningInfo(fileName);
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                single[0] = (byte) b;
+                feed(single, 0, 1);
+            }
+            return b;
         }
 
-        return returnValue;
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                feed(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            if (position >= regionEnd) {
+                long skipped = super.skip(n);
+                position += skipped;
+                return skipped;
+            }
+            if (scratch == null) {
+                scratch = new byte[SIGNED_CHUNK];
+            }
+            long done = 0;
+            while (done < n) {
+                int read = read(scratch, 0,
+                        (int) Math.min(scratch.length, n - done));
+                if (read < 0) {
+                    break;
+                }
+                done += read;
+            }
+            return done;
+        }
     }
 
     /**
@@ -380,7 +2858,7 @@ public class VerifySignatures extends Task {
         // Post-condition: inputFile is an open DataInputStream positioned
         //                 at the +38th offset and version number has been read
         final int versionOffset = 32;
-        inputFile.skip(versionOffset);
+        inputFile.readFully(new byte[versionOffset]);
         return readLittleEndianNibble(inputFile);
     }
 
@@ -419,6 +2897,11 @@ public class VerifySignatures extends Task {
             }
             signers.add(s.trim());
         }
+        if (signers.size() > SignerIndex.MAX_SIGNERS) {
+            throw new BuildException("At most " + SignerIndex.MAX_SIGNERS
+                    + " signers can be expected");
+        }
+        signerPolicies = new SignerPolicies(signers);
     }
 
     /**
@@ -436,7 +2919,7 @@ public class VerifySignatures extends Task {
      * @param message The message to be logged
      */
     private void logMsg(final String message) {
-        log(message, Project.MSG_INFO); /* Use Ant's log */
+        logAt(message, null, Project.MSG_INFO); /* Use Ant's log */
     }
 
     /**
@@ -446,7 +2929,127 @@ public class VerifySignatures extends Task {
      */
     private void logError(final String errorMessage) {
         /* Use Ant's log */
-        log("Error: " + errorMessage, Project.MSG_ERR);
+        logAt("Error: " + errorMessage, null, Project.MSG_ERR);
+    }
+
+    /**
+     * Logs an exception as a warning.
+     *
+     * @param e the exception to be logged
+     */
+    private void logWarning(final Exception e) {
+        logAt(e.getMessage(), e, Project.MSG_WARN);
+    }
+
+    /**
+     * Logs a message, buffering it if called from a worker thread.
+     *
+     * @param message the message to be logged
+     * @param cause exception to log with the message, may be null
+     * @param level Ant message priority
+     */
+    private void logAt(final String message, final Throwable cause,
+            final int level) {
+        List<BufferedMessage> buffer = pendingLog.get();
+        if (buffer != null) {
+            buffer.add(new BufferedMessage(message, cause, level));
+            return;
+        }
+        long started = System.nanoTime();
+        if (cause != null) {
+            log(message, cause, level);
+        } else {
+            log(message, level);
+        }
+        metrics.addTime(VerificationMetrics.Phase.LOG,
+                System.nanoTime() - started);
+    }
+
+    /**
+     * A log message held back until its file's results are reported.
+     */
+    private static final class BufferedMessage {
+        /** Text of the message. */
+        private final String message;
+        /** Exception logged with the message, may be null. */
+        private final Throwable cause;
+        /** Ant message priority. */
+        private final int level;
+
+        /**
+         * @param text text of the message
+         * @param throwable exception logged with the message, may be null
+         * @param priority Ant message priority
+         */
+        BufferedMessage(final String text, final Throwable throwable,
+                final int priority) {
+            message = text;
+            cause = throwable;
+            level = priority;
+        }
+    }
+
+    /**
+     * Verifies a single file on a worker thread, buffering its log output.
+     */
+    private final class Verification
+        implements Callable<VerificationResult> {
+        /** File being verified. */
+        private final File file;
+        /** Messages logged while verifying the file. */
+        private final List<BufferedMessage> messages =
+            new ArrayList<BufferedMessage>();
+        /** Pending result, once submitted. */
+        private Future<VerificationResult> future;
+
+        /**
+         * @param inputFile file to verify
+         */
+        Verification(final File inputFile) {
+            file = inputFile;
+        }
+
+        @Override
+        public VerificationResult call() {
+            if (failFast && cancelled.get()) {
+                return null;
+            }
+            pendingLog.set(messages);
+            try {
+                return verify(file);
+            } catch (CancellationException e) {
+                // the file was only partly read; its messages are misleading
+                messages.clear();
+                return null;
+            } finally {
+                pendingLog.remove();
+            }
+        }
+
+        /**
+         * Emits the buffered messages through Ant's log.
+         */
+        void replay() {
+            for (BufferedMessage m : messages) {
+                logAt(m.message, m.cause, m.level);
+            }
+        }
+    }
+
+    /**
+     * Creates named daemon threads for the verification pool.
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        /** Number of threads created so far. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "verifySignatures-"
+                    + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
     }
 
 }
@@ -0,0 +1,477 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Minimal reader for the central directory of a zip file (a big COD).
+ *
+ * Unlike {@link java.util.zip.ZipFile} it exposes where each entry's local
+ * header sits, so STORED entries can be read in place with positional reads
+ * and DEFLATED ones inflated from the same channel, without opening the file
+ * again. Zip64 archives are not supported; {@link #read(FileChannel)}
+ * returns null for them and callers fall back to streaming.
+ */
+final class ZipDirectory {
+
+    /**
+     * Signature of the end of central directory record.
+     */
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    /**
+     * Signature of a central directory file header.
+     */
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+    /**
+     * Signature of a local file header.
+     */
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    /**
+     * Length of the end of central directory record, without its comment.
+     */
+    private static final int END_LENGTH = 22;
+
+    /**
+     * Maximum length of the zip file comment.
+     */
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    /**
+     * Length of a central directory file header, without its variable fields.
+     */
+    private static final int CENTRAL_LENGTH = 46;
+
+    /**
+     * Length of a local file header, without its variable fields.
+     */
+    private static final int LOCAL_LENGTH = 30;
+
+    /**
+     * Value of a 32-bit field that has been moved to the Zip64 extra field.
+     */
+    private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+
+    /**
+     * Charset of entry names, matching {@link java.util.jar.JarFile}.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Entries in central directory order. Names are not unique: a zip may
+     * hold several entries of the same name, and each is a sibling.
+     */
+    private final List<Entry> entries;
+
+    /**
+     * @param zipEntries entries in central directory order
+     */
+    private ZipDirectory(final List<Entry> zipEntries) {
+        entries = zipEntries;
+    }
+
+    /**
+     * Reads the central directory of a zip file.
+     *
+     * @param channel open channel to the zip file
+     * @return the directory, or null if the channel does not hold a zip file
+     *         this reader understands
+     * @throws IOException upon failure to read
+     */
+    static ZipDirectory read(final FileChannel channel) throws IOException {
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, END_LENGTH + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = ByteBuffer.allocate(tailLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, size - tailLength);
+        int end = -1;
+        for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+        final int countOffset = 10;
+        final int sizeOffset = 12;
+        final int startOffset = 16;
+        int count = tail.getShort(end + countOffset) & 0xFFFF;
+        long directorySize = tail.getInt(end + sizeOffset) & ZIP64_MARKER;
+        long directoryStart = tail.getInt(end + startOffset) & ZIP64_MARKER;
+        if (directorySize == ZIP64_MARKER || directoryStart == ZIP64_MARKER
+                || directoryStart + directorySize > size) {
+            return null;
+        }
+
+        ByteBuffer directory = ByteBuffer.allocate((int) directorySize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, directory, directoryStart);
+        List<Entry> entries = new ArrayList<Entry>(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            Entry entry = readEntry(directory, position);
+            if (entry == null) {
+                return null;
+            }
+            entries.add(entry);
+            position += entry.headerLength;
+        }
+        return new ZipDirectory(entries);
+    }
+
+    /**
+     * Decodes one central directory file header.
+     *
+     * @param directory central directory bytes
+     * @param position offset of the header within the directory
+     * @return the entry, or null if the header is malformed or Zip64
+     */
+    private static Entry readEntry(final ByteBuffer directory,
+            final int position) {
+        if (directory.limit() - position < CENTRAL_LENGTH
+                || directory.getInt(position) != CENTRAL_SIGNATURE) {
+            return null;
+        }
+        final int methodOffset = 10;
+        final int crcOffset = 16;
+        final int compressedOffset = 20;
+        final int sizeOffset = 24;
+        final int nameLengthOffset = 28;
+        final int extraLengthOffset = 30;
+        final int commentLengthOffset = 32;
+        final int localOffset = 42;
+        int nameLength = directory.getShort(position + nameLengthOffset)
+                & 0xFFFF;
+        int extraLength = directory.getShort(position + extraLengthOffset)
+                & 0xFFFF;
+        int commentLength = directory.getShort(position + commentLengthOffset)
+                & 0xFFFF;
+        int headerLength = CENTRAL_LENGTH + nameLength + extraLength
+                + commentLength;
+        if (directory.limit() - position < headerLength) {
+            return null;
+        }
+        long compressedSize = directory.getInt(position + compressedOffset)
+                & ZIP64_MARKER;
+        long size = directory.getInt(position + sizeOffset) & ZIP64_MARKER;
+        long localHeader = directory.getInt(position + localOffset)
+                & ZIP64_MARKER;
+        if (compressedSize == ZIP64_MARKER || size == ZIP64_MARKER
+                || localHeader == ZIP64_MARKER) {
+            return null;
+        }
+        byte[] name = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) {
+            name[i] = directory.get(position + CENTRAL_LENGTH + i);
+        }
+        return new Entry(new String(name, UTF8),
+                directory.getShort(position + methodOffset) & 0xFFFF,
+                directory.getInt(position + crcOffset) & ZIP64_MARKER,
+                compressedSize, size, localHeader, headerLength);
+    }
+
+    /**
+     * @return every entry, in central directory order, including entries
+     *         that share a name
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Fills a buffer from a channel, starting at the given position.
+     *
+     * @param channel channel to read
+     * @param buffer buffer to fill up to its limit
+     * @param position channel offset of the first byte to read
+     * @throws IOException if reading fails or the channel ends first
+     */
+    static void readFully(final FileChannel channel, final ByteBuffer buffer,
+            final long position) throws IOException {
+        long next = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, next);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + next);
+            }
+            next += read;
+        }
+    }
+
+    /**
+     * Reads a range of a channel with positional reads, leaving the
+     * channel's position alone.
+     */
+    private static final class RangeInputStream extends InputStream {
+        /** Length of the internal buffer. */
+        private static final int CHUNK = 8192;
+        /** Channel to read. */
+        private final FileChannel channel;
+        /** Channel offset of the next byte to read into the buffer. */
+        private long next;
+        /** Channel offset just past the range. */
+        private final long end;
+        /** Whether a zero byte follows the range, as the inflater needs. */
+        private boolean pad;
+        /** Bytes read ahead. */
+        private final ByteBuffer buffer;
+
+        /**
+         * @param source channel to read
+         * @param start channel offset of the range
+         * @param length length of the range
+         * @param padded whether to return one zero byte after the range
+         */
+        RangeInputStream(final FileChannel source, final long start,
+                final long length, final boolean padded) {
+            channel = source;
+            next = start;
+            end = start + length;
+            pad = padded;
+            buffer = ByteBuffer.allocate((int) Math.min(CHUNK,
+                    Math.max(length, 1)));
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                if (next >= end) {
+                    if (pad) {
+                        pad = false;
+                        b[off] = 0;
+                        return 1;
+                    }
+                    return -1;
+                }
+                buffer.clear();
+                if (end - next < buffer.capacity()) {
+                    buffer.limit((int) (end - next));
+                }
+                readFully(channel, buffer, next);
+                next += buffer.limit();
+                buffer.flip();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = Math.min(Math.max(n, 0), buffer.remaining()
+                    + (end - next));
+            long fromBuffer = Math.min(skipped, buffer.remaining());
+            buffer.position(buffer.position() + (int) fromBuffer);
+            next += skipped - fromBuffer;
+            return skipped;
+        }
+    }
+
+    /**
+     * Inflates an entry, releasing its inflater when closed.
+     */
+    private static final class EntryInflaterStream
+        extends InflaterInputStream {
+        /**
+         * @param compressed the entry's deflated data
+         */
+        EntryInflaterStream(final InputStream compressed) {
+            super(compressed, new Inflater(true));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * One file in the zip's central directory.
+     */
+    static final class Entry {
+        /** Entry name. */
+        private final String name;
+        /** Compression method, as in {@link java.util.zip.ZipEntry}. */
+        private final int method;
+        /** CRC-32 of the uncompressed data. */
+        private final long crc;
+        /** Size of the stored data. */
+        private final long compressedSize;
+        /** Size of the uncompressed data. */
+        private final long size;
+        /** Offset of the entry's local file header. */
+        private final long localHeaderOffset;
+        /** Length of the entry's central directory header. */
+        private final int headerLength;
+
+        /**
+         * @param entryName entry name
+         * @param entryMethod compression method
+         * @param entryCrc CRC-32 of the uncompressed data
+         * @param stored size of the stored data
+         * @param uncompressed size of the uncompressed data
+         * @param localHeader offset of the local file header
+         * @param centralLength length of the central directory header
+         */
+        private Entry(final String entryName, final int entryMethod,
+                final long entryCrc, final long stored,
+                final long uncompressed, final long localHeader,
+                final int centralLength) {
+            name = entryName;
+            method = entryMethod;
+            crc = entryCrc;
+            compressedSize = stored;
+            size = uncompressed;
+            localHeaderOffset = localHeader;
+            headerLength = centralLength;
+        }
+
+        /**
+         * @return entry name
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return compression method
+         */
+        int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return CRC-32 of the uncompressed data
+         */
+        long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return size of the stored data
+         */
+        long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * @return size of the uncompressed data
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Identifies the entry's content without reading it: its CRC-32
+         * followed by its uncompressed size.
+         *
+         * @return twelve byte content key
+         */
+        byte[] getDigest() {
+            final int length = 12;
+            return ByteBuffer.allocate(length).putInt((int) crc)
+                    .putLong(size).array();
+        }
+
+        /**
+         * Opens the entry's uncompressed content, read from the channel with
+         * positional reads. Closing the stream does not close the channel.
+         *
+         * @param channel open channel to the zip file
+         * @return the entry's content
+         * @throws IOException upon failure to read, a bad local header or
+         *             an unsupported compression method
+         */
+        InputStream open(final FileChannel channel) throws IOException {
+            long start = getDataOffset(channel);
+            if (method == ZipEntry.STORED) {
+                return new RangeInputStream(channel, start, compressedSize,
+                        false);
+            }
+            if (method == ZipEntry.DEFLATED) {
+                return new EntryInflaterStream(new RangeInputStream(channel,
+                        start, compressedSize, true));
+            }
+            throw new IOException(name + " uses unsupported compression"
+                    + " method " + method);
+        }
+
+        /**
+         * Finds where the entry's data starts by reading its local header,
+         * whose variable-length fields may differ from the central
+         * directory's.
+         *
+         * @param channel open channel to the zip file
+         * @return offset of the first byte of entry data
+         * @throws IOException upon failure to read or a bad local header
+         */
+        long getDataOffset(final FileChannel channel) throws IOException {
+            ByteBuffer local = ByteBuffer.allocate(LOCAL_LENGTH)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, local, localHeaderOffset);
+            if (local.getInt(0) != LOCAL_SIGNATURE) {
+                throw new IOException("Bad local header for " + name);
+            }
+            final int nameLengthOffset = 26;
+            final int extraLengthOffset = 28;
+            return localHeaderOffset + LOCAL_LENGTH
+                    + (local.getShort(nameLengthOffset) & 0xFFFF)
+                    + (local.getShort(extraLengthOffset) & 0xFFFF);
+        }
+    }
+}
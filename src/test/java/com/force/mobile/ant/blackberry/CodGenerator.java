@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes synthetic COD files, big CODs and malformed variants for scale tests
+ * and benchmarks.
+ *
+ * Output is a pure function of the seed and the settings, so corpora can be
+ * rebuilt offline. The COD header stores the code and data sizes as 16-bit
+ * words, so a single COD holds at most 64 KiB of each; multi-megabyte inputs
+ * are built as big CODs with many siblings.
+ */
+public final class CodGenerator {
+
+    /**
+     * Ways in which {@link #malformed(Malformation)} breaks a COD.
+     */
+    public enum Malformation {
+        /** The flash ID is wrong. */
+        BAD_MAGIC,
+        /** The file ends inside the header. */
+        TRUNCATED_HEADER,
+        /** The file ends inside the code and data sections. */
+        TRUNCATED_BODY,
+        /** The last signature record is cut short. */
+        TRUNCATED_TRAILER,
+        /** A signature record has a sign type other than 1. */
+        BAD_SIGN_TYPE,
+        /** The header version is not above {@link VerifySignatures#MIN_VERSION}. */
+        OLD_VERSION,
+        /** The COD has no signature records. */
+        UNSIGNED
+    }
+
+    /**
+     * Largest value of a 16-bit header field.
+     */
+    private static final int MAX_SECTION = 0xFFFF;
+
+    /**
+     * Offset of the header version number.
+     */
+    private static final int VERSION_OFFSET = 36;
+
+    /**
+     * Length of a signature record before its signer ID.
+     */
+    private static final int RECORD_HEADER = 4;
+
+    /**
+     * Source of every random byte written.
+     */
+    private final Random random;
+
+    /**
+     * Header version of generated CODs.
+     */
+    private int version = VerifySignatures.MIN_VERSION + 4;
+
+    /**
+     * Size of the code section of generated CODs.
+     */
+    private int codeSize = 4096;
+
+    /**
+     * Size of the data section of generated CODs.
+     */
+    private int dataSize = 1024;
+
+    /**
+     * Signer IDs written to the trailer, one record each.
+     */
+    private String[] signers = {"RBB", "RRT", "RCR", "SFDC"};
+
+    /**
+     * Length of the signature following each signer ID.
+     */
+    private int signatureLength = 128;
+
+    /**
+     * Private keys of signers whose records carry real signatures, by
+     * signer ID; other signers get random bytes.
+     */
+    private final Map<String, PrivateKey> signingKeys =
+        new HashMap<String, PrivateKey>();
+
+    /**
+     * Signature algorithm of each signing key, by signer ID.
+     */
+    private final Map<String, String> signingAlgorithms =
+        new HashMap<String, String>();
+
+    /**
+     * @param seed seed for all generated content
+     */
+    public CodGenerator(final long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @param headerVersion header version of generated CODs
+     */
+    public void setVersion(final int headerVersion) {
+        version = headerVersion;
+    }
+
+    /**
+     * @param size size of the code section, at most 65535
+     */
+    public void setCodeSize(final int size) {
+        codeSize = checkSection(size);
+    }
+
+    /**
+     * @param size size of the data section, at most 65535
+     */
+    public void setDataSize(final int size) {
+        dataSize = checkSection(size);
+    }
+
+    /**
+     * @param ids signer IDs to write, one signature record each
+     */
+    public void setSigners(final String... ids) {
+        for (String id : ids) {
+            SignerIndex.pack(id);
+        }
+        signers = ids.clone();
+    }
+
+    /**
+     * @param length length of each signature, excluding the signer ID
+     */
+    public void setSignatureLength(final int length) {
+        signatureLength = length;
+    }
+
+    /**
+     * Makes a signer's records carry a real signature over the header, code
+     * and data sections. Signatures made with a key are not deterministic
+     * unless the algorithm is.
+     *
+     * @param signer signer ID
+     * @param key the signer's private key
+     * @param algorithm signature algorithm, e.g. SHA256withRSA
+     */
+    public void setSigningKey(final String signer, final PrivateKey key,
+            final String algorithm) {
+        signingKeys.put(signer, key);
+        signingAlgorithms.put(signer, algorithm);
+    }
+
+    /**
+     * @return a valid COD
+     */
+    public byte[] cod() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                CodHeader.LENGTH + codeSize + dataSize
+                + signers.length * (RECORD_HEADER + signatureLength + 4));
+        writeHeader(out, version);
+        out.write(randomBytes(codeSize + dataSize), 0, codeSize + dataSize);
+        byte[] signed = signingKeys.isEmpty() ? null : out.toByteArray();
+        for (String signer : signers) {
+            writeRecord(out, 1, signer, signature(signer, signed));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param signer signer ID
+     * @param signed header, code and data sections
+     * @return the signer's signature, or random bytes if it has no key
+     */
+    private byte[] signature(final String signer, final byte[] signed) {
+        PrivateKey key = signingKeys.get(signer);
+        if (key == null) {
+            return randomBytes(signatureLength);
+        }
+        try {
+            Signature signature = Signature.getInstance(
+                    signingAlgorithms.get(signer));
+            signature.initSign(key);
+            signature.update(signed);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to sign for " + signer,
+                    e);
+        }
+    }
+
+    /**
+     * @param kind how to break the COD
+     * @return a COD that verifySignatures must reject
+     */
+    public byte[] malformed(final Malformation kind) {
+        byte[] cod;
+        switch (kind) {
+        case BAD_MAGIC:
+            cod = cod();
+            cod[0] = 0x10;
+            return cod;
+        case TRUNCATED_HEADER:
+            return Arrays.copyOf(cod(), CodHeader.LENGTH / 2);
+        case TRUNCATED_BODY:
+            return Arrays.copyOf(cod(), CodHeader.LENGTH
+                    + (codeSize + dataSize) / 2);
+        case TRUNCATED_TRAILER:
+            cod = cod();
+            return Arrays.copyOf(cod, cod.length - signatureLength - 2);
+        case BAD_SIGN_TYPE:
+            cod = cod();
+            int body = CodHeader.LENGTH + codeSize + dataSize;
+            cod[body] = 2;
+            return cod;
+        case OLD_VERSION:
+            cod = cod();
+            cod[VERSION_OFFSET] = (byte) VerifySignatures.MIN_VERSION;
+            cod[VERSION_OFFSET + 1] = 0;
+            return cod;
+        case UNSIGNED:
+            String[] saved = signers;
+            signers = new String[0];
+            try {
+                return cod();
+            } finally {
+                signers = saved;
+            }
+        default:
+            throw new IllegalArgumentException(kind.toString());
+        }
+    }
+
+    /**
+     * Writes a valid COD.
+     *
+     * @param target file to write
+     * @throws IOException upon failure to write
+     */
+    public void writeCod(final File target) throws IOException {
+        write(target, cod());
+    }
+
+    /**
+     * Writes a big COD: a zip of valid sibling CODs named
+     * {@code <base>-<n>.cod}.
+     *
+     * @param target file to write
+     * @param siblings number of siblings
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @throws IOException upon failure to write
+     */
+    public void writeBigCod(final File target, final int siblings,
+            final int method) throws IOException {
+        String base = target.getName().replaceAll("\\.cod$", "");
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            for (int i = 0; i < siblings; i++) {
+                byte[] bytes = cod();
+                ZipEntry entry = new ZipEntry(base + (i == 0 ? "" : "-" + i)
+                        + ".cod");
+                entry.setMethod(method);
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    entry.setSize(bytes.length);
+                    entry.setCompressedSize(bytes.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(bytes);
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Writes a corpus of distinct signed CODs: every tenth file is a big COD
+     * with deflated or stored siblings, the rest are plain CODs. Files are
+     * spread over subdirectories of 100.
+     *
+     * @param dir directory to fill
+     * @param count number of files to write
+     * @param siblings number of siblings in each big COD
+     * @throws IOException upon failure to write
+     */
+    public void writeCorpus(final File dir, final int count,
+            final int siblings) throws IOException {
+        final int perDirectory = 100;
+        final int bigEvery = 10;
+        for (int i = 0; i < count; i++) {
+            File sub = new File(dir, "app" + (i / perDirectory));
+            if (!sub.isDirectory() && !sub.mkdirs()) {
+                throw new IOException("Unable to create " + sub);
+            }
+            File target = new File(sub, "cod" + i + ".cod");
+            if (i % bigEvery == bigEvery - 1) {
+                writeBigCod(target, siblings, (i / bigEvery) % 2 == 0
+                        ? ZipEntry.DEFLATED : ZipEntry.STORED);
+            } else {
+                writeCod(target);
+            }
+        }
+    }
+
+    /**
+     * Writes bytes to a file.
+     *
+     * @param target file to write
+     * @param bytes content of the file
+     * @throws IOException upon failure to write
+     */
+    public static void write(final File target, final byte[] bytes)
+        throws IOException {
+        OutputStream out = new FileOutputStream(target);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param out stream to write to
+     * @param headerVersion version to put in the header
+     */
+    private void writeHeader(final ByteArrayOutputStream out,
+            final int headerVersion) {
+        final int flashIdLength = 4;
+        final int[] flashId = {0xDE, 0xC0, 0xFF, 0xFF};
+        for (int b : flashId) {
+            out.write(b);
+        }
+        int filler = VERSION_OFFSET - flashIdLength;
+        out.write(randomBytes(filler), 0, filler);
+        writeShort(out, headerVersion);
+        writeShort(out, codeSize);
+        writeShort(out, dataSize);
+        writeShort(out, 0);
+    }
+
+    /**
+     * @param out stream to write to
+     * @param signType sign type of the record
+     * @param signer signer ID of the record
+     * @param signature signature following the signer ID
+     */
+    private static void writeRecord(final ByteArrayOutputStream out,
+            final int signType, final String signer, final byte[] signature) {
+        writeShort(out, signType);
+        writeShort(out, SignerIndex.MAX_ID_LENGTH + signature.length);
+        int id = SignerIndex.pack(signer);
+        for (int shift = Integer.SIZE - Byte.SIZE; shift >= 0;
+                shift -= Byte.SIZE) {
+            out.write((id >>> shift) & 0xFF);
+        }
+        out.write(signature, 0, signature.length);
+    }
+
+    /**
+     * @param out stream to write to
+     * @param value 16-bit value to write little-endian
+     */
+    private static void writeShort(final ByteArrayOutputStream out,
+            final int value) {
+        final int shiftOneByte = 8;
+        out.write(value & 0xFF);
+        out.write((value >>> shiftOneByte) & 0xFF);
+    }
+
+    /**
+     * @param length number of bytes
+     * @return random bytes from this generator's seed
+     */
+    private byte[] randomBytes(final int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param size section size to check
+     * @return the size
+     */
+    private static int checkSection(final int size) {
+        if (size < 0 || size > MAX_SECTION) {
+            throw new IllegalArgumentException("Section size must fit in 16"
+                    + " bits: " + size);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+public class CodGeneratorTest {
+
+	/**
+	 * Check that a seed always produces the same bytes.
+	 */
+    @Test
+	public void testReproducible() {
+		assertArrayEquals(new CodGenerator(42).cod(),
+		        new CodGenerator(42).cod());
+	}
+
+	/**
+	 * Check that generated CODs are accepted and every malformed variant is
+	 * rejected.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testMalformedVariants() throws IOException {
+		File dir = Files.createTempDirectory("generated").toFile();
+		CodGenerator generator = new CodGenerator(1);
+		VerifySignatures test = new VerifySignatures("SFDC");
+
+		File valid = new File(dir, "valid.cod");
+		generator.writeCod(valid);
+		assertTrue("generated cod read as invalid", !test.isBroken(valid));
+
+		for (CodGenerator.Malformation kind
+		        : CodGenerator.Malformation.values()) {
+			File bad = new File(dir, kind + ".cod");
+			CodGenerator.write(bad, generator.malformed(kind));
+			assertTrue(kind + " read as valid", test.isBroken(bad));
+		}
+	}
+
+	/**
+	 * Check big CODs with hundreds of siblings and dozens of signatures.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testLargeBigCods() throws IOException {
+		File dir = Files.createTempDirectory("generated").toFile();
+		CodGenerator generator = new CodGenerator(2);
+		String[] signers = new String[40];
+		for (int i = 0; i < signers.length; i++) {
+			signers[i] = "S" + i;
+		}
+		generator.setSigners(signers);
+		generator.setCodeSize(0xFFFF);
+		VerifySignatures test = new VerifySignatures("S0, S39");
+
+		for (int method : new int[] {ZipEntry.STORED, ZipEntry.DEFLATED}) {
+			File big = new File(dir, "big" + method + ".cod");
+			generator.writeBigCod(big, 200, method);
+			List<CodSigningInfo> siblings = test.readCod(big);
+			assertEquals(200, siblings.size());
+			assertEquals(40, siblings.get(199).getSignerCount());
+			assertTrue("big cod read as invalid", !test.isBroken(big));
+		}
+	}
+
+	/**
+	 * Check a whole generated corpus through the task.
+	 * @throws IOException if the corpus cannot be written
+	 */
+    @Test
+	public void testCorpus() throws IOException {
+		File dir = Files.createTempDirectory("corpus").toFile();
+		new CodGenerator(3).writeCorpus(dir, 500, 20);
+
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes("**/*.cod");
+		VerifySignatures task = new VerifySignatures();
+		task.setProject(project);
+		task.setSigners("RBB, RRT, RCR, SFDC");
+		task.add(fs);
+		task.execute();
+		assertEquals("generated CODs should all be distinct",
+		        0, task.getDuplicateCount());
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+public class CodIndexTest {
+
+	/** Location of the test files. */
+	private static final File TEST_FOLDER = new File("src" + File.separator
+	        + "test" + File.separator + "resources");
+
+	/**
+	 * Check that verified cods and siblings can be looked up in the index,
+	 * also when their signers were answered from the cache.
+	 * @throws IOException if the index cannot be read
+	 */
+    @Test
+	public void testIndex() throws IOException {
+		File dir = Files.createTempDirectory("index").toFile();
+		File indexFile = new File(dir, "cods.idx");
+		File cacheFile = new File(dir, "signers.cache");
+		File plain = new File(TEST_FOLDER, "test_salesforce_chatter-8.cod");
+		File big = new File(TEST_FOLDER, "test_salesforce_chatter-10.cod");
+
+		for (int run = 0; run < 2; run++) {
+			VerifySignatures task = task(indexFile, cacheFile);
+			task.execute();
+			assertEquals(run == 0 ? 0 : 2, task.getMetrics().getCacheHits());
+
+			CodIndex index = CodIndex.open(indexFile);
+			assertEquals(4, index.size());
+			CodIndex.Entry entry = index.lookup(plain);
+			assertNotNull("plain cod not indexed", entry);
+			assertEquals(plain.length(), entry.getLength());
+			assertTrue(entry.hasHeader());
+			assertTrue(entry.getVersion() > CodInspector.MIN_VERSION);
+			assertTrue(entry.getCodeSize() > 0);
+			assertTrue(entry.isSignedBy("SFDC"));
+			assertNull(entry.getError());
+			assertEquals(20, entry.getDigest().length);
+
+			CodIndex.Entry sibling = index.lookup(big,
+			        "salesforce_chatter-9.cod");
+			assertNotNull("sibling not indexed", sibling);
+			assertEquals(63568, sibling.getLength());
+			assertEquals(CodIndex.key(dir, big, "salesforce_chatter-9.cod"),
+			        sibling.getPath());
+			assertTrue(sibling.getSigners().contains("SFDC"));
+			assertNull(index.lookup(big, "missing.cod"));
+			assertNull(index.lookup(new File(TEST_FOLDER, "other.cod")));
+		}
+	}
+
+	/**
+	 * Check that a previous run's index is a baseline: unchanged files are
+	 * carried forward, modified ones are read again, and a change list
+	 * restricts what is read.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testBaseline() throws IOException {
+		File dir = Files.createTempDirectory("baseline").toFile();
+		File manifest = new File(dir, "manifest.idx");
+		CodGenerator generator = new CodGenerator(23);
+		generator.setSigners("RBB", "SFDC");
+		File first = new File(dir, "first.cod");
+		File second = new File(dir, "second.cod");
+		File big = new File(dir, "big.cod");
+		generator.writeCod(first);
+		generator.writeCod(second);
+		generator.writeBigCod(big, 2, ZipEntry.DEFLATED);
+
+		VerifySignatures task = incremental(dir, manifest, null);
+		task.execute();
+		assertEquals(0, task.getMetrics().getCarriedForward());
+		CodIndex index = CodIndex.open(manifest);
+		List<CodIndex.Entry> siblings = index.lookupFile(big);
+		assertEquals(2, siblings.size());
+		assertEquals(big.length(), siblings.get(1).getFileLength());
+		assertEquals(CodIndex.key(dir, big, null),
+		        siblings.get(0).getFilePath());
+		assertNotNull(siblings.get(1).getSiblingName());
+		assertNull(index.lookupFile(first).get(0).getSiblingName());
+		assertEquals(siblings.size(),
+		        CodIndex.load(manifest).lookupFile(big).size());
+
+		task = incremental(dir, manifest, null);
+		task.execute();
+		assertEquals(3, task.getMetrics().getCarriedForward());
+		assertEquals(0, task.getMetrics().getBytesRead());
+
+		CodGenerator.write(first, generator.malformed(
+		        CodGenerator.Malformation.UNSIGNED));
+		assertTrue(first.setLastModified(first.lastModified() + 2000));
+		task = incremental(dir, manifest, null);
+		try {
+			task.execute();
+			fail("modified cod carried forward");
+		} catch (BuildException e) {
+			assertEquals(Arrays.asList(first), task.getFailures());
+		}
+		assertEquals(2, task.getMetrics().getCarriedForward());
+
+		File changes = new File(dir, "changes.txt");
+		Files.write(changes.toPath(), Arrays.asList("# changed since the baseline",
+		        second.getAbsolutePath(), ""), StandardCharsets.UTF_8);
+		task = incremental(dir, null, changes);
+		task.execute();
+		assertEquals(1, task.getMetrics().getFiles());
+
+		task = incremental(dir, manifest, changes);
+		try {
+			task.execute();
+			fail("unsigned cod passed");
+		} catch (BuildException e) {
+			assertEquals(Arrays.asList(first), task.getFailures());
+		}
+		assertEquals(3, task.getMetrics().getFiles());
+		assertEquals(2, task.getMetrics().getCarriedForward());
+
+		task = incremental(dir, manifest, new File(dir, "missing.txt"));
+		try {
+			task.execute();
+			fail("missing change list accepted");
+		} catch (BuildException e) {
+			for (String name : dir.list()) {
+				assertTrue(name + " left behind", !name.endsWith(".records"));
+			}
+		}
+
+		CodGenerator.write(first, generator.cod());
+		incremental(dir, manifest, null).execute();
+		task = incremental(dir, manifest, null);
+		task.execute();
+		assertEquals(3, task.getMetrics().getCarriedForward());
+		task = incremental(dir, manifest, null);
+		task.setSigners("RBB,SFDC");
+		task.execute();
+		assertEquals("carried forward under other signers", 0,
+		        task.getMetrics().getCarriedForward());
+	}
+
+	/**
+	 * @param dir directory of cods to verify
+	 * @param manifest baseline read and index written, or null
+	 * @param changes change list, or null
+	 * @return a task verifying the cods incrementally
+	 */
+	private static VerifySignatures incremental(final File dir,
+	        final File manifest, final File changes) {
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes("*.cod");
+		VerifySignatures task = new VerifySignatures();
+		task.setProject(project);
+		task.setSigners("SFDC");
+		task.setThreads(1);
+		if (manifest != null) {
+			task.setBaseline(manifest);
+			task.setIndex(manifest);
+		}
+		if (changes != null) {
+			task.setChanges(changes);
+		}
+		task.add(fs);
+		return task;
+	}
+
+	/**
+	 * @param indexFile index to write
+	 * @param cacheFile cache to use
+	 * @return a task verifying a plain and a big cod
+	 */
+	private static VerifySignatures task(final File indexFile,
+	        final File cacheFile) {
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(TEST_FOLDER);
+		fs.setIncludes("test_salesforce_chatter-8.cod,"
+		        + "test_salesforce_chatter-10.cod");
+		VerifySignatures task = new VerifySignatures();
+		task.setProject(project);
+		task.setSigners("SFDC");
+		task.setIndex(indexFile);
+		task.setCache(cacheFile);
+		task.add(fs);
+		return task;
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CodInspectorTest {
+
+	/** Location of the test files. */
+	private static final File TEST_FOLDER = new File("src" + File.separator
+	        + "test" + File.separator + "resources");
+
+	/** Scratch directory for generated CODs. */
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * Check that a COD in memory is read in place.
+	 * @throws BadCodException if the COD is rejected
+	 */
+    @Test
+	public void testInspectBuffer() throws BadCodException {
+		CodGenerator generator = new CodGenerator(3);
+		generator.setCodeSize(300);
+		generator.setDataSize(20);
+		generator.setSigners("RBB", "SFDC", "RBB");
+		byte[] cod = generator.cod();
+
+		ByteBuffer buffer = ByteBuffer.allocate(cod.length + 10);
+		buffer.position(5);
+		buffer.put(cod);
+		buffer.position(5);
+		buffer.limit(5 + cod.length);
+		CodInfo info = CodInspector.inspect(buffer, "app.cod");
+		assertEquals(5, buffer.position());
+		assertEquals(300, info.getCodeSize());
+		assertEquals(20, info.getDataSize());
+		assertEquals(Arrays.asList("RBB", "SFDC"), info.getSigners());
+		assertTrue(info.isSignedBy("SFDC"));
+		assertTrue(!info.isSignedBy("RRT"));
+	}
+
+	/**
+	 * Check that malformed CODs are rejected with their kind of failure.
+	 */
+    @Test
+	public void testMalformed() {
+		CodGenerator generator = new CodGenerator(4);
+		expect(BadCodException.Kind.NOT_A_COD, generator.malformed(
+		        CodGenerator.Malformation.BAD_MAGIC));
+		expect(BadCodException.Kind.OLD_VERSION, generator.malformed(
+		        CodGenerator.Malformation.OLD_VERSION));
+		expect(BadCodException.Kind.TRUNCATED, generator.malformed(
+		        CodGenerator.Malformation.TRUNCATED_BODY));
+		expect(BadCodException.Kind.BAD_SIGN_TYPE, generator.malformed(
+		        CodGenerator.Malformation.BAD_SIGN_TYPE));
+		expect(BadCodException.Kind.TRUNCATED_RECORD, generator.malformed(
+		        CodGenerator.Malformation.TRUNCATED_TRAILER));
+	}
+
+	/**
+	 * Check that a trailer too long for any real COD is refused, not read.
+	 * @throws Exception if the COD cannot be written
+	 */
+    @Test
+	public void testOversizedTrailer() throws Exception {
+		CodGenerator generator = new CodGenerator(5);
+		generator.setCodeSize(100);
+		generator.setDataSize(10);
+		generator.setSigners("RBB");
+		byte[] cod = generator.cod();
+		File file = temp.newFile("huge.cod");
+		Files.write(file.toPath(), Arrays.copyOf(cod, cod.length
+		        + CodInspector.MAX_TRAILER_LENGTH));
+
+		try {
+			CodInspector.inspect(file.toPath());
+			fail("read a trailer of over " + CodInspector.MAX_TRAILER_LENGTH
+			        + " bytes");
+		} catch (BadCodException e) {
+			assertEquals(BadCodException.Kind.TRAILER_TOO_LONG, e.getKind());
+		}
+		List<CodSigningInfo> read = new VerifySignatures("RBB").readCod(file);
+		assertEquals(1, read.size());
+		assertEquals(BadCodException.Kind.TRAILER_TOO_LONG,
+		        read.get(0).getError());
+	}
+
+	/**
+	 * Check that compressed siblings are read as they inflate, and that one
+	 * whose trailer would be oversized is refused rather than allocated,
+	 * whether or not its size is known up front.
+	 * @throws Exception if a file cannot be written
+	 */
+    @Test
+	public void testDeflatedSiblings() throws Exception {
+		CodGenerator generator = new CodGenerator(6);
+		generator.setCodeSize(100);
+		generator.setDataSize(10);
+		generator.setSigners("RBB", "SFDC");
+		byte[] cod = generator.cod();
+		byte[] huge = Arrays.copyOf(cod, cod.length
+		        + CodInspector.MAX_TRAILER_LENGTH);
+
+		File big = temp.newFile("deflated.cod");
+		writeZip(big, cod);
+		List<CodInfo> siblings = CodInspector.inspect(big.toPath());
+		assertEquals(1, siblings.size());
+		assertEquals(2, siblings.get(0).getSignerCount());
+		assertTrue(siblings.get(0).isSignedBy("SFDC"));
+
+		File oversized = temp.newFile("oversized.cod");
+		writeZip(oversized, cod, huge);
+		try {
+			CodInspector.inspect(oversized.toPath());
+			fail("inflated a trailer of over "
+			        + CodInspector.MAX_TRAILER_LENGTH + " bytes");
+		} catch (BadCodException e) {
+			assertEquals(BadCodException.Kind.TRAILER_TOO_LONG, e.getKind());
+		}
+
+		CodInfo unsized = CodInspector.inspect(new ByteArrayInputStream(cod),
+		        -1, "unsized.cod");
+		assertEquals(2, unsized.getSignerCount());
+		try {
+			CodInspector.inspect(new ByteArrayInputStream(huge), -1,
+			        "unsized.cod");
+			fail("read a trailer of unknown length over "
+			        + CodInspector.MAX_TRAILER_LENGTH + " bytes");
+		} catch (BadCodException e) {
+			assertEquals(BadCodException.Kind.TRAILER_TOO_LONG, e.getKind());
+		}
+	}
+
+	/**
+	 * Check that a file is taken for a big COD by the same leading bytes
+	 * everywhere: "PK" alone is not a zip.
+	 * @throws Exception if the file cannot be written
+	 */
+    @Test
+	public void testZipMagic() throws Exception {
+		File file = temp.newFile("pk.cod");
+		Files.write(file.toPath(), Arrays.copyOf(new byte[] {'P', 'K', 5, 6},
+		        CodHeader.LENGTH));
+		try {
+			CodInspector.inspect(file.toPath());
+			fail("read " + file + " as a COD");
+		} catch (BadCodException e) {
+			assertEquals(BadCodException.Kind.NOT_A_COD, e.getKind());
+		}
+		List<CodSigningInfo> read = new VerifySignatures("RBB").readCod(file);
+		assertEquals(1, read.size());
+		assertEquals(BadCodException.Kind.NOT_A_COD, read.get(0).getError());
+	}
+
+	/**
+	 * Check plain and big COD files.
+	 * @throws Exception if a file cannot be read
+	 */
+    @Test
+	public void testInspectFiles() throws Exception {
+		List<CodInfo> plain = CodInspector.inspect(new File(TEST_FOLDER,
+		        "test_salesforce_chatter-8.cod").toPath());
+		assertEquals(1, plain.size());
+		assertTrue(plain.get(0).isSignedBy("SFDC"));
+
+		File big = new File(TEST_FOLDER, "test_salesforce_chatter-10.cod");
+		List<CodInfo> siblings = CodInspector.inspect(big.toPath());
+		List<CodSigningInfo> expected = new VerifySignatures("SFDC")
+		        .readCod(big);
+		assertEquals(expected.size(), siblings.size());
+		for (int i = 0; i < siblings.size(); i++) {
+			assertEquals(expected.get(i).getFilename(),
+			        siblings.get(i).getName());
+			assertEquals(expected.get(i).getSigners().size(),
+			        siblings.get(i).getSignerCount());
+		}
+	}
+
+	/**
+	 * @param file big COD to write
+	 * @param siblings contents of its siblings, compressed
+	 * @throws IOException if the file cannot be written
+	 */
+	private static void writeZip(final File file, final byte[]... siblings)
+	        throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			for (int i = 0; i < siblings.length; i++) {
+				zip.putNextEntry(new ZipEntry("sibling-" + i + ".cod"));
+				zip.write(siblings[i]);
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * @param kind expected failure
+	 * @param cod bytes to inspect
+	 */
+	private static void expect(final BadCodException.Kind kind,
+	        final byte[] cod) {
+		try {
+			CodInspector.inspect(cod, "bad.cod");
+			fail("accepted a COD that should fail with " + kind);
+		} catch (BadCodException e) {
+			assertEquals(kind, e.getKind());
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+public class SignatureCheckerTest {
+
+	/** Signature algorithm used by the tests. */
+	private static final String ALGORITHM = "SHA256withRSA";
+
+	/**
+	 * Check that CODs modified after signing fail, both when read in place
+	 * and when streamed from a compressed sibling.
+	 * @throws Exception if the keys or files cannot be created
+	 */
+    @Test
+	public void testModifiedCodsFail() throws Exception {
+		KeyPairGenerator generatorOfKeys = KeyPairGenerator.getInstance("RSA");
+		generatorOfKeys.initialize(1024);
+		KeyPair pair = generatorOfKeys.generateKeyPair();
+
+		File dir = Files.createTempDirectory("signed").toFile();
+		File keyFile = new File(dir, "sfdc.pem");
+		Files.write(keyFile.toPath(), ("-----BEGIN PUBLIC KEY-----\n"
+		        + Base64.getMimeEncoder().encodeToString(
+		                pair.getPublic().getEncoded())
+		        + "\n-----END PUBLIC KEY-----\n")
+		        .getBytes(StandardCharsets.US_ASCII));
+
+		CodGenerator generator = new CodGenerator(15);
+		generator.setSigners("RBB", "SFDC");
+		generator.setSigningKey("SFDC", pair.getPrivate(), ALGORITHM);
+		byte[] good = generator.cod();
+		byte[] tampered = good.clone();
+		tampered[CodHeader.LENGTH + 10] ^= 1;
+
+		CodGenerator.write(new File(dir, "good.cod"), good);
+		CodGenerator.write(new File(dir, "tampered.cod"), tampered);
+		writeBigCod(new File(dir, "goodbig.cod"), good, good);
+		writeBigCod(new File(dir, "tamperedbig.cod"), good, tampered);
+
+		assertEquals(0, verify(dir, keyFile, "good*.cod", true));
+		assertEquals(1, verify(dir, keyFile, "tampered.cod", false));
+		assertEquals(1, verify(dir, keyFile, "tamperedbig.cod", false));
+	}
+
+	/**
+	 * Check that a key of the wrong type is rejected up front.
+	 * @throws GeneralSecurityException if no key can be generated
+	 */
+    @Test
+	public void testWrongKeyType() throws GeneralSecurityException {
+		KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+		ec.initialize(256);
+		SignatureChecker checker = new SignatureChecker();
+		try {
+			checker.addKey("SFDC", ec.generateKeyPair().getPublic(),
+			        ALGORITHM);
+			fail("EC key accepted for RSA signatures");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Writes a big COD with deflated siblings.
+	 * @param target file to write
+	 * @param first first sibling
+	 * @param second second sibling
+	 * @throws IOException upon failure to write
+	 */
+	private static void writeBigCod(final File target, final byte[] first,
+	        final byte[] second) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(target));
+		try {
+			zip.putNextEntry(new ZipEntry("first.cod"));
+			zip.write(first);
+			zip.closeEntry();
+			zip.putNextEntry(new ZipEntry("second.cod"));
+			zip.write(second);
+			zip.closeEntry();
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Runs verifySignatures with SFDC's key.
+	 * @param dir directory of the CODs
+	 * @param keyFile SFDC's public key
+	 * @param includes CODs to verify
+	 * @param pass whether the build should pass
+	 * @return number of CODs whose signature does not match
+	 */
+	private static long verify(final File dir, final File keyFile,
+	        final String includes, final boolean pass) {
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes(includes);
+
+		VerifySignatures task = new VerifySignatures();
+		task.setProject(project);
+		task.setSigners("SFDC");
+		SignerKey key = task.createKey();
+		key.setSigner("SFDC");
+		key.setFile(keyFile);
+		key.setAlgorithm(ALGORITHM);
+		task.add(fs);
+		try {
+			task.execute();
+			assertTrue("modified COD passed", pass);
+		} catch (BuildException e) {
+			assertTrue("signed CODs failed: " + e.getMessage(), !pass);
+		}
+		return task.getMetrics().getErrors(
+		        BadCodException.Kind.BAD_SIGNATURE);
+	}
+}
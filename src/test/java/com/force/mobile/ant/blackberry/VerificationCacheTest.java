@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+public class VerificationCacheTest {
+
+	/** Location of the test files. */
+	private static final File TEST_FOLDER = new File("src" + File.separator
+	        + "test" + File.separator + "resources");
+
+	/**
+	 * Check that cached signers survive a save and load.
+	 * @throws IOException if the cache cannot be written
+	 */
+    @Test
+	public void testRoundTrip() throws IOException {
+		File dir = Files.createTempDirectory("cache").toFile();
+		File cacheFile = new File(dir, "signers.cache");
+		File cod = new File(TEST_FOLDER, "test_salesforce_chatter-8.cod");
+
+		CodSigningInfo info = new CodSigningInfo(cod.getName());
+		info.addSigner("SFDC");
+		info.setDigest(new byte[] {1, 2, 3});
+		VerificationCache cache = new VerificationCache(cacheFile, 10);
+		cache.store(cod, cod.length(), cod.lastModified(),
+		        Collections.singletonList(info));
+		cache.save();
+
+		VerificationCache reloaded = new VerificationCache(cacheFile, 10);
+		reloaded.load();
+		VerificationCache.Entry entry = reloaded.lookup(cod);
+		assertNotNull("entry was not saved", entry);
+		List<CodSigningInfo> infos = entry.getSigningInfo();
+		assertEquals(1, infos.size());
+		assertEquals(Collections.singleton("SFDC"), infos.get(0).getSigners());
+		assertNull(reloaded.lookup(new File(TEST_FOLDER, "other.cod")));
+	}
+
+	/**
+	 * Check that an unchanged file is answered from the cache without being
+	 * read: its content is corrupted behind the cache's back, keeping its
+	 * size and modification time.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testUnchangedFileNotReread() throws IOException {
+		File dir = Files.createTempDirectory("cached").toFile();
+		File cod = new File(dir, "app.cod");
+		Files.copy(new File(TEST_FOLDER, "test_salesforce_chatter-8.cod")
+		        .toPath(), cod.toPath());
+		File cacheFile = new File(dir, "signers.cache");
+
+		verify(dir, cacheFile);
+
+		long modified = cod.lastModified();
+		RandomAccessFile out = new RandomAccessFile(cod, "rw");
+		try {
+			out.write(new byte[] {0, 0, 0, 0});
+		} finally {
+			out.close();
+		}
+		cod.setLastModified(modified);
+		verify(dir, cacheFile);
+
+		cod.setLastModified(modified + 2000);
+		try {
+			verify(dir, cacheFile);
+			fail("modified file was answered from the cache");
+		} catch (BuildException e) {
+			// expected: the corrupted file is read again
+		}
+	}
+
+	/**
+	 * Check that a COD with more signers than fit in a byte is saved whole,
+	 * and that a damaged cache file is replaced rather than failing every
+	 * later save.
+	 * @throws IOException if the cache cannot be written
+	 */
+    @Test
+	public void testLargeAndDamagedCache() throws IOException {
+		File dir = Files.createTempDirectory("damaged").toFile();
+		File cacheFile = new File(dir, "signers.cache");
+		File cod = new File(TEST_FOLDER, "test_salesforce_chatter-8.cod");
+
+		CodSigningInfo info = new CodSigningInfo(cod.getName());
+		for (int i = 0; i < 300; i++) {
+			info.addSigner("S" + i);
+		}
+		info.setDigest(new byte[] {1, 2, 3});
+		VerificationCache cache = new VerificationCache(cacheFile, 10);
+		cache.store(cod, cod.length(), cod.lastModified(),
+		        Collections.singletonList(info));
+		cache.save();
+		VerificationCache reloaded = new VerificationCache(cacheFile, 10);
+		reloaded.load();
+		assertEquals(300, reloaded.lookup(cod).getSigningInfo().get(0)
+		        .getSignerCount());
+
+		byte[] saved = Files.readAllBytes(cacheFile.toPath());
+		Files.write(cacheFile.toPath(), Arrays.copyOf(saved,
+		        saved.length / 2));
+		cache.save();
+		reloaded = new VerificationCache(cacheFile, 10);
+		reloaded.load();
+		assertNotNull("damaged cache not rewritten", reloaded.lookup(cod));
+	}
+
+	/**
+	 * Runs verifySignatures over every COD in a directory.
+	 * @param dir directory to verify
+	 * @param cacheFile cache to use
+	 */
+	private static void verify(final File dir, final File cacheFile) {
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes("*.cod");
+
+		VerifySignatures task = new VerifySignatures();
+		task.setProject(project);
+		task.setSigners("SFDC");
+		task.setCache(cacheFile);
+		task.add(fs);
+		task.execute();
+	}
+}
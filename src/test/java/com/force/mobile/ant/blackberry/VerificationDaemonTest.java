@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+public class VerificationDaemonTest {
+
+	/**
+	 * Check that the task takes signers from a daemon, which notices a COD
+	 * being re-signed.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testDaemonAnswersTask() throws IOException {
+		File dir = Files.createTempDirectory("watched").toFile();
+		File cod = new File(dir, "app.cod");
+		CodGenerator generator = new CodGenerator(7);
+		generator.setSigners("RBB", "SFDC");
+		generator.writeCod(cod);
+
+		VerificationDaemon daemon = new VerificationDaemon(
+		        Collections.singletonList(dir), 0, "SFDC",
+		        new PrintStream(new ByteArrayOutputStream()));
+		daemon.start();
+		try {
+			assertEquals(1, daemon.getFileCount());
+			assertEquals("file was read by the task", 0,
+			        verify(dir, daemon.getPort()).getBytesRead());
+
+			generator.setSignatureLength(200);
+			generator.setSigners("RBB");
+			generator.writeCod(cod);
+			try {
+				verify(dir, daemon.getPort());
+				fail("unsigned COD passed");
+			} catch (BuildException e) {
+				// expected: the daemon reads the changed file again
+			}
+			assertTrue("stale signers", !daemon.lookup(cod).get(0)
+			        .getSigners().contains("SFDC"));
+			assertNull("file outside the watched directory answered",
+			        daemon.lookup(new File("other.cod")));
+			File outside = new File(dir.getParentFile(),
+			        dir.getName() + "-outside.cod");
+			generator.writeCod(outside);
+			try {
+				assertNull("path escaping the watched directory answered",
+				        daemon.lookup(new File(dir, ".." + File.separator
+				                + outside.getName())));
+			} finally {
+				outside.delete();
+			}
+		} finally {
+			daemon.close();
+		}
+	}
+
+	/**
+	 * Check that only clients presenting the daemon's token are answered,
+	 * so other local users can neither query nor stop it.
+	 * @throws IOException if the daemon cannot be reached
+	 */
+    @Test
+	public void testToken() throws IOException {
+		File dir = Files.createTempDirectory("guarded").toFile();
+		VerificationDaemon daemon = new VerificationDaemon(
+		        Collections.singletonList(dir), 0, null,
+		        new PrintStream(new ByteArrayOutputStream()));
+		daemon.start();
+		File tokenFile = VerificationDaemon.tokenFile(daemon.getPort());
+		try {
+			String token = new String(Files.readAllBytes(tokenFile.toPath()),
+			        StandardCharsets.UTF_8);
+			assertEquals("DENIED", request(daemon.getPort(), "SHUTDOWN"));
+			assertEquals("DENIED", request(daemon.getPort(),
+			        "0123 SHUTDOWN"));
+			assertEquals("PONG", request(daemon.getPort(), token + " PING"));
+		} finally {
+			daemon.close();
+		}
+		assertTrue("token left behind", !tokenFile.exists());
+	}
+
+	/**
+	 * @param port daemon port
+	 * @param line request to send
+	 * @return the first line of the reply
+	 * @throws IOException if the daemon cannot be reached
+	 */
+	private static String request(final int port, final String line)
+	    throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			return new BufferedReader(new InputStreamReader(
+			        socket.getInputStream(), StandardCharsets.UTF_8))
+			        .readLine();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Check that the task reads files itself when no daemon is running.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testNoDaemon() throws IOException {
+		File dir = Files.createTempDirectory("unwatched").toFile();
+		CodGenerator generator = new CodGenerator(8);
+		generator.setSigners("SFDC");
+		generator.writeCod(new File(dir, "app.cod"));
+		ServerSocket unused = new ServerSocket(0);
+		int port = unused.getLocalPort();
+		unused.close();
+		assertTrue("file was not read by the task",
+		        verify(dir, port).getBytesRead() > 0);
+	}
+
+	/**
+	 * Check that COD lines survive the wire format.
+	 * @throws IOException if a line cannot be parsed
+	 */
+    @Test
+	public void testWireFormat() throws IOException {
+		CodSigningInfo cod = new CodSigningInfo("big.cod/sibling 1.cod");
+		cod.addSigner("RBB");
+		cod.addSigner("SFDC");
+		CodSigningInfo parsed = VerificationDaemon.parse(
+		        VerificationDaemon.format(cod));
+		assertEquals(cod.getFilename(), parsed.getFilename());
+		assertEquals(cod.getSigners(), parsed.getSigners());
+
+		CodSigningInfo bad = new CodSigningInfo("bad.cod");
+		bad.setError(BadCodException.Kind.TRUNCATED);
+		parsed = VerificationDaemon.parse(VerificationDaemon.format(bad));
+		assertEquals(BadCodException.Kind.TRUNCATED, parsed.getError());
+		assertEquals(0, parsed.getSignerCount());
+	}
+
+	/**
+	 * Runs verifySignatures over every COD in a directory through a daemon.
+	 * @param dir directory to verify
+	 * @param port daemon port
+	 * @return metrics of the run
+	 */
+	private static VerificationMetrics verify(final File dir,
+	        final int port) {
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes("*.cod");
+
+		VerifySignatures task = new VerifySignatures();
+		task.setProject(project);
+		task.setSigners("SFDC");
+		task.setDaemonPort(port);
+		task.add(fs);
+		task.execute();
+		return task.getMetrics();
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.force.mobile.ant.blackberry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+public class VerificationReportTest {
+
+	/**
+	 * Check that each COD gets one JSON line with its signers, missing
+	 * signers and error.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testJsonLinesReport() throws IOException {
+		File dir = corpus();
+		File report = new File(dir, "report.jsonl");
+		verify(dir, report, VerificationReport.JSON_LINES);
+
+		List<String> lines = Files.readAllLines(report.toPath(),
+		        StandardCharsets.UTF_8);
+		assertEquals(3, lines.size());
+		assertTrue(find(lines, "good.cod").contains(
+		        "\"signers\":[\"RBB\",\"SFDC\"],\"missing\":[],\"error\":null"));
+		assertTrue(find(lines, "unsigned.cod").contains(
+		        "\"missing\":[\"SFDC\"],\"error\":null"));
+		assertTrue(find(lines, "bad.cod").contains(
+		        "\"error\":\"BAD_SIGN_TYPE\""));
+	}
+
+	/**
+	 * Check that broken CODs are JUnit failures.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testJUnitReport() throws IOException {
+		File dir = corpus();
+		File report = new File(dir, "report.xml");
+		verify(dir, report, VerificationReport.JUNIT);
+
+		String xml = new String(Files.readAllBytes(report.toPath()),
+		        StandardCharsets.UTF_8);
+		assertEquals(3, xml.split("<testcase ").length - 1);
+		assertTrue(xml.contains("<failure type=\"BAD_SIGN_TYPE\""));
+		assertTrue(xml.contains("<failure type=\"MISSING_SIGNERS\""));
+		assertTrue(xml.endsWith("</testsuite>\n"));
+	}
+
+	/**
+	 * Writes one correctly signed, one unsigned and one malformed COD.
+	 * @return directory holding the CODs
+	 * @throws IOException if the files cannot be written
+	 */
+	private static File corpus() throws IOException {
+		File dir = Files.createTempDirectory("report").toFile();
+		CodGenerator generator = new CodGenerator(1);
+		generator.setSigners("RBB", "SFDC");
+		generator.writeCod(new File(dir, "good.cod"));
+		CodGenerator.write(new File(dir, "bad.cod"),
+		        generator.malformed(CodGenerator.Malformation.BAD_SIGN_TYPE));
+		generator.setSigners("RBB");
+		generator.writeCod(new File(dir, "unsigned.cod"));
+		return dir;
+	}
+
+	/**
+	 * Runs verifySignatures over every COD in a directory, which is
+	 * expected to fail.
+	 * @param dir directory to verify
+	 * @param report report file to write
+	 * @param format report format
+	 */
+	private static void verify(final File dir, final File report,
+	        final String format) {
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes("*.cod");
+
+		VerifySignatures task = new VerifySignatures();
+		task.setProject(project);
+		task.setSigners("SFDC");
+		task.setReport(report);
+		task.setReportFormat(format);
+		task.add(fs);
+		try {
+			task.execute();
+			fail("unsigned and malformed CODs passed");
+		} catch (BuildException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @param lines report lines
+	 * @param name file name to look for
+	 * @return the line reporting the file
+	 */
+	private static String find(final List<String> lines, final String name) {
+		for (String line : lines) {
+			if (line.contains(name)) {
+				return line;
+			}
+		}
+		fail(name + " not reported");
+		return null;
+	}
+}
@@ -26,21 +26,94 @@
 package com.force.mobile.ant.blackberry;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.ZipFileSet;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.force.mobile.ant.blackberry.BadCodException;
 import com.force.mobile.ant.blackberry.VerifySignatures;
 
 public class VerifySignaturesTest {
 
+	/**
+	 * Directories written by a test, deleted once it ends.
+	 */
+    @Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * @param project project the task belongs to
+	 * @param base directory holding the cods, or a zip whose entries are
+	 *            verified in place
+	 * @param includes patterns of the cods to verify
+	 * @param descriptors patterns of the descriptors in base to check, or
+	 *            null
+	 * @param signers signers expected
+	 * @param threads worker threads, or 0 for the default
+	 * @return a task verifying the included cods
+	 */
+	private static VerifySignatures task(final Project project,
+	        final File base, final String includes, final String descriptors,
+	        final String signers, final int threads) {
+		FileSet fs;
+		if (base.isDirectory()) {
+			fs = new FileSet();
+			fs.setDir(base);
+		} else {
+			ZipFileSet archive = new ZipFileSet();
+			archive.setSrc(base);
+			fs = archive;
+		}
+		fs.setProject(project);
+		fs.setIncludes(includes);
+		VerifySignatures test = new VerifySignatures();
+		test.setProject(project);
+		test.setSigners(signers);
+		if (threads > 0) {
+			test.setThreads(threads);
+		}
+		test.add(fs);
+		if (descriptors != null) {
+			FileSet listed = new FileSet();
+			listed.setProject(project);
+			listed.setDir(base);
+			listed.setIncludes(descriptors);
+			test.addDescriptors(listed);
+		}
+		return test;
+	}
+
 	/**
 	 * Validates the flashID.
 	 * @throws IOException if internal <code>DataInputStream</code> causes error.
@@ -120,6 +193,37 @@ public class VerifySignaturesTest {
 		        expected, VerifySignatures.readLittleEndianNibble(fakeBytes));
 	}
 
+	/**
+	 * Check the positional header parser against a real COD.
+	 * @throws Exception if the test file cannot be read
+	 */
+    @Test
+	public void testHeaderParsing() throws Exception {
+		File codFile = new File("src" + File.separator + "test"
+		        + File.separator + "resources", "test_salesforce_chatter-8.cod");
+		byte[] bytes = new byte[CodHeader.LENGTH];
+		RandomAccessFile in = new RandomAccessFile(codFile, "r");
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+
+		CodHeader header = CodHeader.read(ByteBuffer.wrap(bytes), "test");
+		assertEquals(78, header.getVersion());
+		assertEquals(0x1B28, header.getCodeSize());
+		assertEquals(0xE904, header.getDataSize());
+		assertEquals(CodHeader.LENGTH + 0x1B28 + 0xE904,
+		        header.getTrailerOffset());
+
+		try {
+			CodHeader.read(ByteBuffer.wrap(new byte[4]), "short");
+			fail("short buffer read as a COD header");
+		} catch (BadCodException e) {
+			// expected
+		}
+	}
+
 	/**
 	 * Check three files for validity.
 	 * @param validFile A perfectly valid codfile signed by SFDC
@@ -185,4 +289,946 @@ public class VerifySignaturesTest {
 		        bigInvalidCodFile);
 	}
 
+	/**
+	 * Check that a multi-threaded run gives the same answer as a serial one
+	 * and logs each file's messages in fileset order.
+	 * @throws Exception if the test files cannot be written or scanned
+	 */
+    @Test
+	public void testParallelChecking() throws Exception {
+		File testFolder = new File("src" + File.separator + "test"
+		        + File.separator + "resources");
+		File valid = new File(testFolder, "test_salesforce_chatter-8.cod");
+		File bigValid = new File(testFolder, "test_salesforce_chatter-10.cod");
+		File incorrect = new File(testFolder, "test_salesforce_chatter-9.cod");
+
+		VerifySignatures test = new VerifySignatures("SFDC");
+		test.setThreads(4);
+		assertTrue("valid cod files read as invalid",
+		        !test.brokenFiles(Arrays.asList(valid, bigValid, valid)));
+		assertTrue("Incorrectly signed cod file read as valid",
+		        test.brokenFiles(Arrays.asList(valid, incorrect, bigValid)));
+
+		// The largest file goes first so that the workers finish out of
+		// order; its messages must still come first.
+		File dir = temp.newFolder("parallel");
+		CodGenerator generator = new CodGenerator(25);
+		generator.setSigners("RBB", "SFDC");
+		for (int i = 0; i < 8; i++) {
+			generator.setCodeSize(i == 0 ? 65000 : 100);
+			CodGenerator.write(new File(dir, "cod-" + i + ".cod"),
+			        generator.cod());
+		}
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes("*.cod");
+		// the task takes files in directory order, as the scanner finds them
+		StreamingScanner scanner = new StreamingScanner();
+		fs.setupDirectoryScanner(scanner, project);
+		BlockingQueue<File> found = new LinkedBlockingQueue<File>();
+		scanner.scanInto(found);
+		List<String> expected = new ArrayList<String>();
+		for (File file : found) {
+			expected.add(file.getName());
+		}
+		SignedLog logged = new SignedLog("SFDC");
+		project.addBuildListener(logged);
+		VerifySignatures task = new VerifySignatures();
+		task.setProject(project);
+		task.setSigners("SFDC");
+		task.setVerbose(true);
+		task.setThreads(4);
+		task.add(fs);
+		task.execute();
+		assertEquals("messages out of fileset order", expected, logged.files);
+	}
+
+	/**
+	 * Check a big cod whose siblings are stored uncompressed, which are read
+	 * in place rather than streamed.
+	 * @throws IOException if the temporary big cod cannot be written
+	 */
+    @Test
+	public void testStoredBigCodChecking() throws IOException {
+		File testFolder = new File("src" + File.separator + "test"
+		        + File.separator + "resources");
+		File bigCod = temp.newFile("stored.cod");
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(bigCod));
+		try {
+			for (String name : new String[] {
+			        "test_salesforce_chatter-8.cod",
+			        "test_salesforce_chatter-7.cod"}) {
+				byte[] bytes = new byte[(int) new File(testFolder, name).length()];
+				RandomAccessFile in = new RandomAccessFile(
+				        new File(testFolder, name), "r");
+				try {
+					in.readFully(bytes);
+				} finally {
+					in.close();
+				}
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+				ZipEntry entry = new ZipEntry(name);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(bytes.length);
+				entry.setCrc(crc.getValue());
+				zip.putNextEntry(entry);
+				zip.write(bytes);
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+
+		VerifySignatures test = new VerifySignatures("SFDC");
+		List<CodSigningInfo> siblings = test.readCod(bigCod);
+		assertEquals(2, siblings.size());
+		assertTrue("stored sibling missing SFDC",
+		        siblings.get(0).getSigners().contains("SFDC"));
+		assertTrue("stored sibling missing RRT",
+		        siblings.get(1).getSigners().contains("RRT"));
+		assertTrue("Incorrectly signed stored sibling read as valid",
+		        test.isBroken(bigCod));
+	}
+
+	/**
+	 * Check that identical CODs and siblings are only parsed once per run.
+	 */
+    @Test
+	public void testDuplicateCods() {
+		File testFolder = new File("src" + File.separator + "test"
+		        + File.separator + "resources");
+		File valid = new File(testFolder, "test_salesforce_chatter-8.cod");
+		File bigValid = new File(testFolder, "test_salesforce_chatter-10.cod");
+
+		VerifySignatures test = new VerifySignatures("SFDC");
+		test.setThreads(1);
+		assertTrue("valid cod files read as invalid", !test.brokenFiles(
+		        Arrays.asList(valid, bigValid, valid, bigValid)));
+		assertEquals("one plain COD, the sibling identical to it and three"
+		        + " siblings should be reused", 5, test.getDuplicateCount());
+	}
+
+	/**
+	 * Check packed signer IDs and mask matching.
+	 */
+    @Test
+	public void testSignerIndex() {
+		assertEquals("RBB", SignerIndex.unpack(SignerIndex.pack("RBB")));
+		assertEquals(SignerIndex.pack("RBB"), SignerIndex.pack("RB\0B"));
+
+		SignerIndex index = new SignerIndex(Arrays.asList("RBB", "SFDC"));
+		CodSigningInfo cod = new CodSigningInfo("test.cod");
+		cod.addSigner("RRT");
+		cod.addSigner("RBB");
+		assertTrue("missing signer accepted",
+		        !index.isSatisfied(index.mask(cod)));
+		cod.addSigner("SFDC");
+		assertTrue("all signers present but rejected",
+		        index.isSatisfied(index.mask(cod)));
+		assertTrue("duplicate signer added", !cod.addSigner("RBB"));
+		assertEquals(3, cod.getSignerCount());
+	}
+
+	/**
+	 * Check that a run's metrics are counted and published as properties.
+	 */
+    @Test
+	public void testMetrics() {
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(new File("src" + File.separator + "test"
+		        + File.separator + "resources"));
+		fs.setIncludes("test_salesforce_chatter-8.cod,"
+		        + "test_salesforce_chatter-10.cod");
+
+		VerifySignatures test = new VerifySignatures();
+		test.setProject(project);
+		test.setSigners("SFDC");
+		test.setThreads(1);
+		test.setMetricsPrefix("sig");
+		test.add(fs);
+		test.execute();
+
+		VerificationMetrics metrics = test.getMetrics();
+		assertEquals(2, metrics.getFiles());
+		assertTrue("siblings not counted", metrics.getCods() > 2);
+		assertTrue("code and data not skipped",
+		        metrics.getBytesSkipped() > metrics.getBytesRead());
+		assertTrue(metrics.getLatency(0.99) >= metrics.getLatency(0.5));
+		assertTrue(metrics.getTime(VerificationMetrics.Phase.PARSE) > 0);
+		assertEquals("2", project.getProperty("sig.files"));
+		assertEquals("0", project.getProperty("sig.errors.BAD_SIGN_TYPE"));
+		assertTrue(project.getProperty("sig.latency.p99") != null);
+	}
+
+	/**
+	 * Check that fail-fast mode stops at the first broken file and at the
+	 * first broken sibling of a big cod.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testFailFast() throws IOException {
+		File testFolder = new File("src" + File.separator + "test"
+		        + File.separator + "resources");
+		File valid = new File(testFolder, "test_salesforce_chatter-8.cod");
+		File incorrect = new File(testFolder, "test_salesforce_chatter-9.cod");
+
+		VerifySignatures test = new VerifySignatures("SFDC");
+		test.setThreads(1);
+		test.setFailFast(true);
+		assertTrue("Incorrectly signed cod file read as valid",
+		        test.brokenFiles(Arrays.asList(valid, incorrect, valid,
+		                valid)));
+		assertEquals("files after the first failure were verified",
+		        2, test.getMetrics().getFiles());
+
+		File bigCod = temp.newFile("failfast.cod");
+		CodGenerator generator = new CodGenerator(12);
+		generator.setSigners("SFDC");
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(bigCod));
+		try {
+			for (int i = 0; i < 3; i++) {
+				zip.putNextEntry(new ZipEntry("sibling-" + i + ".cod"));
+				zip.write(i == 0 ? generator.malformed(
+				        CodGenerator.Malformation.BAD_SIGN_TYPE)
+				        : generator.cod());
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+		test = new VerifySignatures("SFDC");
+		test.setFailFast(true);
+		assertEquals("siblings after the first failure were read",
+		        1, test.readCod(bigCod).size());
+
+		test.setFailFast(false);
+		assertEquals(3, test.readCod(bigCod).size());
+	}
+
+	/**
+	 * Check that a big cod cut short in fail-fast mode is neither cached nor
+	 * indexed, so that a later run reads the siblings that were skipped.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testFailFastNotRemembered() throws IOException {
+		File dir = temp.newFolder("skipped");
+		CodGenerator generator = new CodGenerator(26);
+		generator.setSigners("RBB");
+		CodGenerator.write(new File(dir, "big.cod"), zip(
+		        new String[] {"s0.cod", "s1.cod", "s2.cod"},
+		        new byte[][] {generator.cod(), generator.cod(),
+		                generator.malformed(
+		                        CodGenerator.Malformation.UNSIGNED)}));
+		File cache = new File(dir, "cache.ser");
+		File indexFile = new File(dir, "cods.idx");
+
+		VerifySignatures first = task(new Project(), dir, "big.cod",
+		        null, "RBB,SFDC", 1);
+		first.setFailFast(true);
+		first.setCache(cache);
+		first.setIndex(indexFile);
+		try {
+			first.execute();
+			fail("big cod without SFDC passed");
+		} catch (BuildException e) {
+			assertEquals(1, first.getMetrics().getCods());
+		}
+
+		VerifySignatures cached = task(new Project(), dir, "big.cod",
+		        null, "RBB", 1);
+		cached.setCache(cache);
+		try {
+			cached.execute();
+			fail("unsigned sibling taken from the cache");
+		} catch (BuildException e) {
+			assertEquals(0, cached.getMetrics().getCacheHits());
+			assertEquals(3, cached.getMetrics().getCods());
+		}
+
+		VerifySignatures carried = task(new Project(), dir, "big.cod",
+		        null, "RBB", 1);
+		carried.setBaseline(indexFile);
+		try {
+			carried.execute();
+			fail("unsigned sibling carried forward from the baseline");
+		} catch (BuildException e) {
+			assertEquals(0, carried.getMetrics().getCarriedForward());
+			assertEquals(3, carried.getMetrics().getCods());
+		}
+	}
+
+	/**
+	 * Check that a big cod whose later sibling cannot be read fails as a
+	 * whole, rather than passing on the siblings read before it, and is
+	 * neither cached nor indexed.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testCorruptSibling() throws IOException {
+		File dir = temp.newFolder("corrupt");
+		CodGenerator generator = new CodGenerator(27);
+		generator.setSigners("RBB");
+		File big = new File(dir, "big.cod");
+		generator.writeBigCod(big, 2, ZipEntry.STORED);
+		byte[] bytes = Files.readAllBytes(big.toPath());
+		// the second sibling's local header, 30 bytes before its name
+		int second = new String(bytes, "ISO-8859-1").indexOf("big-1.cod")
+		        - 30;
+		assertEquals("PK", new String(bytes, second, 2, "ISO-8859-1"));
+		bytes[second + 2] = 0;
+		CodGenerator.write(big, bytes);
+
+		List<CodSigningInfo> read = new VerifySignatures("RBB").readCod(big);
+		assertEquals(2, read.size());
+		assertEquals(BadCodException.Kind.READ_FAILED,
+		        read.get(1).getError());
+
+		File cache = new File(dir, "cache.ser");
+		File indexFile = new File(dir, "cods.idx");
+		VerifySignatures first = task(new Project(), dir, "big.cod",
+		        null, "RBB", 1);
+		first.setCache(cache);
+		first.setIndex(indexFile);
+		try {
+			first.execute();
+			fail("big cod with an unreadable sibling passed");
+		} catch (BuildException e) {
+			assertEquals(Arrays.asList(big), first.getFailures());
+		}
+		assertNull(CodIndex.open(indexFile).lookupFile(big));
+		VerifySignatures cached = task(new Project(), dir, "big.cod",
+		        null, "RBB", 1);
+		cached.setCache(cache);
+		try {
+			cached.execute();
+			fail("unreadable sibling taken from the cache");
+		} catch (BuildException e) {
+			assertEquals(0, cached.getMetrics().getCacheHits());
+		}
+	}
+
+	/**
+	 * Check that siblings sharing a name are each verified, as the zip's
+	 * directory lists them all.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testDuplicateSiblingNames() throws IOException {
+		CodGenerator generator = new CodGenerator(28);
+		generator.setSigners("RBB");
+		byte[] bytes = zip(new String[] {"s0.cod", "s1.cod"},
+		        new byte[][] {generator.malformed(
+		                CodGenerator.Malformation.UNSIGNED), generator.cod()});
+		// rename s1.cod to s0.cod in its local and central headers
+		String names = new String(bytes, "ISO-8859-1");
+		for (int i = names.indexOf("s1.cod"); i >= 0;
+		        i = names.indexOf("s1.cod", i + 1)) {
+			bytes[i + 1] = '0';
+		}
+		File big = new File(temp.getRoot(), "twins.cod");
+		CodGenerator.write(big, bytes);
+
+		VerifySignatures test = new VerifySignatures("RBB");
+		List<CodSigningInfo> siblings = test.readCod(big);
+		assertEquals(2, siblings.size());
+		assertEquals(siblings.get(0).getFilename(),
+		        siblings.get(1).getFilename());
+		assertTrue("unsigned twin hidden by its signed namesake",
+		        test.isBroken(big));
+	}
+
+	/**
+	 * Check that signature records are located and their signatures read
+	 * on demand, from plain CODs and from compressed siblings.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testSignatureRecords() throws IOException {
+		CodGenerator generator = new CodGenerator(14);
+		generator.setCodeSize(100);
+		generator.setDataSize(10);
+		generator.setSignatureLength(64);
+		generator.setSigners("RBB", "SFDC");
+		byte[] bytes = generator.cod();
+		File cod = temp.newFile("records.cod");
+		CodGenerator.write(cod, bytes);
+
+		VerifySignatures test = new VerifySignatures("SFDC");
+		CodSigningInfo info = test.readSingleFile(cod);
+		assertEquals(110, info.getHeader().getCodeSize()
+		        + info.getHeader().getDataSize());
+		assertEquals(2, info.getRecordCount());
+		SignatureRecord record = info.getRecord(1);
+		assertEquals("SFDC", record.getSigner());
+		assertEquals(44 + 110 + 4 + 68, record.getOffset());
+		assertEquals(68, record.getLength());
+		byte[] expected = Arrays.copyOfRange(bytes,
+		        (int) record.getSignatureOffset(), bytes.length);
+		assertTrue(Arrays.equals(expected, info.readSignature(1)));
+
+		File bigCod = temp.newFile("big-records.cod");
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(bigCod));
+		try {
+			zip.putNextEntry(new ZipEntry("sibling.cod"));
+			zip.write(bytes);
+			zip.closeEntry();
+		} finally {
+			zip.close();
+		}
+		CodSigningInfo sibling = test.readCod(bigCod).get(0);
+		assertEquals(record.getOffset(), sibling.getRecord(1).getOffset());
+		assertTrue(Arrays.equals(expected, sibling.readSignature(1)));
+		assertEquals(1, sibling.getRecord(1).getSignType());
+
+		File storedCod = temp.newFile("stored-records.cod");
+		zip = new ZipOutputStream(new FileOutputStream(storedCod));
+		try {
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			ZipEntry entry = new ZipEntry("sibling.cod");
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(bytes.length);
+			entry.setCrc(crc.getValue());
+			zip.putNextEntry(entry);
+			zip.write(bytes);
+			zip.closeEntry();
+		} finally {
+			zip.close();
+		}
+		CodSigningInfo stored = new VerifySignatures("SFDC").readCod(
+		        storedCod).get(0);
+		// a stored sibling's signature is read in place, without the zip's
+		// directory, which is now gone
+		RandomAccessFile out = new RandomAccessFile(storedCod, "rw");
+		try {
+			out.setLength(out.length() - 22);
+		} finally {
+			out.close();
+		}
+		assertTrue(Arrays.equals(expected, stored.readSignature(1)));
+	}
+
+	/**
+	 * Check that files read ahead are verified as when read in turn, and
+	 * that big cods are left to the normal path.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testReadAhead() throws IOException {
+		File testFolder = new File("src" + File.separator + "test"
+		        + File.separator + "resources");
+		CodGenerator generator = new CodGenerator(15);
+		generator.setSigners("RBB", "SFDC");
+		File signed = temp.newFile("signed.cod");
+		CodGenerator.write(signed, generator.cod());
+		File unsigned = temp.newFile("unsigned.cod");
+		CodGenerator.write(unsigned,
+		        generator.malformed(CodGenerator.Malformation.UNSIGNED));
+		List<File> files = Arrays.asList(signed,
+		        new File(testFolder, "test_salesforce_chatter-8.cod"),
+		        unsigned,
+		        new File(testFolder, "test_salesforce_chatter-9.cod"),
+		        new File(testFolder, "test_salesforce_chatter-10.cod"));
+
+		for (int threads : new int[] {1, 3}) {
+			VerifySignatures plain = new VerifySignatures("SFDC");
+			plain.setThreads(threads);
+			VerifySignatures ahead = new VerifySignatures("SFDC");
+			ahead.setThreads(threads);
+			ahead.setReadAhead(2);
+			assertEquals(plain.brokenFiles(files), ahead.brokenFiles(files));
+			assertEquals(plain.getMetrics().getCods(),
+			        ahead.getMetrics().getCods());
+		}
+		assertTrue("plain cod not read ahead", ReadAhead.fetch(signed) != null);
+		assertTrue("big cod read ahead", ReadAhead.fetch(files.get(3)) == null);
+	}
+
+	/**
+	 * Check that filesets are scanned as they are verified, honouring
+	 * excludes, and that failed files are listed.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testStreamingScan() throws IOException {
+		File dir = temp.newFolder("scan");
+		File kept = new File(dir, "kept");
+		File skipped = new File(dir, "skipped");
+		kept.mkdirs();
+		skipped.mkdirs();
+		CodGenerator generator = new CodGenerator(18);
+		generator.setSigners("RBB", "SFDC");
+		File unsigned = new File(kept, "unsigned.cod");
+		for (int i = 0; i < 20; i++) {
+			CodGenerator.write(new File(kept, "signed-" + i + ".cod"),
+			        generator.cod());
+		}
+		CodGenerator.write(unsigned,
+		        generator.malformed(CodGenerator.Malformation.UNSIGNED));
+		CodGenerator.write(new File(skipped, "unsigned.cod"),
+		        generator.malformed(CodGenerator.Malformation.UNSIGNED));
+		CodGenerator.write(new File(kept, "notes.txt"), new byte[0]);
+
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes("**/*.cod");
+		fs.setExcludes("skipped/**");
+		VerifySignatures test = new VerifySignatures();
+		test.setProject(project);
+		test.setSigners("SFDC");
+		test.setThreads(2);
+		test.add(fs);
+		try {
+			test.execute();
+			fail("unsigned cod not reported");
+		} catch (BuildException e) {
+			assertEquals(Arrays.asList(unsigned), test.getFailures());
+		}
+		assertEquals(21, test.getMetrics().getFiles());
+	}
+
+	/**
+	 * Check that nested policies give each COD, and each sibling of a big
+	 * COD, the signers its path calls for in a single pass.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testSignerPolicies() throws IOException {
+		File dir = temp.newFolder("policies");
+		File platform = new File(dir, "platform");
+		File apps = new File(dir, "apps");
+		File thirdParty = new File(dir, "thirdparty");
+		platform.mkdirs();
+		apps.mkdirs();
+		thirdParty.mkdirs();
+		CodGenerator generator = new CodGenerator(22);
+		generator.setSigners("RBB", "RRT");
+		generator.writeCod(new File(platform, "lib.cod"));
+		generator.writeBigCod(new File(thirdParty, "suite.cod"), 3,
+		        ZipEntry.DEFLATED);
+		generator.setSigners("RBB", "RRT", "SFDC");
+		generator.writeCod(new File(apps, "app.cod"));
+		File forbidden = new File(thirdParty, "resold.cod");
+		generator.writeCod(forbidden);
+		generator.setSigners("RBB");
+		File unsigned = new File(dir, "loose.cod");
+		generator.writeCod(unsigned);
+		File report = new File(dir, "report.jsonl");
+
+		Project project = new Project();
+		FileSet fs = new FileSet();
+		fs.setProject(project);
+		fs.setDir(dir);
+		fs.setIncludes("**/*.cod");
+		VerifySignatures test = new VerifySignatures();
+		test.setProject(project);
+		test.setSigners("RBB, RRT");
+		test.setReport(report);
+		test.add(fs);
+		SignerPolicy policy = test.createPolicy();
+		policy.setPattern("platform/");
+		policy.setRequired("RBB,RRT");
+		policy.setOptional("RCR");
+		policy = test.createPolicy();
+		policy.setPattern("apps/**");
+		policy.setRequired("RBB, RRT, SFDC");
+		policy = test.createPolicy();
+		policy.setPattern("thirdparty/**");
+		policy.setRequired("RRT");
+		policy.setForbidden("SFDC");
+		try {
+			test.execute();
+			fail("forbidden signer and unsigned cod not reported");
+		} catch (BuildException e) {
+			List<File> failures = test.getFailures();
+			assertEquals(2, failures.size());
+			assertTrue(failures.contains(forbidden));
+			assertTrue(failures.contains(unsigned));
+		}
+		assertEquals(5, test.getMetrics().getFiles());
+		String lines = new String(Files.readAllBytes(report.toPath()),
+		        "UTF-8");
+		assertTrue(lines.contains("\"missing\":[],\"error\":null,"
+		        + "\"bytesRead\":"));
+		assertTrue(lines.contains("\"forbidden\":[\"SFDC\"]"));
+		assertTrue(lines.contains("\"missing\":[\"RRT\"]"));
+
+		policy = test.createPolicy();
+		policy.setPattern("**/*.cod");
+		policy.setRequired("SFDC");
+		policy.setForbidden("SFDC");
+		try {
+			test.execute();
+			fail("contradictory policy accepted");
+		} catch (BuildException e) {
+			assertTrue(e.getMessage().contains("requires and forbids"));
+		}
+	}
+
+	/**
+	 * Check that a cut short trailer is reported as such whether the COD is
+	 * read in place or streamed, and that a valid streamed COD still gives
+	 * all of its records.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testTruncatedRecords() throws IOException {
+		VerifySignatures test = new VerifySignatures("SFDC");
+		CodGenerator generator = new CodGenerator(21);
+		generator.setSigners("RBB", "SFDC");
+
+		CodSigningInfo streamed = test.signers(new ByteArrayInputStream(
+		        generator.cod()), "valid.cod");
+		assertEquals(null, streamed.getError());
+		assertEquals(2, streamed.getRecordCount());
+		assertEquals(generator.cod().length, streamed.getLength());
+
+		byte[] cutTrailer = generator.malformed(
+		        CodGenerator.Malformation.TRUNCATED_TRAILER);
+		assertEquals(BadCodException.Kind.TRUNCATED_RECORD, test.signers(
+		        new ByteArrayInputStream(cutTrailer), "cut.cod").getError());
+		File cut = temp.newFile("truncated.cod");
+		CodGenerator.write(cut, cutTrailer);
+		assertEquals(BadCodException.Kind.TRUNCATED_RECORD,
+		        test.readCod(cut).get(0).getError());
+
+		assertEquals(BadCodException.Kind.TRUNCATED, test.signers(
+		        new ByteArrayInputStream(generator.malformed(
+		                CodGenerator.Malformation.TRUNCATED_BODY)),
+		        "body.cod").getError());
+		assertEquals(BadCodException.Kind.NOT_A_COD, test.signers(
+		        new ByteArrayInputStream(generator.malformed(
+		                CodGenerator.Malformation.TRUNCATED_HEADER)),
+		        "header.cod").getError());
+	}
+
+	/**
+	 * Check that files are routed by their first bytes: neither a cod nor a
+	 * zip is rejected without being parsed, and deflated siblings are read
+	 * from the same file.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testFormatSniffing() throws IOException {
+		VerifySignatures test = new VerifySignatures("SFDC");
+		File text = temp.newFile("text.cod");
+		CodGenerator.write(text, "not a cod at all".getBytes("US-ASCII"));
+		List<CodSigningInfo> cods = test.readCod(text);
+		assertEquals(1, cods.size());
+		assertEquals(BadCodException.Kind.NOT_A_COD, cods.get(0).getError());
+		assertEquals(0, cods.get(0).getBytesRead());
+
+		File empty = temp.newFile("empty.cod");
+		assertEquals(BadCodException.Kind.NOT_A_COD,
+		        test.readCod(empty).get(0).getError());
+
+		CodGenerator generator = new CodGenerator(20);
+		generator.setSigners("SFDC");
+		File bigCod = temp.newFile("big.cod");
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(bigCod));
+		try {
+			for (int i = 0; i < 2; i++) {
+				ZipEntry entry = new ZipEntry("sibling-" + i + ".cod");
+				zip.setMethod(i == 0 ? ZipOutputStream.DEFLATED
+				        : ZipOutputStream.STORED);
+				byte[] cod = generator.cod();
+				if (i == 1) {
+					CRC32 crc = new CRC32();
+					crc.update(cod);
+					entry.setSize(cod.length);
+					entry.setCrc(crc.getValue());
+				}
+				zip.putNextEntry(entry);
+				zip.write(cod);
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+		cods = test.readCod(bigCod);
+		assertEquals(2, cods.size());
+		for (CodSigningInfo cod : cods) {
+			assertEquals(null, cod.getError());
+			assertTrue(cod.getSigners().contains("SFDC"));
+		}
+	}
+
+	/**
+	 * Check that JAD and ALX descriptors are checked against the lengths
+	 * and SHA-1s of the plain cods and siblings verified.
+	 * @throws Exception if the test files cannot be written or hashed
+	 */
+    @Test
+	public void testDescriptors() throws Exception {
+		File dir = temp.newFolder("descriptors");
+		CodGenerator generator = new CodGenerator(24);
+		generator.setSigners("SFDC");
+		generator.writeCod(new File(dir, "app.cod"));
+		generator.writeBigCod(new File(dir, "suite.cod"), 2,
+		        ZipEntry.DEFLATED);
+		generator.writeBigCod(new File(dir, "lib.cod"), 2, ZipEntry.STORED);
+		byte[] app = Files.readAllBytes(new File(dir, "app.cod").toPath());
+		List<String> jad = new ArrayList<String>();
+		jad.add("MIDlet-Name: app");
+		jad.add("RIM-COD-URL: app.cod");
+		jad.add("RIM-COD-Size: " + app.length);
+		jad.add("RIM-COD-SHA1: " + sha1(app));
+		String[][] siblings = {{"suite.cod", "suite.cod"},
+		        {"suite.cod", "suite-1.cod"}, {"lib.cod", "lib-1.cod"}};
+		for (int i = 0; i < siblings.length; i++) {
+			ZipFile zip = new ZipFile(new File(dir, siblings[i][0]));
+			byte[] cod;
+			try {
+				ZipEntry entry = zip.getEntry(siblings[i][1]);
+				cod = new byte[(int) entry.getSize()];
+				new DataInputStream(zip.getInputStream(entry)).readFully(cod);
+			} finally {
+				zip.close();
+			}
+			jad.add("RIM-COD-URL-" + (i + 1) + ": " + siblings[i][1]);
+			jad.add("RIM-COD-Size-" + (i + 1) + ": " + cod.length);
+			jad.add("RIM-COD-SHA1-" + (i + 1) + ": " + sha1(cod));
+		}
+		File jadFile = new File(dir, "app.jad");
+		Files.write(jadFile.toPath(), jad, StandardCharsets.UTF_8);
+
+		VerifySignatures test = task(new Project(), dir, "*.cod",
+		        "*.jad,*.alx", "SFDC", 2);
+		test.execute();
+		assertTrue(test.getFailures().isEmpty());
+
+		jad.set(2, "RIM-COD-Size: " + (app.length + 1));
+		Files.write(jadFile.toPath(), jad, StandardCharsets.UTF_8);
+		test = task(new Project(), dir, "*.cod", "*.jad,*.alx", "SFDC", 2);
+		try {
+			test.execute();
+			fail("stale size passed");
+		} catch (BuildException e) {
+			assertEquals(Arrays.asList(jadFile), test.getFailures());
+		}
+
+		jad.set(2, "RIM-COD-Size: " + app.length);
+		jad.set(3, "RIM-COD-SHA1: " + sha1(new byte[0]));
+		Files.write(jadFile.toPath(), jad, StandardCharsets.UTF_8);
+		test = task(new Project(), dir, "*.cod", "*.jad,*.alx", "SFDC", 2);
+		try {
+			test.execute();
+			fail("stale SHA-1 passed");
+		} catch (BuildException e) {
+			assertEquals(Arrays.asList(jadFile), test.getFailures());
+		}
+		assertTrue(jadFile.delete());
+
+		File alx = new File(dir, "app.alx");
+		Files.write(alx.toPath(), Arrays.asList("<loader version=\"1.0\">",
+		        "<application id=\"app\"><fileset Java=\"1.0\">",
+		        "<files>app.cod suite-1.cod\nlib.cod missing.cod</files>",
+		        "</fileset></application></loader>"), StandardCharsets.UTF_8);
+		test = task(new Project(), dir, "*.cod", "*.jad,*.alx", "SFDC", 2);
+		try {
+			test.execute();
+			fail("unverified cod passed");
+		} catch (BuildException e) {
+			assertEquals(Arrays.asList(alx), test.getFailures());
+		}
+	}
+
+	/**
+	 * @param bytes bytes to hash
+	 * @return their SHA-1 as a JAD writes it, hex bytes separated by spaces
+	 * @throws Exception if SHA-1 is not available
+	 */
+	private static String sha1(final byte[] bytes) throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes)) {
+			if (hex.length() > 0) {
+				hex.append(' ');
+			}
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Check that cods in a zip fileset's archive, and in zips nested in it,
+	 * are verified without extracting them and indexed by nested path.
+	 * @throws IOException if the test files cannot be written
+	 */
+    @Test
+	public void testNestedArchives() throws IOException {
+		File dir = temp.newFolder("archives");
+		CodGenerator generator = new CodGenerator(25);
+		generator.setSigners("SFDC");
+		File big = new File(dir, "nested.cod");
+		generator.writeBigCod(big, 2, ZipEntry.DEFLATED);
+		byte[] bundle = zip(new String[] {"nested.cod"},
+		        new byte[][] {Files.readAllBytes(big.toPath())});
+		File release = new File(dir, "release.zip");
+		CodGenerator.write(release, zip(
+		        new String[] {"apps/app.cod", "apps/big.cod", "bundle.zip",
+		                "readme.txt"},
+		        new byte[][] {generator.cod(),
+		                Files.readAllBytes(big.toPath()), bundle,
+		                "not a cod".getBytes("US-ASCII")}));
+
+		File indexFile = new File(dir, "cods.idx");
+		VerifySignatures test = task(new Project(), release,
+		        "**/*.cod,**/*.zip", null, "SFDC", 0);
+		test.setIndex(indexFile);
+		test.execute();
+		assertEquals(3, test.getMetrics().getFiles());
+		CodIndex index = CodIndex.open(indexFile);
+		List<CodIndex.Entry> cods = index.lookupFile(
+		        new File(release, "bundle.zip"));
+		assertEquals(2, cods.size());
+		assertEquals("nested.cod" + File.separator + "nested-1.cod",
+		        cods.get(1).getSiblingName());
+		assertEquals(2, index.lookupFile(new File(release, "apps"
+		        + File.separator + "big.cod")).size());
+
+		generator.setSigners("RBB");
+		CodGenerator.write(release, zip(new String[] {"apps/app.cod",
+		        "bundle.zip"}, new byte[][] {generator.cod(), bundle}));
+		test = task(new Project(), release, "**/*.cod,**/*.zip", null,
+		        "SFDC", 0);
+		try {
+			test.execute();
+			fail("unsigned cod in an archive passed");
+		} catch (BuildException e) {
+			assertEquals(Arrays.asList(new File(release, "apps"
+			        + File.separator + "app.cod")), test.getFailures());
+		}
+
+		generator.setSigners("SFDC");
+		byte[] corrupt = zip(new String[] {"apps/app.cod", "readme.txt"},
+		        new byte[][] {generator.cod(),
+		                "not a cod".getBytes("US-ASCII")});
+		// a reserved deflate block type where readme.txt's data starts
+		String readme = new String(corrupt, "ISO-8859-1");
+		corrupt[readme.indexOf("readme.txt") + "readme.txt".length()] =
+		        (byte) 0xFF;
+		CodGenerator.write(release, corrupt);
+		test = task(new Project(), release, "**/*.cod,**/*.zip", null,
+		        "SFDC", 0);
+		test.setFailFast(true);
+		File entry = new File(release, "readme.txt");
+		try {
+			test.execute();
+			fail("corrupt archive passed");
+		} catch (BuildException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith(
+			        entry.toString()));
+			assertEquals(Arrays.asList(entry), test.getFailures());
+		}
+	}
+
+	/**
+	 * @param names entry names
+	 * @param contents entry contents, by name
+	 * @return a zip of the entries, deflated
+	 * @throws IOException if the zip cannot be written
+	 */
+	private static byte[] zip(final String[] names, final byte[][] contents)
+	    throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		for (int i = 0; i < names.length; i++) {
+			zip.putNextEntry(new ZipEntry(names[i]));
+			zip.write(contents[i]);
+			zip.closeEntry();
+		}
+		zip.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Check that tasks sharing a project's service reuse its results and
+	 * that the service is shut down with the build.
+	 */
+    @Test
+	public void testSharedService() {
+		Project project = new Project();
+		File testFolder = new File("src" + File.separator + "test"
+		        + File.separator + "resources");
+		String cods = "test_salesforce_chatter-8.cod,"
+		        + "test_salesforce_chatter-10.cod";
+		VerifySignatures first = task(project, testFolder, cods, null,
+		        "SFDC", 2);
+		first.setShared(true);
+		first.execute();
+		assertTrue(first.getMetrics().getBytesRead() > 0);
+		VerificationService service = VerificationService.get(project);
+		assertEquals(2, service.size());
+
+		VerifySignatures second = task(project, testFolder, cods, null,
+		        "SFDC", 2);
+		second.setShared(true);
+		second.execute();
+		assertEquals("shared results read again",
+		        0, second.getMetrics().getBytesRead());
+		assertEquals(2, second.getMetrics().getCacheHits());
+
+		project.fireBuildFinished(null);
+		assertEquals(0, service.size());
+	}
+
+	/**
+	 * Records, in order, the files logged as signed by a signer.
+	 */
+	private static final class SignedLog implements BuildListener {
+
+		/** Marker following the file name in the messages recorded. */
+		private final String marker;
+
+		/** Files named, in the order logged. */
+		private final List<String> files = new ArrayList<String>();
+
+		/**
+		 * @param signer signer whose messages are recorded
+		 */
+		SignedLog(final String signer) {
+			marker = " signed by " + signer;
+		}
+
+		@Override
+		public synchronized void messageLogged(final BuildEvent event) {
+			int end = event.getMessage().indexOf(marker);
+			if (end > 0) {
+				files.add(event.getMessage().substring(0, end));
+			}
+		}
+
+		@Override
+		public void buildStarted(final BuildEvent event) {
+		}
+
+		@Override
+		public void buildFinished(final BuildEvent event) {
+		}
+
+		@Override
+		public void targetStarted(final BuildEvent event) {
+		}
+
+		@Override
+		public void targetFinished(final BuildEvent event) {
+		}
+
+		@Override
+		public void taskStarted(final BuildEvent event) {
+		}
+
+		@Override
+		public void taskFinished(final BuildEvent event) {
+		}
+	}
+
 }